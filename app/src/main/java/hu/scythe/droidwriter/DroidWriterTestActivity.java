@@ -9,13 +9,19 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.ToggleButton;
 
-import co.zipperstudios.supporthtml.SupportHtml;
-import hu.scythe.droidwriter.customEditText.HtmlAssetsImageGetter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
-import static android.text.Html.TO_HTML_PARAGRAPH_LINES_INDIVIDUAL;
+import hu.scythe.droidwriter.customEditText.HtmlAssetsImageGetter;
 
 public class DroidWriterTestActivity extends Activity {
 
+    private static final String DRAFT_FILE = "draft.dws";
+
     private DroidWriterEditText dwEdit;
 
     /**
@@ -71,6 +77,11 @@ public class DroidWriterTestActivity extends Activity {
 
         dwEdit.setClearButton(clearButton);
 
+        // the editor restores its own state from savedInstanceState
+        if (savedInstanceState != null || restoreDraft()) {
+            return;
+        }
+
 //		dwEdit.setHtml("<p><i><b><u>everythingis good very good</u></b></i></p>",
 //		dwEdit.setHtml("<p><i><b><u>everythingis good very good</u></b></i></p>",
         dwEdit.setHtml("<p>Decision <b>first line</b></p><p><b>Bold format we like </b>like <b>like</b> its nothing <u>besides underlines </u>this is hard</p><p><i>Italic only here</i></p><p><u>underline</u></p><p><i><u>underlineItalic</u></i></p><p><i><b><u>everythingis good very good</u></b></i></p>",
@@ -90,19 +101,40 @@ public class DroidWriterTestActivity extends Activity {
     protected void onPause() {
         super.onPause();
 
-        String htmlText = null;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
-            htmlText = Html.toHtml(dwEdit.getSpannedText(), TO_HTML_PARAGRAPH_LINES_INDIVIDUAL);
-        } else {
-            htmlText = SupportHtml.toHtml(dwEdit.getSpannedText(), SupportHtml.TO_HTML_PARAGRAPH_LINES_INDIVIDUAL);
+        // Keep a draft of the text with its spans, it is restored without parsing HTML again
+        try {
+            OutputStream out = new FileOutputStream(new File(getFilesDir(), DRAFT_FILE));
+            try {
+                dwEdit.saveSnapshot(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e("DroidWriterTestActivity", "Failed to save the draft!", e);
         }
 
-        dwEdit.setHtml(htmlText,
-                new HtmlAssetsImageGetter(dwEdit));
-
-//        dwEdit.setText(hu.scythe.droidwriter.SupportHtml.fromHtml(htmlText, hu.scythe.droidwriter.SupportHtml.FROM_HTML_SEPARATOR_LINE_BREAK_PARAGRAPH));
-//        Log.d("VLAD", "onPause: " + htmlText);
+        String htmlText = dwEdit.getTextHTML();
         htmlText = htmlText.replaceAll("(<\\w+)[^>]*(>)", "$1$2");
         Log.d("VLAD", "onPause: After changes for styles and data " + htmlText);
     }
-}
\ No newline at end of file
+
+    // Restores the draft saved by onPause, returns false if there is none
+    private boolean restoreDraft() {
+        File draft = new File(getFilesDir(), DRAFT_FILE);
+        if (!draft.exists()) {
+            return false;
+        }
+        try {
+            InputStream in = new FileInputStream(draft);
+            try {
+                dwEdit.restoreSnapshot(in);
+            } finally {
+                in.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e("DroidWriterTestActivity", "Failed to restore the draft!", e);
+            return false;
+        }
+    }
+}
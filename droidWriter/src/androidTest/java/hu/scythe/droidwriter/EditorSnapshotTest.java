@@ -0,0 +1,230 @@
+package hu.scythe.droidwriter;
+
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.Html;
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AbsoluteSizeSpan;
+import android.text.style.AlignmentSpan;
+import android.text.style.BulletSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.ImageSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+import android.view.View;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import hu.scythe.droidwriter.customEditText.ClickableTableSpan;
+import hu.scythe.droidwriter.customEditText.DrawTableLinkSpan;
+import hu.scythe.droidwriter.customEditText.NumberSpan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes styled text with {@link EditorSnapshot} and reads it back, and saves and restores the
+ * state of a {@link DroidWriterEditText} through a parcel.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EditorSnapshotTest {
+
+    private static final Html.ImageGetter NO_IMAGES = new Html.ImageGetter() {
+        @Override
+        public Drawable getDrawable(String source) {
+            return null;
+        }
+    };
+
+    @Test
+    public void restoresTextSpansAndSelection() throws IOException {
+        SpannableStringBuilder text = newStyledText();
+
+        EditorSnapshot snapshot = read(write(text, 3, 7));
+
+        assertEquals(text.toString(), snapshot.text.toString());
+        assertEquals(3, snapshot.selectionStart);
+        assertEquals(7, snapshot.selectionEnd);
+        assertEquals(describeSpans(text), describeSpans((Spanned) snapshot.text));
+    }
+
+    @Test
+    public void restoresImagesOfSavedSize() throws IOException {
+        SpannableStringBuilder text = new SpannableStringBuilder("a\uFFFCb");
+        Drawable drawable = new ColorDrawable(Color.RED);
+        drawable.setBounds(0, 0, 40, 30);
+        text.setSpan(new ImageSpan(drawable, "img.png", ImageSpan.ALIGN_BASELINE), 1, 2,
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        // the image getter has no image, a placeholder of the saved size is used
+        Spanned restored = (Spanned) read(write(text, 0, 0)).text;
+        ImageSpan[] images = restored.getSpans(0, restored.length(), ImageSpan.class);
+
+        assertEquals(1, images.length);
+        assertEquals("img.png", images[0].getSource());
+        assertEquals(ImageSpan.ALIGN_BASELINE, images[0].getVerticalAlignment());
+        assertEquals(new Rect(0, 0, 40, 30), images[0].getDrawable().getBounds());
+    }
+
+    @Test
+    public void rejectsDamagedSnapshots() throws IOException {
+        byte[] snapshot = write(newStyledText(), 0, 0);
+
+        try {
+            read(Arrays.copyOf(snapshot, snapshot.length - 3));
+            fail("read a truncated snapshot");
+        } catch (EOFException expected) {
+            // the span table ends early
+        }
+
+        snapshot[0]++;
+        try {
+            read(snapshot);
+            fail("read a snapshot without magic");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("snapshot"));
+        }
+    }
+
+    @Test
+    @UiThreadTest
+    public void savesViewStateAsSnapshot() {
+        DroidWriterEditText editor = new DroidWriterEditText(InstrumentationRegistry.getTargetContext());
+        SpannableStringBuilder text = newStyledText();
+        editor.setText(text);
+        editor.setSelection(2, 5);
+
+        Parcel parcel = Parcel.obtain();
+        Parcelable state;
+        try {
+            parcel.writeParcelable(editor.onSaveInstanceState(), 0);
+            parcel.setDataPosition(0);
+            state = parcel.readParcelable(DroidWriterEditText.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+        assertTrue(state instanceof DroidWriterEditText.SavedState);
+
+        DroidWriterEditText restored = new DroidWriterEditText(InstrumentationRegistry.getTargetContext());
+        restored.setClickableTableSpan(new TableSpan());
+        restored.onRestoreInstanceState(state);
+
+        assertEquals(text.toString(), restored.getText().toString());
+        assertEquals(2, restored.getSelectionStart());
+        assertEquals(5, restored.getSelectionEnd());
+        assertEquals(editor.getTextHTML(), restored.getTextHTML());
+        TableSpan[] tables = restored.getText().getSpans(0, restored.length(), TableSpan.class);
+        assertEquals(1, tables.length);
+        assertEquals("<table><tr><td>x</td></tr></table>", tables[0].getTableHtml());
+    }
+
+    /**
+     * Paragraphs with character styles, a link, a numbered item, a quote, a bullet and a table
+     */
+    private static SpannableStringBuilder newStyledText() {
+        SpannableStringBuilder text = new SpannableStringBuilder(
+                "Bold and underlined \u00E9\n" + "numbered item\n" + "quoted\n" + "bullet\n" + "table\n");
+        text.setSpan(new StyleSpan(1), 0, 4, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        text.setSpan(new UnderlineSpan(), 9, 19, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        text.setSpan(new ForegroundColorSpan(Color.BLUE), 5, 8, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(new AbsoluteSizeSpan(18, true), 0, 21, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(new URLSpan("https://example.com/?a=1&b=2"), 9, 12, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(new AlignmentSpan.Standard(Layout.Alignment.ALIGN_CENTER), 0, 22, Spanned.SPAN_PARAGRAPH);
+        text.setSpan(new NumberSpan(10, "3."), 22, 36, Spanned.SPAN_PARAGRAPH);
+        text.setSpan(new QuoteSpan(Color.GRAY), 36, 43, Spanned.SPAN_PARAGRAPH);
+        text.setSpan(new BulletSpan(8, Color.GREEN), 43, 50, Spanned.SPAN_PARAGRAPH);
+
+        DrawTableLinkSpan tableLink = new DrawTableLinkSpan();
+        tableLink.setTableLinkText("Tap for table");
+        tableLink.setTextSize(24f);
+        tableLink.setTextColor(Color.BLUE);
+        text.setSpan(tableLink, 50, 55, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        TableSpan table = new TableSpan();
+        table.setTableHtml("<table><tr><td>x</td></tr></table>");
+        text.setSpan(table, 50, 55, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return text;
+    }
+
+    /**
+     * @return the class, range, flags and parameters of every span of text, in order
+     */
+    private static String describeSpans(Spanned text) {
+        StringBuilder description = new StringBuilder();
+        for (Object span : text.getSpans(0, text.length(), Object.class)) {
+            description.append(span.getClass().getSimpleName()).append(' ')
+                    .append(text.getSpanStart(span)).append(' ')
+                    .append(text.getSpanEnd(span)).append(' ')
+                    .append(text.getSpanFlags(span)).append(' ');
+            if (span instanceof StyleSpan) {
+                description.append(((StyleSpan) span).getStyle());
+            } else if (span instanceof ForegroundColorSpan) {
+                description.append(((ForegroundColorSpan) span).getForegroundColor());
+            } else if (span instanceof AbsoluteSizeSpan) {
+                description.append(((AbsoluteSizeSpan) span).getSize()).append(((AbsoluteSizeSpan) span).getDip());
+            } else if (span instanceof URLSpan) {
+                description.append(((URLSpan) span).getURL());
+            } else if (span instanceof AlignmentSpan) {
+                description.append(((AlignmentSpan) span).getAlignment());
+            } else if (span instanceof NumberSpan) {
+                description.append(((NumberSpan) span).getGapWidth()).append(((NumberSpan) span).getNumber());
+            } else if (span instanceof QuoteSpan) {
+                description.append(((QuoteSpan) span).getColor());
+            } else if (span instanceof BulletSpan) {
+                description.append(((BulletSpan) span).getLeadingMargin(true));
+            } else if (span instanceof DrawTableLinkSpan) {
+                DrawTableLinkSpan tableLink = (DrawTableLinkSpan) span;
+                description.append(tableLink.getTableLinkText()).append(tableLink.getTextSize())
+                        .append(tableLink.getTextColor());
+            } else if (span instanceof ClickableTableSpan) {
+                description.append(((ClickableTableSpan) span).getTableHtml());
+            }
+            description.append('\n');
+        }
+        return description.toString();
+    }
+
+    private static byte[] write(Spanned text, int selectionStart, int selectionEnd) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        EditorSnapshot.write(text, selectionStart, selectionEnd, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static EditorSnapshot read(byte[] snapshot) throws IOException {
+        return EditorSnapshot.read(new DataInputStream(new ByteArrayInputStream(snapshot)), NO_IMAGES,
+                new TableSpan());
+    }
+
+    private static final class TableSpan extends ClickableTableSpan {
+        @Override
+        public ClickableTableSpan newInstance() {
+            return new TableSpan();
+        }
+
+        @Override
+        public void onClick(View widget) {
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package hu.scythe.droidwriter;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.text.Editable;
+import android.text.Html;
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AlignmentSpan;
+import android.text.style.BulletSpan;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+import android.text.style.QuoteSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares {@link HtmlSerializer} with the framework's Html.toHtml, so it runs on a device
+ */
+@RunWith(AndroidJUnit4.class)
+public class HtmlSerializerTest {
+
+    // Latin, Hebrew, spaces, and newlines for empty lines and new paragraphs
+    private static final String ALPHABET = "ab \u05D0\u05D1 \n\n<&";
+
+    @Test
+    public void matchesHtmlToHtmlAfterRandomEdits() throws IOException {
+        for (long seed = 0; seed < 30; seed++) {
+            checkRandomEdits(new Random(seed), new SpannableStringBuilder());
+            checkRandomEdits(new Random(seed), new RopeEditable());
+        }
+    }
+
+    @Test
+    public void writesParagraphStylesOfPartialLines() throws IOException {
+        SpannableStringBuilder text = new SpannableStringBuilder("one\ntwo\n\nthree\u05D0\n");
+        text.setSpan(new QuoteSpan(), 2, 10, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(new AlignmentSpan.Standard(Layout.Alignment.ALIGN_CENTER), 6, 16,
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(new StyleSpan(1), 0, 12, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        assertEquals(Html.toHtml(text), new HtmlSerializer().toHtml(text));
+    }
+
+    private static void checkRandomEdits(Random random, Editable text) throws IOException {
+        HtmlSerializer serializer = new HtmlSerializer();
+        for (int step = 0; step < 200; step++) {
+            int length = text.length();
+            int start = random.nextInt(length + 1);
+            int end = start + random.nextInt(Math.min(length - start, 10) + 1);
+            switch (random.nextInt(6)) {
+                case 0:
+                case 1:
+                    text.replace(start, end, randomText(random));
+                    break;
+                case 2:
+                    text.delete(start, end);
+                    break;
+                case 3:
+                    text.setSpan(newCharacterStyle(random), start, end, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+                    break;
+                case 4:
+                    text.setSpan(newParagraphStyle(random), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    break;
+                default: {
+                    // not the serializer, which watches the text
+                    Object[] spans = random.nextBoolean()
+                            ? text.getSpans(0, text.length(), CharacterStyle.class)
+                            : text.getSpans(0, text.length(), ParagraphStyle.class);
+                    if (spans.length > 0) {
+                        text.removeSpan(spans[random.nextInt(spans.length)]);
+                    }
+                    break;
+                }
+            }
+
+            if (random.nextInt(4) == 0) {
+                String expected = Html.toHtml(text);
+                assertEquals(expected, serializer.toHtml(text));
+                StringBuilder streamed = new StringBuilder();
+                serializer.writeHtml(text, streamed);
+                assertEquals(expected, streamed.toString());
+            }
+        }
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder inserted = new StringBuilder();
+        for (int i = 1 + random.nextInt(6); i > 0; i--) {
+            inserted.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return inserted.toString();
+    }
+
+    private static Object newCharacterStyle(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return new StyleSpan(1 + random.nextInt(3));
+            case 1:
+                return new UnderlineSpan();
+            default:
+                return new URLSpan("http://example.com/");
+        }
+    }
+
+    private static Object newParagraphStyle(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return new QuoteSpan();
+            case 1:
+                return new BulletSpan();
+            default:
+                Layout.Alignment[] alignments = Layout.Alignment.values();
+                return new AlignmentSpan.Standard(alignments[random.nextInt(alignments.length)]);
+        }
+    }
+}
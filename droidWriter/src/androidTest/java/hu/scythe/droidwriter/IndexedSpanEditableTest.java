@@ -0,0 +1,136 @@
+package hu.scythe.droidwriter;
+
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Applies the same random changes to an {@link IndexedSpanEditable} and a SpannableStringBuilder,
+ * the model, and compares what they return. The order of getSpans is the one of Android N.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = 24)
+public class IndexedSpanEditableTest {
+
+    private static final int[] FLAGS = {
+            Spanned.SPAN_INCLUSIVE_EXCLUSIVE, Spanned.SPAN_INCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, Spanned.SPAN_EXCLUSIVE_INCLUSIVE};
+
+    private static final Class<?>[] INDEXED = {StyleSpan.class, UnderlineSpan.class};
+
+    @Test
+    public void keepsOrderOfMovedSpans() {
+        IndexedSpanEditable text = new IndexedSpanEditable("abcdef");
+        StyleSpan first = new StyleSpan(1);
+        StyleSpan second = new StyleSpan(2);
+        text.setSpan(first, 0, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(second, 1, 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        // moved before the second span, still returned after it
+        text.setSpan(second, 0, 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(first, 3, 6, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        assertArrayEquals(new Object[]{first, second}, text.getSpans(0, 6, StyleSpan.class));
+
+        StyleSpan important = new StyleSpan(3);
+        text.setSpan(important, 4, 5, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE | (1 << Spanned.SPAN_PRIORITY_SHIFT));
+        assertArrayEquals(new Object[]{important, first, second}, text.getSpans(0, 6, StyleSpan.class));
+    }
+
+    @Test
+    public void matchesSpannableStringBuilderAfterRandomChanges() {
+        for (long seed = 0; seed < 20; seed++) {
+            checkRandomChanges(new Random(seed));
+        }
+    }
+
+    private static void checkRandomChanges(Random random) {
+        IndexedSpanEditable text = new IndexedSpanEditable();
+        SpannableStringBuilder model = new SpannableStringBuilder();
+        ArrayList<Object> spans = new ArrayList<>();
+
+        for (int step = 0; step < 500; step++) {
+            int length = model.length();
+            int start = random.nextInt(length + 1);
+            int end = start + random.nextInt(Math.min(length - start, 20) + 1);
+            switch (random.nextInt(6)) {
+                case 0:
+                case 1: {
+                    CharSequence inserted = randomText(random);
+                    text.replace(start, end, inserted);
+                    model.replace(start, end, inserted);
+                    break;
+                }
+                case 2:
+                    text.delete(start, end);
+                    model.delete(start, end);
+                    break;
+                case 3:
+                case 4: {
+                    Object span = spans.isEmpty() || random.nextBoolean()
+                            ? newSpan(random) : spans.get(random.nextInt(spans.size()));
+                    int flags = FLAGS[random.nextInt(FLAGS.length)]
+                            | (random.nextInt(4) == 0 ? random.nextInt(3) << Spanned.SPAN_PRIORITY_SHIFT : 0);
+                    text.setSpan(span, start, end, flags);
+                    model.setSpan(span, start, end, flags);
+                    spans.add(span);
+                    break;
+                }
+                default:
+                    if (!spans.isEmpty()) {
+                        Object span = spans.remove(random.nextInt(spans.size()));
+                        text.removeSpan(span);
+                        model.removeSpan(span);
+                    }
+                    break;
+            }
+            assertMatches(model, text, random);
+        }
+    }
+
+    private static void assertMatches(SpannableStringBuilder model, IndexedSpanEditable text, Random random) {
+        assertEquals(model.toString(), text.toString());
+        for (int i = 0; i < 5; i++) {
+            int length = model.length();
+            int start = random.nextInt(length + 1);
+            int end = start + random.nextInt(length - start + 1);
+            for (Class<?> kind : INDEXED) {
+                Object[] expected = model.getSpans(start, end, kind);
+                assertArrayEquals(expected, text.getSpans(start, end, kind));
+                for (Object span : expected) {
+                    assertEquals(model.getSpanStart(span), text.getSpanStart(span));
+                    assertEquals(model.getSpanEnd(span), text.getSpanEnd(span));
+                }
+            }
+        }
+    }
+
+    /**
+     * Text with a span sometimes, which is copied into both
+     */
+    private static CharSequence randomText(Random random) {
+        SpannableStringBuilder inserted = new SpannableStringBuilder();
+        for (int i = 1 + random.nextInt(8); i > 0; i--) {
+            inserted.append(random.nextInt(8) == 0 ? '\n' : (char) ('a' + random.nextInt(26)));
+        }
+        if (random.nextInt(4) == 0) {
+            inserted.setSpan(newSpan(random), 0, inserted.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return inserted;
+    }
+
+    private static Object newSpan(Random random) {
+        return random.nextBoolean() ? new StyleSpan(1 + random.nextInt(3)) : new UnderlineSpan();
+    }
+}
@@ -0,0 +1,99 @@
+package hu.scythe.droidwriter;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays the same synthetic typing trace on a SpannableStringBuilder and a RopeEditable holding
+ * a large styled document and logs the time each takes. After every keystroke it queries the
+ * spans around the cursor like the layout of the edited line does.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RopeEditableBenchmark {
+
+    private static final String TAG = "RopeEditableBenchmark";
+
+    private static final int DOCUMENT_LENGTH = 1000000;
+    private static final int LINE_LENGTH = 80;
+    private static final int KEYSTROKES = 5000;
+
+    @Test
+    public void typesIntoLargeDocument() {
+        CharSequence document = newDocument();
+        // warm up both before measuring
+        replay(new SpannableStringBuilder(document), KEYSTROKES / 10);
+        replay(new RopeEditable(document), KEYSTROKES / 10);
+
+        Editable builder = new SpannableStringBuilder(document);
+        long builderTime = replay(builder, KEYSTROKES);
+        Editable rope = new RopeEditable(document);
+        long ropeTime = replay(rope, KEYSTROKES);
+
+        Log.i(TAG, "SpannableStringBuilder: " + builderTime / KEYSTROKES + " ns per keystroke");
+        Log.i(TAG, "RopeEditable: " + ropeTime / KEYSTROKES + " ns per keystroke");
+        assertEquals(builder.toString(), rope.toString());
+    }
+
+    /**
+     * Lines of text with a bold word and an underlined phrase in each
+     */
+    private static CharSequence newDocument() {
+        SpannableStringBuilder document = new SpannableStringBuilder();
+        while (document.length() < DOCUMENT_LENGTH) {
+            int lineStart = document.length();
+            for (int i = 0; i < LINE_LENGTH - 1; i++) {
+                document.append(i % 8 == 7 ? ' ' : (char) ('a' + i % 26));
+            }
+            document.append('\n');
+            document.setSpan(new StyleSpan(1), lineStart + 8, lineStart + 15, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            document.setSpan(new UnderlineSpan(), lineStart + 40, lineStart + 70, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return document;
+    }
+
+    /**
+     * @return nanoseconds taken by the keystrokes
+     */
+    private static long replay(Editable text, int keystrokes) {
+        Random random = new Random(1);
+        int cursor = text.length() / 2;
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < keystrokes; i++) {
+            if (i % 200 == 0) {
+                // the user moves to another place of the document
+                cursor = random.nextInt(text.length());
+            }
+            if (random.nextInt(10) == 0 && cursor > 0) {
+                text.delete(cursor - 1, cursor);
+                cursor--;
+            } else {
+                text.insert(cursor, random.nextInt(6) == 0 ? " " : "e");
+                cursor++;
+            }
+
+            int lineStart = Math.max(0, cursor - LINE_LENGTH);
+            int lineEnd = Math.min(text.length(), cursor + LINE_LENGTH);
+            found += text.getSpans(lineStart, lineEnd, Object.class).length;
+            for (int position = lineStart; position < lineEnd; ) {
+                position = text.nextSpanTransition(position, lineEnd, Object.class);
+                found++;
+            }
+        }
+        long time = System.nanoTime() - start;
+        Log.d(TAG, text.getClass().getSimpleName() + " found " + found);
+        return time;
+    }
+}
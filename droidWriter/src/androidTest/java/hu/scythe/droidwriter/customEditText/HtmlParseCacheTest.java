@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.Html;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ImageSpan;
+import android.widget.TextView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copies of cached documents with images, which have to look like a fresh parse
+ */
+@RunWith(AndroidJUnit4.class)
+public class HtmlParseCacheTest {
+
+    private final HtmlParseCache cache = new HtmlParseCache(100 * 1024);
+
+    private final HtmlParseCache.Key key = new HtmlParseCache.Key("<p>a<img src=\"img.png\">b</p>", 0f,
+            false, true, null, null, new HtmlTagRewriter(), null,
+            Collections.<HtmlPostProcessor>emptyList());
+
+    @Test
+    public void keepsAlignmentAndSizeOfImages() {
+        Drawable parsed = new ColorDrawable(Color.RED);
+        parsed.setBounds(0, 0, 40, 30);
+        cache.put(key, textWithImage(new ImageSpan(parsed, "img.png", ImageSpan.ALIGN_BASELINE)));
+
+        // a getter which doesn't know the size of the image yet
+        Spanned copy = cache.get(key, new Html.ImageGetter() {
+            @Override
+            public Drawable getDrawable(String source) {
+                return new ColorDrawable(Color.BLUE);
+            }
+        });
+
+        ImageSpan[] images = copy.getSpans(0, copy.length(), ImageSpan.class);
+        assertEquals(1, images.length);
+        assertNotSame(parsed, images[0].getDrawable());
+        assertEquals("img.png", images[0].getSource());
+        assertEquals(ImageSpan.ALIGN_BASELINE, images[0].getVerticalAlignment());
+        assertEquals(new Rect(0, 0, 40, 30), images[0].getDrawable().getBounds());
+    }
+
+    @Test
+    @UiThreadTest
+    public void fetchesImagesOfDeclaredSizeAgain() {
+        TextView view = new TextView(InstrumentationRegistry.getTargetContext());
+        HtmlHttpImageGetter getter = new HtmlHttpImageGetter(view);
+        // loads are never run
+        getter.setImageLoader(new ImageLoader(new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+            }
+        }, 4, 2));
+        HtmlSourceIndex index = new HtmlSourceIndex();
+        index.addImage("https://example.com/img.png", 120, 80);
+        Drawable parsed = getter.withDeclaredSizes(index).getDrawable("https://example.com/img.png");
+        cache.put(key, textWithImage(new ImageSpan(parsed, "https://example.com/img.png")));
+
+        Spanned copy = cache.get(key, getter);
+
+        ImageSpan[] images = copy.getSpans(0, copy.length(), ImageSpan.class);
+        assertEquals(1, images.length);
+        assertTrue(images[0].getDrawable() instanceof HtmlHttpImageGetter.UrlDrawable);
+        HtmlHttpImageGetter.UrlDrawable drawable = (HtmlHttpImageGetter.UrlDrawable) images[0].getDrawable();
+        assertNotSame(parsed, drawable);
+        // sized like the loaded image will be
+        assertEquals(120, drawable.declaredWidth);
+        assertEquals(80, drawable.declaredHeight);
+        assertEquals(new Rect(0, 0, 120, 80), drawable.getBounds());
+        assertEquals(ImageSpan.ALIGN_BOTTOM, images[0].getVerticalAlignment());
+    }
+
+    private static Spanned textWithImage(ImageSpan span) {
+        SpannableStringBuilder text = new SpannableStringBuilder("a\uFFFCb");
+        text.setSpan(span, 1, 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return text;
+    }
+}
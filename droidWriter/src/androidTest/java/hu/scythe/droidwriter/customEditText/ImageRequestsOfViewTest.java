@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.Html;
+import android.widget.TextView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Image getters and request managers of real views, which are never attached to a window here.
+ * The loads are only queued, nothing is downloaded.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageRequestsOfViewTest {
+
+    private final List<Runnable> loads = new ArrayList<>();
+
+    private final ImageLoader loader = new ImageLoader(new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            loads.add(command);
+        }
+    }, 4, 2);
+
+    @Test
+    @UiThreadTest
+    public void holdsRequestsOfViewNotAttachedYet() {
+        TextView view = new TextView(InstrumentationRegistry.getTargetContext());
+        HtmlHttpImageGetter getter = new HtmlHttpImageGetter(view);
+        getter.setImageLoader(loader);
+
+        getter.getDrawable("https://example.com/a.png");
+        ImageRequestManager manager = ImageRequestManager.get(view);
+        assertEquals(0, loads.size());
+        assertEquals(0, manager.getActiveCount());
+
+        manager.onViewAttachedToWindow(view);
+        assertEquals(1, loads.size());
+        assertEquals(1, manager.getActiveCount());
+
+        // a new document drops the requests
+        ImageRequestManager.cancelAll(view);
+        assertEquals(0, manager.getActiveCount());
+        assertSame(manager, ImageRequestManager.get(view));
+    }
+
+    @Test
+    @UiThreadTest
+    public void sizesPlaceholdersAsDeclared() {
+        TextView view = new TextView(InstrumentationRegistry.getTargetContext());
+        HtmlHttpImageGetter getter = new HtmlHttpImageGetter(view);
+        getter.setImageLoader(loader);
+        HtmlSourceIndex index = new HtmlSourceIndex();
+        index.addImage("https://example.com/a.png", 120, 80);
+        index.addImage("https://example.com/b.png", 0, 30);
+
+        Html.ImageGetter documentGetter = getter.withDeclaredSizes(index);
+        Drawable declared = documentGetter.getDrawable("https://example.com/a.png");
+        Drawable heightOnly = documentGetter.getDrawable("https://example.com/b.png");
+        Drawable undeclared = documentGetter.getDrawable("https://example.com/c.png");
+
+        // in pixels, like the bitmaps of undeclared images
+        assertEquals(new Rect(0, 0, 120, 80), declared.getBounds());
+        // the other side is known once the image is
+        assertEquals(new Rect(), heightOnly.getBounds());
+        assertEquals(new Rect(), undeclared.getBounds());
+    }
+}
@@ -3,24 +3,48 @@ package hu.scythe.droidwriter;
 import android.content.Context;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.text.Editable;
 import android.text.Html;
+import android.text.NoCopySpan;
 import android.text.Selection;
 import android.text.Spannable;
-import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.SpanWatcher;
 import android.text.Spanned;
+import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.text.style.CharacterStyle;
-import android.text.style.RelativeSizeSpan;
 import android.text.style.StyleSpan;
 import android.text.style.UnderlineSpan;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ToggleButton;
 
 import org.sufficientlysecure.htmltextview.HtmlEditText;
 
+import hu.scythe.droidwriter.customEditText.ClickableTableSpan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 
 public class DroidWriterEditText extends HtmlEditText {
 
@@ -28,9 +52,15 @@ public class DroidWriterEditText extends HtmlEditText {
     public static final String TAG = "DroidWriter";
 
     // Style constants
-    private static final int STYLE_BOLD = 0;
-    private static final int STYLE_ITALIC = 1;
-    private static final int STYLE_UNDERLINED = 2;
+    public static final int STYLE_BOLD = 0;
+    public static final int STYLE_ITALIC = 1;
+    public static final int STYLE_UNDERLINED = 2;
+
+    // Longest text before and after an edit whose style spans are compacted after it
+    private static final int MAX_COMPACTED_LENGTH = 4096;
+
+    // Default estimated size of the undo history in bytes
+    private static final int DEFAULT_UNDO_BUDGET = 256 * 1024;
 
     // Optional styling button references
     private ToggleButton boldToggle;
@@ -40,6 +70,44 @@ public class DroidWriterEditText extends HtmlEditText {
     // SupportHtml image getter that handles the loading of inline images
     private Html.ImageGetter imageGetter;
 
+    // Prototype of the table spans restored from snapshots, they are dropped if null
+    private ClickableTableSpan clickableTableSpan;
+
+    // Bold, italic and underline of every character. The style spans are materialized from it
+    // for the changed ranges only.
+    private StyleRuns styleRuns;
+
+    // Set while setText replaces the text, the model is rebuilt afterwards
+    private boolean settingText;
+
+    // Caches the HTML of the lines of the text for getTextHTML
+    private final HtmlSerializer htmlSerializer = new HtmlSerializer();
+
+    // Reverse deltas of the changes, for undo and redo
+    private UndoJournal undoJournal;
+
+    // Set while an undo or redo changes the text, the change is recorded by the journal itself
+    private boolean applyingHistory;
+
+    // Styles of the text inserted by an undo or redo, used instead of the toggle buttons
+    private int[] restoredRuns;
+
+    // Greater than 0 between beginFormatBatch and endFormatBatch
+    private int formatBatchDepth;
+
+    // Ranges whose styles changed in the current batch
+    private final RangeSet formatBatchRanges = new RangeSet();
+
+    // Styles of the last selection, valid while the selection and the version of the model match
+    private int cachedSelectionStart = -1;
+    private int cachedSelectionEnd = -1;
+    private int cachedStylesVersion = -1;
+    private int cachedAttributes;
+
+    // Styles last reported to the listeners
+    private int formattingState;
+    private final List<OnFormattingStateChangedListener> formattingStateListeners = new ArrayList<>();
+
     public DroidWriterEditText(Context context) {
         super(context);
         initialize();
@@ -56,6 +124,14 @@ public class DroidWriterEditText extends HtmlEditText {
     }
 
     private void initialize() {
+        styleRuns = new StyleRuns();
+        undoJournal = new UndoJournal(DEFAULT_UNDO_BUDGET);
+
+        // Keep an index of the style spans, they are looked up on every selection change and
+        // keystroke
+        setEditableFactory(IndexedSpanEditable.Factory.getInstance());
+        setText(getText());
+
         // Add a default imageGetter
         imageGetter = new Html.ImageGetter() {
             @Override
@@ -71,7 +147,7 @@ public class DroidWriterEditText extends HtmlEditText {
 
     /**
      * When the user selects a section of the text, this method is used to
-     * toggle the defined style on it. If the selected text already has the
+     * toggle the defined style on it. If the whole selection already has the
      * style applied, we remove it, otherwise we apply it.
      *
      * @param style The styles that should be toggled on the selected text.
@@ -98,155 +174,555 @@ public class DroidWriterEditText extends HtmlEditText {
         // variables
         // should be equal (the cursor position).
         if (selectionEnd > selectionStart) {
-            Spannable str = this.getText();
-            boolean exists = false;
-            StyleSpan[] styleSpans;
-
-            switch (style) {
-                case STYLE_BOLD:
-                    styleSpans = str.getSpans(selectionStart, selectionEnd, StyleSpan.class);
-
-                    // If the selected text-part already has BOLD style on it, then
-                    // we need to disable it
-                    for (int i = 0; i < styleSpans.length; i++) {
-                        if (styleSpans[i].getStyle() == android.graphics.Typeface.BOLD) {
-                            str.removeSpan(styleSpans[i]);
-                            exists = true;
-                        }
-                    }
-
-                    // Else we set BOLD style on it
-                    if (!exists) {
-                        str.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), selectionStart, selectionEnd,
-                                getSpanFlag(getText(), selectionStart));
-                    }
-
-                    this.setSelection(selectionStart, selectionEnd);
-                    break;
-                case STYLE_ITALIC:
-                    styleSpans = str.getSpans(selectionStart, selectionEnd, StyleSpan.class);
-
-                    // If the selected text-part already has ITALIC style on it,
-                    // then we need to disable it
-                    for (int i = 0; i < styleSpans.length; i++) {
-                        if (styleSpans[i].getStyle() == android.graphics.Typeface.ITALIC) {
-                            str.removeSpan(styleSpans[i]);
-                            exists = true;
-                        }
-                    }
-
-                    // Else we set ITALIC style on it
-                    if (!exists) {
-                        str.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), selectionStart, selectionEnd,
-                                getSpanFlag(getText(), selectionStart));
-                    }
-
-                    this.setSelection(selectionStart, selectionEnd);
-                    break;
-                case STYLE_UNDERLINED:
-                    UnderlineSpan[] underSpan = str.getSpans(selectionStart, selectionEnd, UnderlineSpan.class);
-
-                    // If the selected text-part already has UNDERLINE style on it,
-                    // then we need to disable it
-                    for (int i = 0; i < underSpan.length; i++) {
-                        str.removeSpan(underSpan[i]);
-                        exists = true;
-                    }
-
-                    // Else we set UNDERLINE style on it
-                    if (!exists) {
-                        str.setSpan(new UnderlineSpan(), selectionStart, selectionEnd, getSpanFlag(getText(), selectionStart));
-                    }
-
-                    this.setSelection(selectionStart, selectionEnd);
-                    break;
+            boolean exists = (styleRuns.commonAttributes(selectionStart, selectionEnd) & toAttribute(style)) != 0;
+
+            setStyle(style, selectionStart, selectionEnd, !exists);
+
+            this.setSelection(selectionStart, selectionEnd);
+        }
+    }
+
+    /**
+     * Applies a style to [start, end) of the text.
+     *
+     * @param style {@link #STYLE_BOLD}, {@link #STYLE_ITALIC} or {@link #STYLE_UNDERLINED}
+     */
+    public void applyStyle(int style, int start, int end) {
+        setStyle(style, start, end, true);
+    }
+
+    /**
+     * Removes a style from [start, end) of the text.
+     *
+     * @param style {@link #STYLE_BOLD}, {@link #STYLE_ITALIC} or {@link #STYLE_UNDERLINED}
+     */
+    public void clearStyle(int style, int start, int end) {
+        setStyle(style, start, end, false);
+    }
+
+    /**
+     * Starts collecting the changes of {@link #applyStyle(int, int, int)} and
+     * {@link #clearStyle(int, int, int)}. They are applied to the style model in order, so a
+     * later change wins where ranges overlap, and the spans are only updated once, by the
+     * matching {@link #endFormatBatch()}. Batches can be nested.
+     */
+    public void beginFormatBatch() {
+        if (formatBatchDepth++ == 0) {
+            beginBatchEdit();
+        }
+        undoJournal.beginGroup();
+    }
+
+    /**
+     * Ends a batch started by {@link #beginFormatBatch()}. Ending the outermost batch updates
+     * the spans of the changed ranges, and the toggle buttons, once. The layout still reflows
+     * the paragraphs of every span added or removed then, but only those of the changed ranges.
+     */
+    public void endFormatBatch() {
+        if (formatBatchDepth == 0) {
+            throw new IllegalStateException("endFormatBatch() without beginFormatBatch()");
+        }
+        undoJournal.endGroup();
+        if (--formatBatchDepth > 0) {
+            return;
+        }
+
+        if (!formatBatchRanges.isEmpty()) {
+            updateBatchStyleSpans(getText());
+            formatBatchRanges.clear();
+        }
+        endBatchEdit();
+        onSelectionChanged(getSelectionStart(), getSelectionEnd());
+    }
+
+    private void setStyle(int style, int start, int end, boolean set) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("style range " + start + " ... " + end + " of " + length());
+        }
+        if (start == end) {
+            return;
+        }
+
+        if (!applyingHistory) {
+            undoJournal.record(new UndoJournal.Entry(start, end - start, null, styleRuns.getRuns(start, end)));
+        }
+        styleRuns.setAttributes(start, end, toAttribute(style), set);
+
+        if (formatBatchDepth > 0) {
+            formatBatchRanges.add(start, end);
+        } else {
+            updateStyleSpans(getText(), start, end);
+            onSelectionChanged(getSelectionStart(), getSelectionEnd());
+        }
+    }
+
+    /**
+     * Updates the spans of the ranges changed in the batch. Ranges in the same paragraph are
+     * updated together, as compacting the spans around one range reads the styles of the other
+     * one from its spans, which are not updated yet.
+     */
+    private void updateBatchStyleSpans(Editable editable) {
+        final int count = formatBatchRanges.size();
+        int i = 0;
+        while (i < count) {
+            int start = formatBatchRanges.getStart(i);
+            int end = formatBatchRanges.getEnd(i);
+            i++;
+            while (i < count && formatBatchRanges.getStart(i) - end <= MAX_COMPACTED_LENGTH
+                    && TextUtils.indexOf(editable, '\n', end, formatBatchRanges.getStart(i)) < 0) {
+                end = formatBatchRanges.getEnd(i);
+                i++;
             }
+            updateStyleSpans(editable, start, end);
         }
     }
 
     /**
      * This method makes sure that the optional style toggle buttons update
      * their state correctly when the user moves the cursor around the EditText,
-     * or when the user selects sections of the text.
+     * or when the user selects sections of the text. A cursor shows the styles of the
+     * character before it, or of the first character if it is at the beginning of the text.
      */
     @Override
     public void onSelectionChanged(int selStart, int selEnd) {
-        boolean boldExists = false;
-        boolean italicsExists = false;
-        boolean underlinedExists = false;
+        // Called by the TextView constructor, before the fields are set
+        if (styleRuns == null) {
+            return;
+        }
+
+        int attributes = getFormattingAttributes(selStart, selEnd);
+
+        // Display the format settings
+        if (boldToggle != null && boldToggle.isChecked() != ((attributes & StyleRuns.BOLD) != 0)) {
+            boldToggle.setChecked((attributes & StyleRuns.BOLD) != 0);
+        }
+
+        if (italicsToggle != null && italicsToggle.isChecked() != ((attributes & StyleRuns.ITALIC) != 0)) {
+            italicsToggle.setChecked((attributes & StyleRuns.ITALIC) != 0);
+        }
+
+        if (underlineToggle != null && underlineToggle.isChecked() != ((attributes & StyleRuns.UNDERLINE) != 0)) {
+            underlineToggle.setChecked((attributes & StyleRuns.UNDERLINE) != 0);
+        }
+
+        if (attributes != formattingState) {
+            formattingState = attributes;
+            for (int i = 0; i < formattingStateListeners.size(); i++) {
+                formattingStateListeners.get(i).onFormattingStateChanged((attributes & StyleRuns.BOLD) != 0,
+                        (attributes & StyleRuns.ITALIC) != 0, (attributes & StyleRuns.UNDERLINE) != 0);
+            }
+        }
+    }
+
+    /**
+     * @return the styles covering the selection, or the character before the cursor. With the
+     * cursor at the beginning, where no character precedes it, the styles of the first
+     * character, which text typed there continues. Cached until the selection or the styles
+     * change.
+     */
+    private int getFormattingAttributes(int selStart, int selEnd) {
+        if (selStart == cachedSelectionStart && selEnd == cachedSelectionEnd
+                && styleRuns.getVersion() == cachedStylesVersion) {
+            return cachedAttributes;
+        }
+
+        int attributes = 0;
 
         // If the user only placed the cursor around
         if (selStart > 0 && selStart == selEnd) {
-            CharacterStyle[] styleSpans = this.getText().getSpans(selStart - 1, selStart, CharacterStyle.class);
-
-            for (int i = 0; i < styleSpans.length; i++) {
-                if (styleSpans[i] instanceof StyleSpan) {
-                    if (((StyleSpan) styleSpans[i]).getStyle() == android.graphics.Typeface.BOLD) {
-                        boldExists = true;
-                    } else if (((StyleSpan) styleSpans[i]).getStyle() == android.graphics.Typeface.ITALIC) {
-                        italicsExists = true;
-                    } else if (((StyleSpan) styleSpans[i]).getStyle() == android.graphics.Typeface.BOLD_ITALIC) {
-                        italicsExists = true;
-                        boldExists = true;
-                    }
-                } else if (styleSpans[i] instanceof UnderlineSpan) {
-                    underlinedExists = true;
+            attributes = styleRuns.attributesAt(selStart - 1);
+        }
+
+        // Else if the user selected multiple characters
+        else if (selStart != selEnd) {
+            attributes = styleRuns.commonAttributes(Math.min(selStart, selEnd), Math.max(selStart, selEnd));
+        }
+
+        // Else the cursor is at the beginning. The span based check did the same: getSpans(0, 0)
+        // returns the spans starting at 0, i.e. those of the first character.
+        else if (styleRuns.length() > 0) {
+            attributes = styleRuns.attributesAt(0);
+        }
+
+        cachedSelectionStart = selStart;
+        cachedSelectionEnd = selEnd;
+        cachedStylesVersion = styleRuns.getVersion();
+        cachedAttributes = attributes;
+        return attributes;
+    }
+
+    // Listeners notified when the styles at the cursor or of the selection change, e.g. to
+    // update a toolbar
+    public void addOnFormattingStateChangedListener(OnFormattingStateChangedListener listener) {
+        formattingStateListeners.add(listener);
+    }
+
+    public void removeOnFormattingStateChangedListener(OnFormattingStateChangedListener listener) {
+        formattingStateListeners.remove(listener);
+    }
+
+    @Override
+    public void setText(CharSequence text, BufferType type) {
+        settingText = true;
+        try {
+            super.setText(text, type);
+        } finally {
+            settingText = false;
+        }
+
+        // Called by the TextView constructor, before the fields are set
+        if (styleRuns != null) {
+            rebuildStyleRuns();
+            undoJournal.clear();
+        }
+    }
+
+    /**
+     * Reverts the last change of the text or its styles. Consecutive typing is reverted one
+     * word at a time, a format batch at once.
+     *
+     * @return false if there is nothing to undo
+     */
+    public boolean undo() {
+        return applyHistory(true);
+    }
+
+    /**
+     * Repeats the last change reverted by {@link #undo()}
+     *
+     * @return false if there is nothing to redo
+     */
+    public boolean redo() {
+        return applyHistory(false);
+    }
+
+    public boolean canUndo() {
+        return undoJournal.canUndo();
+    }
+
+    public boolean canRedo() {
+        return undoJournal.canRedo();
+    }
+
+    // Forget the undo history, it is also cleared when the text is set
+    public void clearUndoHistory() {
+        undoJournal.clear();
+    }
+
+    /**
+     * Sets the estimated memory the undo history may use, the oldest changes are forgotten
+     * beyond it
+     */
+    public void setUndoBudget(int bytes) {
+        undoJournal.setBudget(bytes);
+    }
+
+    public int getUndoBudget() {
+        return undoJournal.getBudget();
+    }
+
+    private boolean applyHistory(boolean undo) {
+        UndoJournal.Applier applier = new UndoJournal.Applier() {
+            @Override
+            public UndoJournal.Entry apply(UndoJournal.Entry entry) {
+                return applyHistoryEntry(entry);
+            }
+        };
+
+        beginBatchEdit();
+        applyingHistory = true;
+        try {
+            return undo ? undoJournal.undo(applier) : undoJournal.redo(applier);
+        } finally {
+            applyingHistory = false;
+            endBatchEdit();
+            onSelectionChanged(getSelectionStart(), getSelectionEnd());
+        }
+    }
+
+    /**
+     * Puts the text and styles of entry back into its range
+     *
+     * @return the entry putting back what was replaced
+     */
+    private UndoJournal.Entry applyHistoryEntry(UndoJournal.Entry entry) {
+        Editable editable = getText();
+        int start = entry.start;
+        int end = start + entry.newLength;
+        if (end > editable.length() || end > styleRuns.length()) {
+            return null;
+        }
+
+        int[] runs = styleRuns.getRuns(start, end);
+        if (entry.oldText == null) {
+            styleRuns.setRuns(start, entry.oldRuns);
+            updateStyleSpans(editable, start, end);
+            setSelection(start, end);
+            return new UndoJournal.Entry(start, end - start, null, runs);
+        }
+
+        CharSequence text = copyText(editable, start, end);
+        restoredRuns = entry.oldRuns;
+        try {
+            editable.replace(start, end, entry.oldText);
+        } finally {
+            restoredRuns = null;
+        }
+        setSelection(start + entry.oldText.length());
+        return new UndoJournal.Entry(start, entry.oldText.length(), text, runs);
+    }
+
+    /**
+     * @return [start, end) of text with the spans inside it, except the style spans, which are
+     * restored from the style runs
+     */
+    private static CharSequence copyText(Spanned text, int start, int end) {
+        SpannableStringBuilder copy = null;
+        for (Object span : text.getSpans(start, end, Object.class)) {
+            int spanStart = text.getSpanStart(span);
+            int spanEnd = text.getSpanEnd(span);
+            int flags = text.getSpanFlags(span);
+            if (spanStart < start || spanEnd > end || spanStart == spanEnd
+                    || span instanceof StyleSpan || span instanceof UnderlineSpan
+                    || span instanceof NoCopySpan || span instanceof TextWatcher || span instanceof SpanWatcher
+                    || (flags & Spanned.SPAN_COMPOSING) != 0) {
+                continue;
+            }
+            if (copy == null) {
+                copy = new SpannableStringBuilder(TextUtils.substring(text, start, end));
+            }
+            copy.setSpan(span, spanStart - start, spanEnd - start, flags);
+        }
+        return copy != null ? copy : TextUtils.substring(text, start, end);
+    }
+
+    /**
+     * Merges the adjacent and overlapping style spans of the same style and drops the empty
+     * ones in the whole text. Spans set on the text directly are taken into account too.
+     *
+     * @return number of bold, italic and underline spans before and after the compaction
+     */
+    public SpanCompaction compactStyleSpans() {
+        Editable editable = getText();
+        int spansBefore = countStyleSpans(editable, 0, editable.length());
+        rebuildStyleRuns();
+        return new SpanCompaction(spansBefore, countStyleSpans(editable, 0, editable.length()));
+    }
+
+    // Number of bold, italic and underline spans, a measure of the fragmentation of the text
+    public int getStyleSpanCount() {
+        Editable editable = getText();
+        return countStyleSpans(editable, 0, editable.length());
+    }
+
+    // Reads the styles of the whole text from its spans and replaces the spans with the minimal
+    // ones
+    private void rebuildStyleRuns() {
+        Editable editable = getText();
+        styleRuns.clear();
+        styleRuns.insert(0, editable.length(), 0);
+        readStyles(editable, 0, editable.length());
+        materializeStyles(editable, 0, editable.length());
+    }
+
+    /**
+     * Materializes the styles of [start, end), whose styles have changed in the model. If the
+     * paragraph around it has more spans than style runs, e.g. because spans were set on the
+     * text directly, the styles of the rest of the paragraph are read from its spans and the
+     * whole paragraph is compacted. The paragraph is limited to {@link #MAX_COMPACTED_LENGTH}
+     * characters before and after the range.
+     */
+    private void updateStyleSpans(Editable editable, int start, int end) {
+        int length = editable.length();
+        start = Math.min(start, length);
+        end = Math.min(end, length);
+        int paragraphStart = start;
+        int limit = Math.max(0, paragraphStart - MAX_COMPACTED_LENGTH);
+        while (paragraphStart > limit && editable.charAt(paragraphStart - 1) != '\n') {
+            paragraphStart--;
+        }
+        int paragraphEnd = end;
+        limit = Math.min(length, paragraphEnd + MAX_COMPACTED_LENGTH);
+        while (paragraphEnd < limit && editable.charAt(paragraphEnd) != '\n') {
+            paragraphEnd++;
+        }
+
+        if (countStyleSpans(editable, paragraphStart, paragraphEnd) > countStyleRuns(paragraphStart, paragraphEnd)) {
+            // Outside of the changed range the spans define the styles
+            styleRuns.setAttributes(paragraphStart, start, StyleRuns.ALL, false);
+            readStyles(editable, paragraphStart, start);
+            styleRuns.setAttributes(end, paragraphEnd, StyleRuns.ALL, false);
+            readStyles(editable, end, paragraphEnd);
+            materializeStyles(editable, paragraphStart, paragraphEnd);
+        } else {
+            materializeStyles(editable, start, end);
+        }
+    }
+
+    private int countStyleSpans(Spanned text, int start, int end) {
+        int count = text.getSpans(start, end, UnderlineSpan.class).length;
+        for (StyleSpan span : text.getSpans(start, end, StyleSpan.class)) {
+            if (toAttributes(span) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int countStyleRuns(int start, int end) {
+        int count = 0;
+        for (int attribute = StyleRuns.BOLD; attribute <= StyleRuns.UNDERLINE; attribute <<= 1) {
+            int position = styleRuns.firstWith(start, attribute);
+            while (position < end) {
+                count++;
+                position = styleRuns.firstWith(styleRuns.firstWithout(position, attribute), attribute);
+            }
+        }
+        return count;
+    }
+
+    // Sets the styles of the spans in [start, end) in the model
+    private void readStyles(Spanned text, int start, int end) {
+        for (StyleSpan span : text.getSpans(start, end, StyleSpan.class)) {
+            int attribute = toAttributes(span);
+            if (attribute != 0) {
+                styleRuns.setAttributes(Math.max(start, text.getSpanStart(span)),
+                        Math.min(end, text.getSpanEnd(span)), attribute, true);
+            }
+        }
+        for (UnderlineSpan span : text.getSpans(start, end, UnderlineSpan.class)) {
+            styleRuns.setAttributes(Math.max(start, text.getSpanStart(span)),
+                    Math.min(end, text.getSpanEnd(span)), StyleRuns.UNDERLINE, true);
+        }
+    }
+
+    /**
+     * Replaces the style spans around [start, end) with one span per run of each style in the
+     * model. The range is widened to the whole runs it touches, so spans never overlap or
+     * touch another span of the same style. Spans which already match a run are kept.
+     */
+    private void materializeStyles(Editable editable, int start, int end) {
+        int length = editable.length();
+        start = Math.min(start, length);
+        end = Math.min(end, length);
+
+        // Spans with both styles come from HTML or pasted text, they are split into one span per
+        // style
+        for (StyleSpan span : editable.getSpans(start, end, StyleSpan.class)) {
+            if (span.getStyle() == Typeface.BOLD_ITALIC) {
+                start = Math.min(start, editable.getSpanStart(span));
+                end = Math.max(end, editable.getSpanEnd(span));
+                editable.removeSpan(span);
+            }
+        }
+
+        materializeStyle(editable, start, end, StyleRuns.BOLD);
+        materializeStyle(editable, start, end, StyleRuns.ITALIC);
+        materializeStyle(editable, start, end, StyleRuns.UNDERLINE);
+    }
+
+    private void materializeStyle(Editable editable, int start, int end, int attribute) {
+        int length = editable.length();
+        List<CharacterStyle> spans;
+        boolean widened;
+        do {
+            // Widen to the runs touching the range
+            if (start > 0 && styleRuns.hasAttribute(start - 1, attribute)) {
+                start = styleRuns.lastWithout(start - 1, attribute) + 1;
+            }
+            if (end < length && styleRuns.hasAttribute(end, attribute)) {
+                end = styleRuns.firstWithout(end, attribute);
+            }
+
+            // and to the spans in it
+            widened = false;
+            spans = getStyleSpans(editable, start, end, attribute);
+            for (CharacterStyle span : spans) {
+                if (editable.getSpanStart(span) < start) {
+                    start = editable.getSpanStart(span);
+                    widened = true;
+                }
+                if (editable.getSpanEnd(span) > end) {
+                    end = editable.getSpanEnd(span);
+                    widened = true;
+                }
+            }
+        } while (widened);
+
+        int position = start;
+        while (position < end) {
+            int runStart = styleRuns.firstWith(position, attribute);
+            if (runStart >= end) {
+                break;
+            }
+            int runEnd = Math.min(styleRuns.firstWithout(runStart, attribute), end);
+
+            // While typing the span has already been extended over the new character
+            boolean kept = false;
+            for (int i = 0; i < spans.size() && !kept; i++) {
+                CharacterStyle span = spans.get(i);
+                if (editable.getSpanStart(span) == runStart && editable.getSpanEnd(span) == runEnd) {
+                    spans.remove(i);
+                    kept = true;
                 }
             }
+            if (!kept) {
+                editable.setSpan(newStyleSpan(attribute), runStart, runEnd, getSpanFlag(editable, runStart));
+            }
+            position = runEnd;
         }
 
-        // Else if the user selected multiple characters
-        else {
-            CharacterStyle[] styleSpans = this.getText().getSpans(selStart, selEnd, CharacterStyle.class);
-
-            for (int i = 0; i < styleSpans.length; i++) {
-                if (styleSpans[i] instanceof StyleSpan) {
-                    if (((StyleSpan) styleSpans[i]).getStyle() == android.graphics.Typeface.BOLD) {
-                        if (this.getText().getSpanStart(styleSpans[i]) <= selStart
-                                && this.getText().getSpanEnd(styleSpans[i]) >= selEnd) {
-                            boldExists = true;
-                        }
-                    } else if (((StyleSpan) styleSpans[i]).getStyle() == android.graphics.Typeface.ITALIC) {
-                        if (this.getText().getSpanStart(styleSpans[i]) <= selStart
-                                && this.getText().getSpanEnd(styleSpans[i]) >= selEnd) {
-                            italicsExists = true;
-                        }
-                    } else if (((StyleSpan) styleSpans[i]).getStyle() == android.graphics.Typeface.BOLD_ITALIC) {
-                        if (this.getText().getSpanStart(styleSpans[i]) <= selStart
-                                && this.getText().getSpanEnd(styleSpans[i]) >= selEnd) {
-                            italicsExists = true;
-                            boldExists = true;
-                        }
-                    }
-                } else if (styleSpans[i] instanceof UnderlineSpan) {
-                    if (this.getText().getSpanStart(styleSpans[i]) <= selStart
-                            && this.getText().getSpanEnd(styleSpans[i]) >= selEnd) {
-                        underlinedExists = true;
-                    }
+        for (CharacterStyle span : spans) {
+            editable.removeSpan(span);
+        }
+    }
+
+    private List<CharacterStyle> getStyleSpans(Spanned text, int start, int end, int attribute) {
+        List<CharacterStyle> spans = new ArrayList<>();
+        if (attribute == StyleRuns.UNDERLINE) {
+            Collections.addAll(spans, text.getSpans(start, end, UnderlineSpan.class));
+        } else {
+            for (StyleSpan span : text.getSpans(start, end, StyleSpan.class)) {
+                if (toAttributes(span) == attribute) {
+                    spans.add(span);
                 }
             }
         }
+        return spans;
+    }
 
-        // Display the format settings
-        if (boldToggle != null) {
-            if (boldExists)
-                boldToggle.setChecked(true);
-            else
-                boldToggle.setChecked(false);
+    private static int toAttribute(int style) {
+        switch (style) {
+            case STYLE_BOLD:
+                return StyleRuns.BOLD;
+            case STYLE_ITALIC:
+                return StyleRuns.ITALIC;
+            default:
+                return StyleRuns.UNDERLINE;
         }
+    }
 
-        if (italicsToggle != null) {
-            if (italicsExists)
-                italicsToggle.setChecked(true);
-            else
-                italicsToggle.setChecked(false);
+    private static int toAttributes(StyleSpan span) {
+        switch (span.getStyle()) {
+            case Typeface.BOLD:
+                return StyleRuns.BOLD;
+            case Typeface.ITALIC:
+                return StyleRuns.ITALIC;
+            case Typeface.BOLD_ITALIC:
+                return StyleRuns.BOLD | StyleRuns.ITALIC;
+            default:
+                return 0;
         }
+    }
 
-        if (underlineToggle != null) {
-            if (underlinedExists)
-                underlineToggle.setChecked(true);
-            else
-                underlineToggle.setChecked(false);
+    private static CharacterStyle newStyleSpan(int attribute) {
+        switch (attribute) {
+            case StyleRuns.BOLD:
+                return new StyleSpan(Typeface.BOLD);
+            case StyleRuns.ITALIC:
+                return new StyleSpan(Typeface.ITALIC);
+            default:
+                return new UnderlineSpan();
         }
     }
 
@@ -268,20 +744,140 @@ public class DroidWriterEditText extends HtmlEditText {
         this.setText(text);
     }
 
-    // Get and set styled HTML text
+    // Get and set styled HTML text, only the lines changed since the last call are converted
+    // again
     public String getTextHTML() {
-        return Html.toHtml(this.getText());
+        return htmlSerializer.toHtml(this.getText());
+    }
+
+    /**
+     * Writes the same HTML as {@link #getTextHTML()} to out, line by line, so the document is
+     * never built as one String
+     */
+    public void writeHtml(Appendable out) throws IOException {
+        htmlSerializer.writeHtml(this.getText(), out);
+    }
+
+    /**
+     * Writes the same HTML as {@link #getTextHTML()} to out in the given charset. The stream is
+     * flushed, but not closed.
+     */
+    public void writeHtml(OutputStream out, Charset charset) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, charset));
+        writeHtml(writer);
+        writer.flush();
     }
 
     public void setTextHTML(String text) {
         this.setText(Html.fromHtml(text, imageGetter, null));
     }
 
+    /**
+     * Saves the text, its spans and the selection in a compact binary snapshot, which is much
+     * faster to restore than HTML, e.g. for drafts on disk. The view saves its instance state as
+     * a snapshot by itself.
+     */
+    public byte[] saveSnapshot() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length() * 2 + 64);
+        try {
+            saveSnapshot(out);
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a snapshot to out, see {@link #saveSnapshot()}. The stream is flushed, but not closed.
+     */
+    public void saveSnapshot(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        EditorSnapshot.write(this.getText(), getSelectionStart(), getSelectionEnd(), data);
+        data.flush();
+    }
+
+    /**
+     * Restores the text, its spans and the selection from a snapshot of {@link #saveSnapshot()}.
+     * Images are loaded again by the image getter.
+     *
+     * @throws IOException if the snapshot is damaged or of an unknown version
+     */
+    public void restoreSnapshot(byte[] snapshot) throws IOException {
+        restoreSnapshot(new ByteArrayInputStream(snapshot));
+    }
+
+    /**
+     * Reads a snapshot from in, see {@link #restoreSnapshot(byte[])}. The stream is not closed,
+     * it may have been read past the end of the snapshot.
+     */
+    public void restoreSnapshot(InputStream in) throws IOException {
+        EditorSnapshot snapshot = EditorSnapshot.read(new DataInputStream(new BufferedInputStream(in)),
+                imageGetter, clickableTableSpan);
+        setText(snapshot.text);
+        if (snapshot.selectionStart >= 0 && snapshot.selectionEnd >= 0) {
+            setSelection(snapshot.selectionStart, snapshot.selectionEnd);
+        }
+    }
+
+    /**
+     * The text is saved as a snapshot by {@link #onSaveInstanceState()} instead of being frozen
+     * by TextView, which would parcel it a second time, span by span
+     */
+    @Override
+    public boolean getFreezesText() {
+        return false;
+    }
+
+    @Override
+    public Parcelable onSaveInstanceState() {
+        SavedState state = new SavedState(super.onSaveInstanceState());
+        state.snapshot = saveSnapshot();
+        return state;
+    }
+
+    @Override
+    public void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+
+        SavedState savedState = (SavedState) state;
+        if (savedState.snapshot != null) {
+            try {
+                restoreSnapshot(savedState.snapshot);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to restore the saved text", e);
+            }
+        }
+        // the selection saved by TextView is restored against the restored text
+        super.onRestoreInstanceState(savedState.getSuperState());
+    }
+
     // Set the default image getter that handles the loading of inline images
     public void setImageGetter(Html.ImageGetter imageGetter) {
         this.imageGetter = imageGetter;
     }
 
+    // Set the span of the tables restored from snapshots
+    public void setClickableTableSpan(ClickableTableSpan clickableTableSpan) {
+        this.clickableTableSpan = clickableTableSpan;
+    }
+
+    // Store the text in chunks instead of one buffer, which keeps edits far apart cheap in
+    // very large documents, see RopeEditable
+    public void setRopeStorageEnabled(boolean enabled) {
+        setEditableFactory(enabled ? RopeEditable.Factory.getInstance() : IndexedSpanEditable.Factory.getInstance());
+
+        int selectionStart = getSelectionStart();
+        int selectionEnd = getSelectionEnd();
+        setText(getText());
+        if (selectionStart >= 0 && selectionEnd <= length()) {
+            setSelection(selectionStart, selectionEnd);
+        }
+    }
+
     // Style toggle button setters
     public void setBoldToggleButton(ToggleButton button) {
         boldToggle = button;
@@ -341,314 +937,166 @@ public class DroidWriterEditText extends HtmlEditText {
         return Spannable.SPAN_EXCLUSIVE_INCLUSIVE;
     }
 
+    /**
+     * Notified when the styles at the cursor, or the styles covering the whole selection, change
+     */
+    public interface OnFormattingStateChangedListener {
+
+        void onFormattingStateChanged(boolean bold, boolean italic, boolean underline);
+    }
+
+    /**
+     * Number of style spans before and after {@link #compactStyleSpans()}
+     */
+    public static class SpanCompaction {
+        private final int spansBefore;
+        private final int spansAfter;
+
+        SpanCompaction(int spansBefore, int spansAfter) {
+            this.spansBefore = spansBefore;
+            this.spansAfter = spansAfter;
+        }
+
+        public int getSpansBefore() {
+            return spansBefore;
+        }
+
+        public int getSpansAfter() {
+            return spansAfter;
+        }
+    }
+
     private class DWTextWatcher implements TextWatcher {
-        private RelativeSizeSpan span;
-        private Spannable spannable;
+        // Range changed since the spans were last materialized, -1 if there is none. Nested
+        // changes made by other watchers are merged into it.
+        private int changeStart = -1;
+        private int changeEnd;
+
+        // Text removed by the current change, recorded in the history once the new text is known
+        private CharSequence removedText;
 
         @Override
         public void afterTextChanged(Editable editable) {
-//            int position = Selection.getSelectionStart(DroidWriterEditText.this.getText());
-//            if (position < 0) {
-//                position = 0;
-//            }
-//
-//            if (position > 0) {
-//                CharacterStyle[] appliedStyles = (CharacterStyle[])editable.getSpans(position - 1, position, CharacterStyle.class);
-//                StyleSpan currentBoldSpan = null;
-//                StyleSpan currentItalicSpan = null;
-//                UnderlineSpan currentUnderlineSpan = null;
-//
-//                int underLineStart;
-//                for(underLineStart = 0; underLineStart < appliedStyles.length; ++underLineStart) {
-//                    if (appliedStyles[underLineStart] instanceof StyleSpan) {
-//                        if (((StyleSpan)appliedStyles[underLineStart]).getStyle() == 1) {
-//                            currentBoldSpan = (StyleSpan)appliedStyles[underLineStart];
-//                        } else if (((StyleSpan)appliedStyles[underLineStart]).getStyle() == 2) {
-//                            currentItalicSpan = (StyleSpan)appliedStyles[underLineStart];
-//                        }
-//                    } else if (appliedStyles[underLineStart] instanceof UnderlineSpan) {
-//                        currentUnderlineSpan = (UnderlineSpan)appliedStyles[underLineStart];
-//                    }
-//                }
-//
-//                int underLineEnd;
-//                if (DroidWriterEditText.this.boldToggle != null) {
-//                    if (DroidWriterEditText.this.boldToggle.isChecked() && currentBoldSpan == null) {
-//                        editable.setSpan(new StyleSpan(1), position - 1, position, 34);
-//                    } else if (!DroidWriterEditText.this.boldToggle.isChecked() && currentBoldSpan != null) {
-//                        underLineStart = editable.getSpanStart(currentBoldSpan);
-//                        underLineEnd = editable.getSpanEnd(currentBoldSpan);
-//                        editable.removeSpan(currentBoldSpan);
-//                        if (underLineStart <= position - 1) {
-//                            editable.setSpan(new StyleSpan(1), underLineStart, position - 1, 34);
-//                        }
-//
-//                        if (underLineEnd > position) {
-//                            editable.setSpan(new StyleSpan(1), position, underLineEnd, 34);
-//                        }
-//                    }
-//                }
-//
-//                if (DroidWriterEditText.this.italicsToggle != null && DroidWriterEditText.this.italicsToggle.isChecked() && currentItalicSpan == null) {
-//                    editable.setSpan(new StyleSpan(2), position - 1, position, 34);
-//                } else if (DroidWriterEditText.this.italicsToggle != null && !DroidWriterEditText.this.italicsToggle.isChecked() && currentItalicSpan != null) {
-//                    underLineStart = editable.getSpanStart(currentItalicSpan);
-//                    underLineEnd = editable.getSpanEnd(currentItalicSpan);
-//                    editable.removeSpan(currentItalicSpan);
-//                    if (underLineStart <= position - 1) {
-//                        editable.setSpan(new StyleSpan(2), underLineStart, position - 1, 34);
-//                    }
-//
-//                    if (underLineEnd > position) {
-//                        editable.setSpan(new StyleSpan(2), position, underLineEnd, 34);
-//                    }
-//                }
-//
-//                if (DroidWriterEditText.this.underlineToggle != null && DroidWriterEditText.this.underlineToggle.isChecked() && currentUnderlineSpan == null) {
-//                    editable.setSpan(new UnderlineSpan(), position - 1, position, 34);
-//                } else if (DroidWriterEditText.this.underlineToggle != null && !DroidWriterEditText.this.underlineToggle.isChecked() && currentUnderlineSpan != null) {
-//                    underLineStart = editable.getSpanStart(currentUnderlineSpan);
-//                    underLineEnd = editable.getSpanEnd(currentUnderlineSpan);
-//                    editable.removeSpan(currentUnderlineSpan);
-//                    if (underLineStart <= position - 1) {
-//                        editable.setSpan(new UnderlineSpan(), underLineStart, position - 1, 34);
-//                    }
-//
-//                    if (underLineEnd > position) {
-//                        editable.setSpan(new UnderlineSpan(), position, underLineEnd, 34);
-//                    }
-//                }
-//            }
-            int beginIndex = spannable.getSpanStart(span);
-            int endIndex = spannable.getSpanEnd(span);
-
-            // Cleanup
-            spannable.removeSpan(span);
-            span = null;
-            spannable = null;
-
-            boolean characterDeleted = beginIndex == endIndex;
-
-
-            StyleSpan currentBoldSpan = null;
-            StyleSpan currentItalicSpan = null;
-            UnderlineSpan currentUnderlineSpan = null;
-
-            CharacterStyle[] appliedStyles = editable.getSpans(beginIndex, endIndex, CharacterStyle.class);
-            // Look for possible styles already applied to the entered text
-            for (CharacterStyle appliedStyle : appliedStyles) {
-                if (appliedStyle instanceof StyleSpan) {
-                    if (((StyleSpan) appliedStyle).getStyle() == Typeface.BOLD) {
-                        // Bold style found
-                        StyleSpan potentialSpan = (StyleSpan) appliedStyle;
-                        if (characterDeleted && spanIsEmpty(editable, potentialSpan)) {
-                            editable.removeSpan(potentialSpan);
-                        } else {
-                            currentBoldSpan = potentialSpan;
-                        }
-                    } else if (((StyleSpan) appliedStyle).getStyle() == Typeface.ITALIC) {
-                        // Italic style found
-                        StyleSpan potentialSpan = (StyleSpan) appliedStyle;
-                        if (characterDeleted && spanIsEmpty(editable, potentialSpan)) {
-                            editable.removeSpan(potentialSpan);
-                        } else {
-                            currentItalicSpan = potentialSpan;
-                        }
-                    }
-                } else if (appliedStyle instanceof UnderlineSpan) {
-                    // Underlined style found
-                    UnderlineSpan potentialSpan = (UnderlineSpan) appliedStyle;
-                    if (characterDeleted && spanIsEmpty(editable, potentialSpan)) {
-                        editable.removeSpan(potentialSpan);
-                    } else {
-                        currentUnderlineSpan = potentialSpan;
-                    }
+            if (changeStart < 0) {
+                return;
+            }
+            int start = changeStart;
+            int end = changeEnd;
+            changeStart = -1;
+
+            if (formatBatchDepth > 0) {
+                // Compacting the spans around the change would read the styles of the batch from
+                // spans which are not updated yet, the change is updated with the batch instead
+                formatBatchRanges.add(start, Math.max(end, Math.min(start + 1, editable.length())));
+            } else {
+                updateStyleSpans(editable, start, end);
+            }
+
+            if (start == end) {
+                // Character deleted
+                onSelectionChanged(start, end);
+            }
+        }
+
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            // setText clears the history, undo and redo record their changes themselves
+            if (settingText || applyingHistory) {
+                return;
+            }
+            removedText = s instanceof Spanned
+                    ? copyText((Spanned) s, start, start + count) : TextUtils.substring(s, start, start + count);
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            // setText rebuilds the whole model afterwards
+            if (settingText) {
+                return;
+            }
+
+            // the style runs still hold the replaced text
+            if (removedText != null) {
+                if (!undoJournal.extendTyping(s, start, before, count)) {
+                    undoJournal.recordText(new UndoJournal.Entry(start, count, removedText,
+                            styleRuns.getRuns(start, start + before)), s);
                 }
+                removedText = null;
             }
 
-            if (characterDeleted) {
-                onSelectionChanged(beginIndex, endIndex);
-            }
-
-            if (endIndex > 0) {
-                // If text is added on the first position on a line and the following text already
-                // has the same spans applied append this new text to the existing spans
-                if (beginIndex >= 0 && beginIndex == 0 || editable.charAt(beginIndex - 1) == '\n') {
-
-                    boolean createsNewSpans = false;
-                    if (boldToggle == null ||
-                            (boldToggle.isChecked() == (currentBoldSpan == null))) {
-                        createsNewSpans = true;
-                    } else if (italicsToggle == null ||
-                            (italicsToggle.isChecked() == (currentItalicSpan == null))) {
-                        createsNewSpans = true;
-                    } else if (underlineToggle == null ||
-                            (underlineToggle.isChecked() == (currentUnderlineSpan == null))) {
-                        createsNewSpans = true;
-                    }
-
-                    if (createsNewSpans) {
-                        // Looking for existing spans that match the toggles on the next position
-                        CharacterStyle[] stylesInRange = editable.getSpans(beginIndex, endIndex + 1, CharacterStyle.class);
-                        StyleSpan inRangeBoldSpan = null;
-                        StyleSpan inRangeItalicSpan = null;
-                        UnderlineSpan inRangeUnderlineSpan = null;
-
-                        // Look for possible styles on the position next to it
-                        for (CharacterStyle aStylesInRange : stylesInRange) {
-                            if (aStylesInRange instanceof StyleSpan) {
-                                if (((StyleSpan) aStylesInRange).getStyle() == Typeface.BOLD) {
-                                    // Bold style found
-                                    inRangeBoldSpan = (StyleSpan) aStylesInRange;
-                                } else if (((StyleSpan) aStylesInRange).getStyle() == Typeface.ITALIC) {
-                                    // Italic style found
-                                    inRangeItalicSpan = (StyleSpan) aStylesInRange;
-                                }
-                            } else if (aStylesInRange instanceof UnderlineSpan) {
-                                // Underlined style found
-                                inRangeUnderlineSpan = (UnderlineSpan) aStylesInRange;
-                            }
-                        }
-
-                        // Checking if the spans match the toggles
-                        boolean shouldAppendToNextSpan = true;
-                        if (boldToggle == null ||
-                                (boldToggle.isChecked() == (inRangeBoldSpan == null))) {
-                            shouldAppendToNextSpan = false;
-                        } else if (italicsToggle == null ||
-                                (italicsToggle.isChecked() == (inRangeItalicSpan == null))) {
-                            shouldAppendToNextSpan = false;
-                        } else if (underlineToggle == null ||
-                                (underlineToggle.isChecked() == (inRangeUnderlineSpan == null))) {
-                            shouldAppendToNextSpan = false;
-                        }
-
-                        // Remove existing spans so new ones are created that include the newly
-                        // added text
-                        if (shouldAppendToNextSpan) {
-                            int endPosition = endIndex;
-                            if (inRangeBoldSpan != null) {
-                                endPosition = editable.getSpanEnd(inRangeBoldSpan);
-                                editable.removeSpan(inRangeBoldSpan);
-                            }
-                            if (inRangeItalicSpan != null) {
-                                endPosition = editable.getSpanEnd(inRangeItalicSpan);
-                                editable.removeSpan(inRangeItalicSpan);
-                            }
-                            if (inRangeUnderlineSpan != null) {
-                                endPosition = editable.getSpanEnd(inRangeUnderlineSpan);
-                                editable.removeSpan(inRangeUnderlineSpan);
-                            }
-
-                            endIndex = endPosition;
-                        }
-                    }
+            styleRuns.delete(start, start + before);
+            if (count > 0 && restoredRuns != null) {
+                // Text put back by undo or redo
+                styleRuns.insert(start, count, 0);
+                styleRuns.setRuns(start, restoredRuns);
+                restoredRuns = null;
+            } else if (count > 0) {
+                styleRuns.insert(start, count, 0);
+
+                // The styles the text got from its own spans or the spans extended over it
+                if (s instanceof Spanned) {
+                    readStyles((Spanned) s, start, start + count);
                 }
 
-                // Handle the bold style toggle button if it's present
+                // overridden by the toggle buttons
                 if (boldToggle != null) {
-                    if (boldToggle.isChecked() && currentBoldSpan == null) {
-                        // The user switched the bold style button on and the
-                        // character doesn't have any bold
-                        // style applied, so we start a new bold style span. The
-                        // span is inclusive,
-                        // so any new characters entered right after this one
-                        // will automatically get this style.
-                        editable.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), beginIndex, endIndex,
-                                getSpanFlag(editable, beginIndex));
-                    } else if (!boldToggle.isChecked() && currentBoldSpan != null) {
-                        // The user switched the bold style button off and the
-                        // character has bold style applied.
-                        // We need to remove the old bold style span, and define
-                        // a new one that end 1 position right
-                        // before the newly entered character.
-                        int boldStart = editable.getSpanStart(currentBoldSpan);
-                        int boldEnd = editable.getSpanEnd(currentBoldSpan);
-
-                        editable.removeSpan(currentBoldSpan);
-                        if (boldStart <= (beginIndex)) {
-                            editable.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), boldStart, beginIndex,
-                                    getSpanFlag(editable, beginIndex));
-                        }
-
-                        // The old bold style span end after the current cursor
-                        // position, so we need to define a
-                        // second newly created style span too, which begins
-                        // after the newly entered character and
-                        // ends at the old span's ending position. So we split
-                        // the span.
-                        if (boldEnd > endIndex) {
-                            editable.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), endIndex, boldEnd,
-                                    getSpanFlag(editable, beginIndex));
-                        }
-                    }
+                    styleRuns.setAttributes(start, start + count, StyleRuns.BOLD, boldToggle.isChecked());
                 }
-
-                // Handling italics and underlined styles is the same as
-                // handling bold styles.
-
-                // Handle the italics style toggle button if it's present
-                if (italicsToggle != null && italicsToggle.isChecked() && currentItalicSpan == null) {
-                    editable.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), beginIndex, endIndex,
-                            getSpanFlag(editable, beginIndex));
-                } else if (italicsToggle != null && !italicsToggle.isChecked() && currentItalicSpan != null) {
-                    int italicStart = editable.getSpanStart(currentItalicSpan);
-                    int italicEnd = editable.getSpanEnd(currentItalicSpan);
-
-                    editable.removeSpan(currentItalicSpan);
-                    if (italicStart <= (beginIndex)) {
-                        editable.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), italicStart, beginIndex,
-                                getSpanFlag(editable, beginIndex));
-                    }
-
-                    // Split the span
-                    if (italicEnd > endIndex) {
-                        editable.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), endIndex, italicEnd,
-                                getSpanFlag(editable, beginIndex));
-                    }
+                if (italicsToggle != null) {
+                    styleRuns.setAttributes(start, start + count, StyleRuns.ITALIC, italicsToggle.isChecked());
+                }
+                if (underlineToggle != null) {
+                    styleRuns.setAttributes(start, start + count, StyleRuns.UNDERLINE, underlineToggle.isChecked());
                 }
+            }
+
+            // The ranges of the batch follow the edit, the edited text updates its own spans
+            formatBatchRanges.replace(start, before, count);
 
-                // Handle the underlined style toggle button if it's present
-                if (underlineToggle != null && underlineToggle.isChecked() && currentUnderlineSpan == null) {
-                    editable.setSpan(new UnderlineSpan(), beginIndex, endIndex, getSpanFlag(editable, beginIndex));
-                } else if (underlineToggle != null && !underlineToggle.isChecked() && currentUnderlineSpan != null) {
-                    int underLineStart = editable.getSpanStart(currentUnderlineSpan);
-                    int underLineEnd = editable.getSpanEnd(currentUnderlineSpan);
-
-                    editable.removeSpan(currentUnderlineSpan);
-                    if (underLineStart <= (beginIndex)) {
-                        editable.setSpan(new UnderlineSpan(), underLineStart, beginIndex,
-                                getSpanFlag(editable, beginIndex));
-                    }
-
-                    // We need to split the span
-                    if (underLineEnd > endIndex) {
-                        editable.setSpan(new UnderlineSpan(), endIndex, underLineEnd,
-                                getSpanFlag(editable, beginIndex));
-                    }
+            if (changeStart < 0) {
+                changeStart = start;
+                changeEnd = start + count;
+            } else {
+                if (changeEnd >= start + before) {
+                    changeEnd += count - before;
+                } else if (changeEnd > start) {
+                    changeEnd = start;
                 }
+                changeStart = Math.min(changeStart, start);
+                changeEnd = Math.max(changeEnd, start + count);
             }
         }
+    }
 
-        private boolean spanIsEmpty(Editable editable, CharacterStyle styleSpan) {
-            int start = editable.getSpanStart(styleSpan);
-            int end = editable.getSpanEnd(styleSpan);
-            return end - start <= 0;
+    /**
+     * State of the view, with the text and its spans as a snapshot instead of TextView's frozen text
+     */
+    public static class SavedState extends BaseSavedState {
+        byte[] snapshot;
+
+        SavedState(Parcelable superState) {
+            super(superState);
         }
 
-        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
-            // Unused
+        private SavedState(Parcel in) {
+            super(in);
+            snapshot = in.createByteArray();
         }
 
-        public void onTextChanged(CharSequence s, int start, int before, int count) {
-            if (s instanceof Spannable) {
-                spannable = (Spannable) s;
-            } else {
-                spannable = new SpannableString(s); // Fallback it will break the logic
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeByteArray(snapshot);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
             }
 
-            span = new RelativeSizeSpan(1.0f);
-            spannable.setSpan(span, start, start + count, Spanned.SPAN_COMPOSING);
-        }
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
     }
 }
@@ -0,0 +1,405 @@
+package hu.scythe.droidwriter;
+
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Parcel;
+import android.text.Html;
+import android.text.Layout;
+import android.text.NoCopySpan;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AbsoluteSizeSpan;
+import android.text.style.AlignmentSpan;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.BulletSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.ImageSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.SubscriptSpan;
+import android.text.style.SuperscriptSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import hu.scythe.droidwriter.customEditText.ClickableTableSpan;
+import hu.scythe.droidwriter.customEditText.DrawTableLinkSpan;
+import hu.scythe.droidwriter.customEditText.NumberSpan;
+
+/**
+ * Binary snapshot of styled text and its selection, so it can be saved and restored without
+ * converting it to HTML and parsing it again.
+ * <p/>
+ * Format, big endian: magic, version, selection start and end, the text as UTF-8, then the span
+ * table: the number of spans and for every span its type id, start, end, flags and the
+ * parameters of its type. Spans of other types, watchers and composing spans are not saved.
+ * Images are saved by source and size, and loaded again by the image getter on restore.
+ */
+final class EditorSnapshot {
+
+    private static final int MAGIC = 0x4457534e;
+    // 2: bullets keep their color
+    private static final int VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Longest string read from a snapshot, and the steps it is read in
+    private static final int MAX_STRING_BYTES = 64 * 1024 * 1024;
+    private static final int READ_CHUNK_BYTES = 64 * 1024;
+
+    // Span type ids, never reuse or renumber them
+    private static final int TYPE_STYLE = 1;
+    private static final int TYPE_UNDERLINE = 2;
+    private static final int TYPE_STRIKETHROUGH = 3;
+    private static final int TYPE_SUBSCRIPT = 4;
+    private static final int TYPE_SUPERSCRIPT = 5;
+    private static final int TYPE_FOREGROUND_COLOR = 6;
+    private static final int TYPE_BACKGROUND_COLOR = 7;
+    private static final int TYPE_ABSOLUTE_SIZE = 8;
+    private static final int TYPE_RELATIVE_SIZE = 9;
+    private static final int TYPE_TYPEFACE = 10;
+    private static final int TYPE_URL = 11;
+    private static final int TYPE_QUOTE = 12;
+    private static final int TYPE_BULLET = 13;
+    private static final int TYPE_ALIGNMENT = 14;
+    private static final int TYPE_IMAGE = 15;
+    private static final int TYPE_NUMBER = 16;
+    private static final int TYPE_TABLE_LINK = 17;
+    private static final int TYPE_CLICKABLE_TABLE = 18;
+
+    final CharSequence text;
+    final int selectionStart;
+    final int selectionEnd;
+
+    private EditorSnapshot(CharSequence text, int selectionStart, int selectionEnd) {
+        this.text = text;
+        this.selectionStart = selectionStart;
+        this.selectionEnd = selectionEnd;
+    }
+
+    static void write(Spanned text, int selectionStart, int selectionEnd, DataOutputStream out)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(selectionStart);
+        out.writeInt(selectionEnd);
+        writeString(out, text.toString());
+
+        Object[] spans = text.getSpans(0, text.length(), Object.class);
+        int count = 0;
+        for (Object span : spans) {
+            if (typeOf(span) != 0 && !(span instanceof NoCopySpan)
+                    && (text.getSpanFlags(span) & Spanned.SPAN_COMPOSING) == 0) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+
+        for (Object span : spans) {
+            int type = typeOf(span);
+            if (type == 0 || span instanceof NoCopySpan
+                    || (text.getSpanFlags(span) & Spanned.SPAN_COMPOSING) != 0) {
+                continue;
+            }
+            out.writeShort(type);
+            out.writeInt(text.getSpanStart(span));
+            out.writeInt(text.getSpanEnd(span));
+            out.writeInt(text.getSpanFlags(span));
+            writeParameters(out, type, span);
+        }
+    }
+
+    /**
+     * @param imageGetter         loads the images again, a transparent placeholder of the saved
+     *                            size is used where it returns null
+     * @param clickableTableSpan  prototype of the restored table spans, they are dropped if null
+     */
+    static EditorSnapshot read(DataInputStream in, Html.ImageGetter imageGetter,
+                               ClickableTableSpan clickableTableSpan) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an editor snapshot");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported editor snapshot version " + version);
+        }
+        int selectionStart = in.readInt();
+        int selectionEnd = in.readInt();
+        String string = readString(in);
+        if (string == null) {
+            throw new IOException("Snapshot without text");
+        }
+        SpannableStringBuilder text = new SpannableStringBuilder(string);
+
+        final int length = text.length();
+        for (int i = in.readInt(); i > 0; i--) {
+            int type = in.readShort();
+            int start = in.readInt();
+            int end = in.readInt();
+            int flags = in.readInt();
+            Object span = readParameters(in, version, type, imageGetter, clickableTableSpan);
+            if (start < 0 || end > length || start > end) {
+                throw new IOException("Span " + start + " ... " + end + " out of the text");
+            }
+            if (span != null) {
+                text.setSpan(span, start, end, flags);
+            }
+        }
+
+        return new EditorSnapshot(text, Math.min(selectionStart, length), Math.min(selectionEnd, length));
+    }
+
+    /**
+     * @return the type id of span, 0 if it isn't saved. Classes are matched exactly, a subclass
+     * would be restored as its superclass.
+     */
+    private static int typeOf(Object span) {
+        final Class<?> kind = span.getClass();
+        if (kind == StyleSpan.class) {
+            return TYPE_STYLE;
+        } else if (kind == UnderlineSpan.class) {
+            return TYPE_UNDERLINE;
+        } else if (kind == StrikethroughSpan.class) {
+            return TYPE_STRIKETHROUGH;
+        } else if (kind == SubscriptSpan.class) {
+            return TYPE_SUBSCRIPT;
+        } else if (kind == SuperscriptSpan.class) {
+            return TYPE_SUPERSCRIPT;
+        } else if (kind == ForegroundColorSpan.class) {
+            return TYPE_FOREGROUND_COLOR;
+        } else if (kind == BackgroundColorSpan.class) {
+            return TYPE_BACKGROUND_COLOR;
+        } else if (kind == AbsoluteSizeSpan.class) {
+            return TYPE_ABSOLUTE_SIZE;
+        } else if (kind == RelativeSizeSpan.class) {
+            return TYPE_RELATIVE_SIZE;
+        } else if (kind == TypefaceSpan.class && ((TypefaceSpan) span).getFamily() != null) {
+            return TYPE_TYPEFACE;
+        } else if (kind == URLSpan.class) {
+            return TYPE_URL;
+        } else if (kind == QuoteSpan.class) {
+            return TYPE_QUOTE;
+        } else if (kind == BulletSpan.class) {
+            return TYPE_BULLET;
+        } else if (kind == AlignmentSpan.Standard.class) {
+            return TYPE_ALIGNMENT;
+        } else if (kind == ImageSpan.class) {
+            return TYPE_IMAGE;
+        } else if (kind == NumberSpan.class) {
+            return TYPE_NUMBER;
+        } else if (kind == DrawTableLinkSpan.class) {
+            return TYPE_TABLE_LINK;
+        } else if (span instanceof ClickableTableSpan) {
+            // restored with the prototype passed to read
+            return TYPE_CLICKABLE_TABLE;
+        }
+        return 0;
+    }
+
+    private static void writeParameters(DataOutputStream out, int type, Object span) throws IOException {
+        switch (type) {
+            case TYPE_STYLE:
+                out.writeInt(((StyleSpan) span).getStyle());
+                break;
+            case TYPE_FOREGROUND_COLOR:
+                out.writeInt(((ForegroundColorSpan) span).getForegroundColor());
+                break;
+            case TYPE_BACKGROUND_COLOR:
+                out.writeInt(((BackgroundColorSpan) span).getBackgroundColor());
+                break;
+            case TYPE_ABSOLUTE_SIZE:
+                out.writeInt(((AbsoluteSizeSpan) span).getSize());
+                out.writeBoolean(((AbsoluteSizeSpan) span).getDip());
+                break;
+            case TYPE_RELATIVE_SIZE:
+                out.writeFloat(((RelativeSizeSpan) span).getSizeChange());
+                break;
+            case TYPE_TYPEFACE:
+                writeString(out, ((TypefaceSpan) span).getFamily());
+                break;
+            case TYPE_URL:
+                writeString(out, ((URLSpan) span).getURL());
+                break;
+            case TYPE_QUOTE:
+                out.writeInt(((QuoteSpan) span).getColor());
+                break;
+            case TYPE_BULLET:
+                int[] bullet = bulletParameters((BulletSpan) span);
+                out.writeInt(bullet[0]);
+                out.writeBoolean(bullet[1] != 0);
+                out.writeInt(bullet[2]);
+                break;
+            case TYPE_ALIGNMENT:
+                writeString(out, ((AlignmentSpan) span).getAlignment().name());
+                break;
+            case TYPE_IMAGE:
+                ImageSpan image = (ImageSpan) span;
+                Rect bounds = image.getDrawable().getBounds();
+                writeString(out, image.getSource());
+                out.writeInt(image.getVerticalAlignment());
+                out.writeInt(bounds.width());
+                out.writeInt(bounds.height());
+                break;
+            case TYPE_NUMBER:
+                out.writeInt(((NumberSpan) span).getGapWidth());
+                writeString(out, ((NumberSpan) span).getNumber());
+                break;
+            case TYPE_TABLE_LINK:
+                DrawTableLinkSpan tableLink = (DrawTableLinkSpan) span;
+                writeString(out, tableLink.getTableLinkText());
+                out.writeFloat(tableLink.getTextSize());
+                out.writeInt(tableLink.getTextColor());
+                break;
+            case TYPE_CLICKABLE_TABLE:
+                writeString(out, ((ClickableTableSpan) span).getTableHtml());
+                break;
+            default:
+                // no parameters
+                break;
+        }
+    }
+
+    /**
+     * @param version version of the snapshot, the parameters of some types were extended
+     */
+    private static Object readParameters(DataInputStream in, int version, int type,
+                                         Html.ImageGetter imageGetter,
+                                         ClickableTableSpan clickableTableSpan) throws IOException {
+        switch (type) {
+            case TYPE_STYLE:
+                return new StyleSpan(in.readInt());
+            case TYPE_UNDERLINE:
+                return new UnderlineSpan();
+            case TYPE_STRIKETHROUGH:
+                return new StrikethroughSpan();
+            case TYPE_SUBSCRIPT:
+                return new SubscriptSpan();
+            case TYPE_SUPERSCRIPT:
+                return new SuperscriptSpan();
+            case TYPE_FOREGROUND_COLOR:
+                return new ForegroundColorSpan(in.readInt());
+            case TYPE_BACKGROUND_COLOR:
+                return new BackgroundColorSpan(in.readInt());
+            case TYPE_ABSOLUTE_SIZE:
+                int size = in.readInt();
+                return new AbsoluteSizeSpan(size, in.readBoolean());
+            case TYPE_RELATIVE_SIZE:
+                return new RelativeSizeSpan(in.readFloat());
+            case TYPE_TYPEFACE:
+                return new TypefaceSpan(readString(in));
+            case TYPE_URL:
+                return new URLSpan(readString(in));
+            case TYPE_QUOTE:
+                return new QuoteSpan(in.readInt());
+            case TYPE_BULLET:
+                int bulletGapWidth = in.readInt();
+                if (version < 2) {
+                    return new BulletSpan(bulletGapWidth);
+                }
+                boolean wantColor = in.readBoolean();
+                int color = in.readInt();
+                return wantColor ? new BulletSpan(bulletGapWidth, color) : new BulletSpan(bulletGapWidth);
+            case TYPE_ALIGNMENT:
+                try {
+                    return new AlignmentSpan.Standard(Layout.Alignment.valueOf(readString(in)));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown alignment", e);
+                }
+            case TYPE_IMAGE:
+                String source = readString(in);
+                int verticalAlignment = in.readInt();
+                int width = in.readInt();
+                int height = in.readInt();
+                return new ImageSpan(loadImage(imageGetter, source, width, height), source, verticalAlignment);
+            case TYPE_NUMBER:
+                int gapWidth = in.readInt();
+                return new NumberSpan(gapWidth, readString(in));
+            case TYPE_TABLE_LINK:
+                DrawTableLinkSpan tableLink = new DrawTableLinkSpan();
+                tableLink.setTableLinkText(readString(in));
+                tableLink.setTextSize(in.readFloat());
+                tableLink.setTextColor(in.readInt());
+                return tableLink;
+            case TYPE_CLICKABLE_TABLE:
+                String tableHtml = readString(in);
+                if (clickableTableSpan == null) {
+                    return null;
+                }
+                ClickableTableSpan table = clickableTableSpan.newInstance();
+                table.setTableHtml(tableHtml);
+                return table;
+            default:
+                // the parameters of an unknown type can't be skipped
+                throw new IOException("Unknown span type " + type);
+        }
+    }
+
+    /**
+     * @return gap width, 1 if the bullet has its own color else 0, and the color of span. They
+     * have no getters before API 28, but are the first values the span writes to a parcel.
+     */
+    private static int[] bulletParameters(BulletSpan span) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            span.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return new int[]{parcel.readInt(), parcel.readInt(), parcel.readInt()};
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Drawable loadImage(Html.ImageGetter imageGetter, String source, int width, int height) {
+        Drawable drawable = imageGetter != null && source != null ? imageGetter.getDrawable(source) : null;
+        if (drawable == null) {
+            drawable = new ColorDrawable(Color.TRANSPARENT);
+            drawable.setBounds(0, 0, width, height);
+        }
+        return drawable;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}. The buffer only
+     * grows with the bytes actually read, so the length of a corrupt snapshot fails with an
+     * EOFException instead of allocating it up front.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_BYTES) {
+            throw new IOException("String of " + length + " bytes is too long");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(length, READ_CHUNK_BYTES));
+        byte[] chunk = new byte[Math.min(length, READ_CHUNK_BYTES)];
+        int remaining = length;
+        while (remaining > 0) {
+            int count = Math.min(remaining, chunk.length);
+            in.readFully(chunk, 0, count);
+            bytes.write(chunk, 0, count);
+            remaining -= count;
+        }
+        return new String(bytes.toByteArray(), UTF_8);
+    }
+}
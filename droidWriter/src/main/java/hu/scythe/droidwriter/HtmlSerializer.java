@@ -0,0 +1,420 @@
+package hu.scythe.droidwriter;
+
+import android.os.Build;
+import android.text.Editable;
+import android.text.Html;
+import android.text.Layout;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextDirectionHeuristics;
+import android.text.TextWatcher;
+import android.text.style.AlignmentSpan;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+import android.text.style.QuoteSpan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes an Editable to the same HTML as {@link Html#toHtml(Spanned)}, caching the HTML of
+ * every line. It watches the text it is attached to and only forgets the HTML of the lines
+ * whose text or character styles change, so serializing a long document after a small edit
+ * only converts the edited lines again.
+ * <p/>
+ * Html.toHtml splits the text into blocks where paragraph styles start or end, wraps aligned
+ * blocks into a div and quoted ones into blockquotes. Inside a block it puts consecutive lines
+ * into one paragraph, separated by &lt;br&gt;, and starts a new paragraph after an empty line.
+ * The direction of a paragraph comes from the first strong character of the block, before
+ * Android N from the first one of the rest of the block.
+ * The blocks, separators and paragraph tags are written here the same way, they only depend on
+ * the paragraph styles and the line lengths. The content of a line only depends on the line
+ * and its character styles, it is converted by Html.toHtml too and cut out of the paragraph.
+ * Lines cut by a block boundary are converted on every call.
+ * <p/>
+ * The cached HTML is limited to {@link #MAX_CACHED_LENGTH} characters, lines beyond it are
+ * converted on every call too.
+ */
+final class HtmlSerializer implements TextWatcher, SpanWatcher, NoCopySpan {
+
+    /**
+     * Higher than the priority of the TextView's watcher, so afterTextChanged is called here
+     * before other watchers change spans
+     */
+    private static final int WATCHER_PRIORITY = 200;
+
+    private static final String PARAGRAPH_END = "</p>\n";
+
+    /**
+     * Html.toHtml before Android N takes the direction of every paragraph from the rest of the
+     * block, not only of the first one
+     */
+    private static final boolean DIRECTION_PER_PARAGRAPH = Build.VERSION.SDK_INT < Build.VERSION_CODES.N;
+
+    /**
+     * Characters of line HTML kept between calls
+     */
+    static final int MAX_CACHED_LENGTH = 512 * 1024;
+
+    private Editable text;
+
+    /**
+     * Lines of the text, each but the last followed by a newline
+     */
+    private final ArrayList<Line> lines = new ArrayList<>();
+
+    // Line found by the last search and its start, the next search starts from there
+    private int searchIndex;
+    private int searchStart;
+
+    /**
+     * Set while the text is being replaced, the spans moved by the replacement are in changed
+     * lines anyway
+     */
+    private boolean replacing;
+
+    /**
+     * The last replacement, until the next one starts. SpannableStringBuilder reports the spans
+     * it moved only after afterTextChanged, shifting a span doesn't change the HTML of its lines.
+     */
+    private int shiftStart = -1;
+    private int shiftBefore;
+    private int shiftAfter;
+
+    private int lastLength;
+
+    /**
+     * Characters of HTML cached in lines
+     */
+    private int cachedLength;
+
+    private static final class Line {
+        int length;
+
+        /**
+         * HTML of the content of the line, null if it has to be converted again
+         */
+        String html;
+
+        Line(int length) {
+            this.length = length;
+        }
+    }
+
+    /**
+     * @return HTML of text, the same as {@link Html#toHtml(Spanned)}
+     */
+    String toHtml(Editable editable) {
+        StringBuilder out = new StringBuilder(lastLength + 16);
+        try {
+            writeHtml(editable, out);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+            throw new IllegalStateException(e);
+        }
+        lastLength = out.length();
+        return out.toString();
+    }
+
+    /**
+     * Writes the HTML of text to out, one line or tag at a time, without building the whole
+     * document
+     */
+    void writeHtml(Editable editable, Appendable out) throws IOException {
+        if (editable != text) {
+            attach(editable);
+        }
+
+        final int length = text.length();
+        int next;
+        for (int i = 0; i < length; i = next) {
+            next = text.nextSpanTransition(i, length, ParagraphStyle.class);
+            ParagraphStyle[] styles = text.getSpans(i, next, ParagraphStyle.class);
+            String elements = " ";
+            boolean needDiv = false;
+            for (ParagraphStyle style : styles) {
+                if (style instanceof AlignmentSpan) {
+                    Layout.Alignment align = ((AlignmentSpan) style).getAlignment();
+                    needDiv = true;
+                    if (align == Layout.Alignment.ALIGN_CENTER) {
+                        elements = "align=\"center\" " + elements;
+                    } else if (align == Layout.Alignment.ALIGN_OPPOSITE) {
+                        elements = "align=\"right\" " + elements;
+                    } else {
+                        elements = "align=\"left\" " + elements;
+                    }
+                }
+            }
+            if (needDiv) {
+                out.append("<div ").append(elements).append(">");
+            }
+            writeQuotes(out, i, next);
+            if (needDiv) {
+                out.append("</div>");
+            }
+        }
+    }
+
+    private void writeQuotes(Appendable out, int start, int end) throws IOException {
+        int next;
+        for (int i = start; i < end; i = next) {
+            next = text.nextSpanTransition(i, end, QuoteSpan.class);
+            int quotes = text.getSpans(i, next, QuoteSpan.class).length;
+            for (int j = 0; j < quotes; j++) {
+                out.append("<blockquote>");
+            }
+            writeParagraphs(out, i, next);
+            for (int j = 0; j < quotes; j++) {
+                out.append("</blockquote>\n");
+            }
+        }
+    }
+
+    /**
+     * Writes the lines of [start, end) as paragraphs
+     */
+    private void writeParagraphs(Appendable out, int start, int end) throws IOException {
+        String paragraphStart = paragraphStart(start, end);
+        out.append(paragraphStart);
+
+        int index = findLine(start);
+        int lineStart = searchStart;
+        int i = start;
+        while (i < end) {
+            Line line = lines.get(index);
+            int lineEnd = lineStart + line.length;
+            int contentEnd = Math.min(lineEnd, end);
+            if (i == lineStart && contentEnd == lineEnd) {
+                out.append(lineHtml(line, lineStart));
+            } else {
+                // the line is cut by the block
+                out.append(lineToHtml(i, contentEnd));
+            }
+
+            // Newlines after the content, the empty lines between them are skipped
+            int next = contentEnd;
+            int newlines = 0;
+            while (next < end && (newlines == 0 || lines.get(index).length == 0)) {
+                newlines++;
+                next++;
+                index++;
+            }
+            lineStart = next;
+            i = next;
+
+            if (newlines == 1) {
+                out.append("<br>\n");
+            } else {
+                for (int j = 2; j < newlines; j++) {
+                    out.append("<br>");
+                }
+                // a new paragraph, unless the newlines end the block
+                if (next != end) {
+                    out.append(PARAGRAPH_END);
+                    out.append(DIRECTION_PER_PARAGRAPH ? paragraphStart(next, end) : paragraphStart);
+                }
+            }
+        }
+        out.append(PARAGRAPH_END);
+    }
+
+    /**
+     * @return the paragraph tag with the direction of the first strong character of [start, end)
+     */
+    private String paragraphStart(int start, int end) {
+        return TextDirectionHeuristics.FIRSTSTRONG_LTR.isRtl(text, start, end - start)
+                ? "<p dir=\"rtl\">" : "<p dir=\"ltr\">";
+    }
+
+    /**
+     * @return HTML of the content of line, from the cache if it fits in
+     */
+    private String lineHtml(Line line, int lineStart) {
+        if (line.html != null) {
+            return line.html;
+        }
+        String html = lineToHtml(lineStart, lineStart + line.length);
+        if (cachedLength + html.length() <= MAX_CACHED_LENGTH) {
+            line.html = html;
+            cachedLength += html.length();
+        }
+        return html;
+    }
+
+    private String lineToHtml(int start, int end) {
+        if (start == end) {
+            return "";
+        }
+        // Only character styles, Html.toHtml would wrap the line into the blocks of paragraph
+        // styles otherwise: <p dir="...">content</p>\n
+        SpannableStringBuilder line = new SpannableStringBuilder(text, start, end);
+        for (ParagraphStyle style : line.getSpans(0, line.length(), ParagraphStyle.class)) {
+            if (!(style instanceof CharacterStyle)) {
+                line.removeSpan(style);
+            }
+        }
+        String html = Html.toHtml(line);
+        return html.substring(html.indexOf('>') + 1, html.length() - PARAGRAPH_END.length());
+    }
+
+    /**
+     * Forgets the HTML of line
+     */
+    private void forget(Line line) {
+        if (line.html != null) {
+            cachedLength -= line.html.length();
+            line.html = null;
+        }
+    }
+
+    private void attach(Editable editable) {
+        if (text != null) {
+            text.removeSpan(this);
+        }
+        text = editable;
+        lines.clear();
+        cachedLength = 0;
+        splitLines(editable, 0, editable.length(), 0);
+        searchIndex = 0;
+        searchStart = 0;
+        replacing = false;
+        shiftStart = -1;
+        editable.setSpan(this, 0, editable.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE
+                | (WATCHER_PRIORITY << Spanned.SPAN_PRIORITY_SHIFT));
+    }
+
+    /**
+     * Inserts the lines of [start, end) of s at index
+     */
+    private void splitLines(CharSequence s, int start, int end, int index) {
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == '\n') {
+                lines.add(index++, new Line(i - lineStart));
+                lineStart = i + 1;
+            }
+        }
+        lines.add(index, new Line(end - lineStart));
+    }
+
+    /**
+     * @return index of the line containing position, or ending with the newline at position
+     */
+    private int findLine(int position) {
+        int index = searchIndex;
+        int start = searchStart;
+        while (position < start) {
+            index--;
+            start -= lines.get(index).length + 1;
+        }
+        while (position > start + lines.get(index).length) {
+            start += lines.get(index).length + 1;
+            index++;
+        }
+        searchIndex = index;
+        searchStart = start;
+        return index;
+    }
+
+    private void invalidate(int start, int end) {
+        int length = text.length();
+        start = Math.max(0, Math.min(start, length));
+        end = Math.max(start, Math.min(end, length));
+
+        int index = findLine(start);
+        int lineStart = searchStart;
+        while (index < lines.size() && lineStart <= end) {
+            Line line = lines.get(index);
+            forget(line);
+            lineStart += line.length + 1;
+            index++;
+        }
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        shiftStart = -1;
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        replacing = true;
+        shiftStart = start;
+        shiftBefore = before;
+        shiftAfter = count;
+
+        // The changed lines are split again from the new text
+        int last = findLine(start + before);
+        int end = searchStart + lines.get(last).length;
+        int first = findLine(start);
+        int firstStart = searchStart;
+
+        List<Line> changed = lines.subList(first, last + 1);
+        for (Line line : changed) {
+            forget(line);
+        }
+        changed.clear();
+        splitLines(s, firstStart, end + count - before, first);
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        replacing = false;
+    }
+
+    @Override
+    public void onSpanAdded(Spannable text, Object what, int start, int end) {
+        if (!replacing && what instanceof CharacterStyle) {
+            invalidate(start, end);
+        }
+    }
+
+    @Override
+    public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        if (!replacing && what instanceof CharacterStyle) {
+            invalidate(start, end);
+        }
+    }
+
+    @Override
+    public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+        if (replacing || !(what instanceof CharacterStyle)) {
+            return;
+        }
+        if (isShift(ostart, nstart) && isShift(oend, nend)) {
+            // moved by the last replacement, the lines it changed are converted again anyway
+            return;
+        }
+        invalidate(ostart, oend);
+        if (shiftStart >= 0) {
+            // the old range may be reported before the replacement
+            invalidate(shift(ostart), shift(oend));
+        }
+        invalidate(nstart, nend);
+    }
+
+    /**
+     * @return whether the last replacement moved the position from oldPosition to newPosition
+     */
+    private boolean isShift(int oldPosition, int newPosition) {
+        if (shiftStart < 0) {
+            return false;
+        }
+        if (newPosition >= shiftStart && newPosition <= shiftStart + shiftAfter) {
+            // in a changed line, the old position may be reported before or after the replacement
+            return oldPosition >= shiftStart && oldPosition <= shiftStart + Math.max(shiftBefore, shiftAfter);
+        }
+        return shift(oldPosition) == newPosition;
+    }
+
+    /**
+     * @return the position before the last replacement moved by it
+     */
+    private int shift(int position) {
+        return position < shiftStart ? position : position + shiftAfter - shiftBefore;
+    }
+}
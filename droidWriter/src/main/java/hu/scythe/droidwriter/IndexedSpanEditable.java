@@ -0,0 +1,540 @@
+package hu.scythe.droidwriter;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+/**
+ * Editable which keeps an interval index of its style spans, i.e. {@link StyleSpan}s and
+ * {@link UnderlineSpan}s. getSpans(start, end, StyleSpan.class) and
+ * getSpans(start, end, UnderlineSpan.class) are answered from the index, any other query is
+ * answered by {@link SpannableStringBuilder} itself.
+ * <p/>
+ * The spans are still stored by the builder, so drawing, span flags and watchers work as usual.
+ * The index keeps their ranges in a treap ordered by start, every node knows the maximum end of
+ * its subtree, so a query finds the k spans in O(log n + k) and only looks at spans of the queried
+ * class. They are returned in the order of SpannableStringBuilder since Android N, by priority and
+ * then by the order they were added in, which costs O(k log k). The ranges after an edit are
+ * shifted lazily and a span is found by identity, so adding, moving and removing a span costs
+ * O(log n) too.
+ * <p/>
+ * The index only makes queries faster, it doesn't save memory: every indexed span costs a node and
+ * an entry of an identity map, about 80 bytes, on top of what the builder stores.
+ * <p/>
+ * Install it with {@link android.widget.TextView#setEditableFactory(Editable.Factory)} and
+ * {@link Factory#getInstance()}.
+ */
+public class IndexedSpanEditable extends SpannableStringBuilder {
+
+    /**
+     * Priority of the watcher keeping the index up to date, so it is notified before any other
+     * watcher can query the index
+     */
+    private static final int WATCHER_PRIORITY = 255;
+
+    private static final Comparator<Node> SPAN_ORDER = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            if (a.spanPriority != b.spanPriority) {
+                return a.spanPriority > b.spanPriority ? -1 : 1;
+            }
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    };
+
+    private final SpanIndex styleSpans = new SpanIndex(StyleSpan.class);
+    private final SpanIndex underlineSpans = new SpanIndex(UnderlineSpan.class);
+    private final IndexWatcher watcher = new IndexWatcher();
+
+    /**
+     * Greater than 0 while the builder is changing spans, the index is incomplete meanwhile
+     */
+    private int updating;
+
+    public IndexedSpanEditable() {
+        this("");
+    }
+
+    public IndexedSpanEditable(CharSequence text) {
+        super(text);
+        rebuildIndex();
+    }
+
+    /**
+     * Creates {@link IndexedSpanEditable}s for a TextView
+     */
+    public static class Factory extends Editable.Factory {
+        private static final Factory INSTANCE = new Factory();
+
+        public static Factory getInstance() {
+            return INSTANCE;
+        }
+
+        @Override
+        public Editable newEditable(CharSequence source) {
+            return new IndexedSpanEditable(source);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
+        SpanIndex index = updating == 0 ? indexForKind(kind) : null;
+        if (index == null) {
+            return super.getSpans(queryStart, queryEnd, kind);
+        }
+
+        ArrayList<Node> result = index.query(queryStart, queryEnd, false);
+        if (result.size() > 1) {
+            Collections.sort(result, SPAN_ORDER);
+        }
+        T[] spans = (T[]) Array.newInstance(kind, result.size());
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = (T) result.get(i).span;
+        }
+        return spans;
+    }
+
+    @Override
+    public void setSpan(Object what, int start, int end, int flags) {
+        updating++;
+        try {
+            super.setSpan(what, start, end, flags);
+        } finally {
+            updating--;
+        }
+
+        SpanIndex index = indexForSpan(what);
+        if (index != null) {
+            index.set(what, start, end, flags);
+        }
+    }
+
+    @Override
+    public void removeSpan(Object what) {
+        updating++;
+        try {
+            super.removeSpan(what);
+        } finally {
+            updating--;
+        }
+
+        SpanIndex index = indexForSpan(what);
+        if (index != null) {
+            index.remove(what);
+        }
+    }
+
+    @Override
+    public void clearSpans() {
+        super.clearSpans();
+        rebuildIndex();
+    }
+
+    private void rebuildIndex() {
+        styleSpans.fill(this);
+        underlineSpans.fill(this);
+        super.setSpan(watcher, 0, length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE
+                | (WATCHER_PRIORITY << Spanned.SPAN_PRIORITY_SHIFT));
+    }
+
+    private SpanIndex indexForKind(Class<?> kind) {
+        if (kind == StyleSpan.class) {
+            return styleSpans;
+        } else if (kind == UnderlineSpan.class) {
+            return underlineSpans;
+        }
+        return null;
+    }
+
+    private SpanIndex indexForSpan(Object span) {
+        if (span instanceof StyleSpan) {
+            return styleSpans;
+        } else if (span instanceof UnderlineSpan) {
+            return underlineSpans;
+        }
+        return null;
+    }
+
+    private int getStoredSpanStart(Object span) {
+        return super.getSpanStart(span);
+    }
+
+    private int getStoredSpanEnd(Object span) {
+        return super.getSpanEnd(span);
+    }
+
+    private int getStoredSpanFlags(Object span) {
+        return super.getSpanFlags(span);
+    }
+
+    private Object[] getStoredSpans(int start, int end, Class<?> kind) {
+        return super.getSpans(start, end, kind);
+    }
+
+    /**
+     * Moves the indexed ranges along with the text. Spans touching the replaced range are taken
+     * out before the change and read back from the builder after it, the ranges after it are
+     * shifted. Spans inserted with the new text are added.
+     */
+    private class IndexWatcher implements TextWatcher, NoCopySpan {
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            updating++;
+            styleSpans.takeTouching(start, start + count);
+            underlineSpans.takeTouching(start, start + count);
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            styleSpans.update(start, before, count);
+            underlineSpans.update(start, before, count);
+            updating--;
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            // Unused
+        }
+    }
+
+    /**
+     * Ranges of the spans of one class, in a treap ordered by start
+     */
+    private class SpanIndex {
+        private final Class<?> kind;
+
+        private final Random random = new Random();
+        private Node root;
+        /**
+         * Nodes of the indexed spans, and of the spans taken out during a change
+         */
+        private final IdentityHashMap<Object, Node> nodes = new IdentityHashMap<>();
+        private int nextOrder;
+
+        private final ArrayList<Node> result = new ArrayList<>();
+        private final ArrayList<Node> taken = new ArrayList<>();
+
+        SpanIndex(Class<?> kind) {
+            this.kind = kind;
+        }
+
+        void fill(IndexedSpanEditable text) {
+            // in the builder's order, which numbers them in the order the builder returns them
+            Object[] stored = text.getStoredSpans(0, text.length(), kind);
+            root = null;
+            nodes.clear();
+            nextOrder = stored.length;
+
+            // sort by start, keeping the builder's order for equal starts
+            long[] order = new long[stored.length];
+            for (int i = 0; i < stored.length; i++) {
+                order[i] = ((long) text.getStoredSpanStart(stored[i]) << 32) | i;
+            }
+            Arrays.sort(order);
+            for (long entry : order) {
+                Object span = stored[(int) entry];
+                Node node = new Node(span, (int) entry, text.getStoredSpanFlags(span) & Spanned.SPAN_PRIORITY,
+                        random.nextInt());
+                node.reset((int) (entry >>> 32), text.getStoredSpanEnd(span));
+                nodes.put(span, node);
+                root = merge(root, node);
+            }
+            setRoot(root);
+        }
+
+        /**
+         * Adds span or moves it, keeping its place in the order of the builder
+         */
+        void set(Object span, int start, int end, int flags) {
+            Node node = nodes.get(span);
+            if (node != null) {
+                detach(node);
+            } else {
+                node = new Node(span, nextOrder++, 0, random.nextInt());
+                nodes.put(span, node);
+            }
+            node.spanPriority = flags & Spanned.SPAN_PRIORITY;
+            attach(node, start, end);
+        }
+
+        void remove(Object span) {
+            Node node = nodes.remove(span);
+            if (node != null) {
+                detach(node);
+            }
+        }
+
+        private void attach(Node node, int start, int end) {
+            node.reset(start, end);
+            // after the spans with the same start
+            Node[] parts = splitAfter(root, start);
+            setRoot(merge(merge(parts[0], node), parts[1]));
+        }
+
+        private void detach(Node node) {
+            Node[] parts = splitAt(root, rankOf(node));
+            setRoot(merge(parts[0], splitAt(parts[1], 1)[1]));
+        }
+
+        /**
+         * Takes the spans touching [start, end] out of the index before the text changes there
+         */
+        void takeTouching(int start, int end) {
+            taken.clear();
+            taken.addAll(query(start, end, true));
+            for (int t = 0, size = taken.size(); t < size; t++) {
+                detach(taken.get(t));
+            }
+        }
+
+        /**
+         * Updates the index after before characters at start have been replaced with after
+         * new ones
+         */
+        void update(int start, int before, int after) {
+            final int delta = after - before;
+            if (delta != 0) {
+                Node[] parts = splitAfter(root, start + before);
+                shift(parts[1], delta);
+                setRoot(merge(parts[0], parts[1]));
+            }
+
+            final IndexedSpanEditable text = IndexedSpanEditable.this;
+            for (int t = 0, size = taken.size(); t < size; t++) {
+                Node node = taken.get(t);
+                int spanStart = text.getStoredSpanStart(node.span);
+                // unless removed by the builder, e.g. an empty exclusive span
+                if (spanStart >= 0) {
+                    attach(node, spanStart, text.getStoredSpanEnd(node.span));
+                } else {
+                    nodes.remove(node.span);
+                }
+            }
+            taken.clear();
+
+            if (after > 0) {
+                // spans of the inserted text
+                for (Object span : text.getStoredSpans(start, start + after, kind)) {
+                    if (!nodes.containsKey(span)) {
+                        set(span, text.getStoredSpanStart(span), text.getStoredSpanEnd(span),
+                                text.getStoredSpanFlags(span));
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param touching whether spans which only touch the range, e.g. end where it starts,
+         *                 are included. If false, this matches SpannableStringBuilder#getSpans.
+         * @return the nodes of the spans in index order, the list is reused by the next call
+         */
+        ArrayList<Node> query(int queryStart, int queryEnd, boolean touching) {
+            result.clear();
+            collect(root, 0, queryStart, queryEnd, touching);
+            return result;
+        }
+
+        /**
+         * @param offset sum of the pending shifts of the ancestors of node
+         */
+        private void collect(Node node, int offset, int queryStart, int queryEnd, boolean touching) {
+            while (node != null && node.maxEnd + offset >= queryStart) {
+                int childOffset = offset + node.shift;
+                collect(node.left, childOffset, queryStart, queryEnd, touching);
+
+                int spanStart = node.start + offset;
+                if (spanStart > queryEnd) {
+                    return;
+                }
+                int spanEnd = node.end + offset;
+                if (spanEnd >= queryStart && (touching || spanStart == spanEnd
+                        || queryStart == queryEnd
+                        || (spanStart != queryEnd && spanEnd != queryStart))) {
+                    result.add(node);
+                }
+                node = node.right;
+                offset = childOffset;
+            }
+        }
+
+        private void setRoot(Node node) {
+            root = node;
+            if (node != null) {
+                node.parent = null;
+            }
+        }
+
+        /**
+         * @return number of nodes before node in order
+         */
+        private int rankOf(Node node) {
+            int rank = count(node.left);
+            for (Node child = node, parent = node.parent; parent != null; child = parent, parent = parent.parent) {
+                if (parent.right == child) {
+                    rank += count(parent.left) + 1;
+                }
+            }
+            return rank;
+        }
+
+        /**
+         * @return the tree of the spans starting at or before start and the tree of the rest
+         */
+        private Node[] splitAfter(Node node, int start) {
+            if (node == null) {
+                return new Node[]{null, null};
+            }
+            push(node);
+            if (node.start <= start) {
+                Node[] parts = splitAfter(node.right, start);
+                node.right = parts[0];
+                recalculate(node);
+                return new Node[]{node, parts[1]};
+            }
+            Node[] parts = splitAfter(node.left, start);
+            node.left = parts[1];
+            recalculate(node);
+            return new Node[]{parts[0], node};
+        }
+
+        /**
+         * @return the tree of the first rank spans and the tree of the rest
+         */
+        private Node[] splitAt(Node node, int rank) {
+            if (node == null) {
+                return new Node[]{null, null};
+            }
+            push(node);
+            int leftCount = count(node.left);
+            if (rank <= leftCount) {
+                Node[] parts = splitAt(node.left, rank);
+                node.left = parts[1];
+                recalculate(node);
+                return new Node[]{parts[0], node};
+            }
+            Node[] parts = splitAt(node.right, rank - leftCount - 1);
+            node.right = parts[0];
+            recalculate(node);
+            return new Node[]{node, parts[1]};
+        }
+
+        private Node merge(Node left, Node right) {
+            if (left == null) {
+                return right;
+            }
+            if (right == null) {
+                return left;
+            }
+            if (left.priority > right.priority) {
+                push(left);
+                left.right = merge(left.right, right);
+                recalculate(left);
+                return left;
+            }
+            push(right);
+            right.left = merge(left, right.left);
+            recalculate(right);
+            return right;
+        }
+    }
+
+    private static int count(Node node) {
+        return node != null ? node.count : 0;
+    }
+
+    /**
+     * Moves the ranges of the subtree by delta, its children are moved by the next push
+     */
+    private static void shift(Node node, int delta) {
+        if (node != null) {
+            node.start += delta;
+            node.end += delta;
+            node.maxEnd += delta;
+            node.shift += delta;
+        }
+    }
+
+    private static void push(Node node) {
+        if (node.shift != 0) {
+            shift(node.left, node.shift);
+            shift(node.right, node.shift);
+            node.shift = 0;
+        }
+    }
+
+    /**
+     * Recalculates the subtree values of node from its children, which have no pending shift
+     * of node
+     */
+    private static void recalculate(Node node) {
+        node.count = 1;
+        node.maxEnd = node.end;
+        if (node.left != null) {
+            node.left.parent = node;
+            node.count += node.left.count;
+            node.maxEnd = Math.max(node.maxEnd, node.left.maxEnd);
+        }
+        if (node.right != null) {
+            node.right.parent = node;
+            node.count += node.right.count;
+            node.maxEnd = Math.max(node.maxEnd, node.right.maxEnd);
+        }
+    }
+
+    private static final class Node {
+        final Object span;
+        // of the span in the builder, by which getSpans sorts
+        final int order;
+        int spanPriority;
+
+        // of the node in the treap
+        final int priority;
+        // without the pending shifts of the ancestors
+        int start;
+        int end;
+        Node left;
+        Node right;
+        Node parent;
+
+        // Shift of the children not applied yet
+        int shift;
+
+        // of the subtree
+        int count;
+        int maxEnd;
+
+        Node(Object span, int order, int spanPriority, int priority) {
+            this.span = span;
+            this.order = order;
+            this.spanPriority = spanPriority;
+            this.priority = priority;
+        }
+
+        /**
+         * Makes the node a single node tree with the range [start, end]
+         */
+        void reset(int start, int end) {
+            this.start = start;
+            this.end = end;
+            left = null;
+            right = null;
+            parent = null;
+            shift = 0;
+            recalculate(this);
+        }
+    }
+}
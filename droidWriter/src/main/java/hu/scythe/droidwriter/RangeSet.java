@@ -0,0 +1,121 @@
+package hu.scythe.droidwriter;
+
+/**
+ * Sorted set of ranges of a text, merged where they overlap or touch. The ranges follow changes
+ * of the text, so they can be collected while the text is edited.
+ */
+final class RangeSet {
+
+    // Start and end of every range, sorted, without overlapping or touching ranges
+    private int[] bounds = new int[16];
+    private int size;
+
+    /**
+     * @return the number of ranges
+     */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int getStart(int index) {
+        return bounds[2 * index];
+    }
+
+    int getEnd(int index) {
+        return bounds[2 * index + 1];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds [start, end), merging it with the ranges it overlaps or touches. Empty ranges are
+     * ignored.
+     */
+    void add(int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        // the first range ending at or after start and the first one starting after end
+        int first = firstEndingAtOrAfter(start);
+        int last = first;
+        while (last < size && getStart(last) <= end) {
+            last++;
+        }
+
+        if (first < last) {
+            start = Math.min(start, getStart(first));
+            end = Math.max(end, getEnd(last - 1));
+        }
+        int removed = last - first;
+        if (removed == 0) {
+            if (2 * (size + 1) > bounds.length) {
+                int[] grown = new int[2 * bounds.length];
+                System.arraycopy(bounds, 0, grown, 0, 2 * size);
+                bounds = grown;
+            }
+            System.arraycopy(bounds, 2 * first, bounds, 2 * first + 2, 2 * (size - first));
+            size++;
+        } else if (removed > 1) {
+            System.arraycopy(bounds, 2 * last, bounds, 2 * first + 2, 2 * (size - last));
+            size -= removed - 1;
+        }
+        bounds[2 * first] = start;
+        bounds[2 * first + 1] = end;
+    }
+
+    /**
+     * Moves the ranges like the text when [start, start + before) is replaced by after characters.
+     * Positions in the replaced text move to its start, empty ranges are removed.
+     */
+    void replace(int start, int before, int after) {
+        final int end = start + before;
+        final int delta = after - before;
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int rangeStart = movedPosition(getStart(i), start, end, delta);
+            int rangeEnd = movedPosition(getEnd(i), start, end, delta);
+            if (rangeStart == rangeEnd) {
+                continue;
+            }
+            if (kept > 0 && bounds[2 * kept - 1] >= rangeStart) {
+                // touches the previous range after the replaced text collapsed
+                bounds[2 * kept - 1] = rangeEnd;
+                continue;
+            }
+            bounds[2 * kept] = rangeStart;
+            bounds[2 * kept + 1] = rangeEnd;
+            kept++;
+        }
+        size = kept;
+    }
+
+    private static int movedPosition(int position, int start, int end, int delta) {
+        if (position <= start) {
+            return position;
+        }
+        if (position < end) {
+            return start;
+        }
+        return position + delta;
+    }
+
+    private int firstEndingAtOrAfter(int position) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getEnd(middle) < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
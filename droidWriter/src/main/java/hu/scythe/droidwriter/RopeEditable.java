@@ -0,0 +1,920 @@
+package hu.scythe.droidwriter;
+
+import android.text.Editable;
+import android.text.GetChars;
+import android.text.InputFilter;
+import android.text.NoCopySpan;
+import android.text.Selection;
+import android.text.SpanWatcher;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+/**
+ * Editable for very large documents, which stores its text in chunks of at most
+ * {@link #MAX_CHUNK_LENGTH} characters instead of one gap buffer. A Fenwick tree over the chunk
+ * lengths maps positions to chunks in O(log chunks), so an edit only copies the characters of the
+ * chunk it happens in, however far it is from the previous one.
+ * <p/>
+ * Span boundaries are stored relative to the chunk they are in, so an edit only moves the spans
+ * anchored in the edited chunks, not every span after it like {@link SpannableStringBuilder}
+ * does. A segment tree over the chunks holds the last chunk reached by the spans starting in
+ * each chunk, so getSpans only looks at the span lists of chunks with a span reaching the queried
+ * range, O(log chunks) for each of them. Documents with few spans per chunk profit most.
+ * <p/>
+ * Span flags, input filters, text watchers and span watchers behave like in
+ * {@link SpannableStringBuilder}. Install it with
+ * {@link android.widget.TextView#setEditableFactory(Editable.Factory)} and
+ * {@link Factory#getInstance()}.
+ */
+public class RopeEditable implements Editable, GetChars {
+
+    public static final int MAX_CHUNK_LENGTH = 2048;
+    private static final int INITIAL_CHUNK_LENGTH = MAX_CHUNK_LENGTH / 2;
+
+    private static final InputFilter[] NO_FILTERS = new InputFilter[0];
+
+    // Span boundary flags, as stored in the start and end nibble of the span flags
+    private static final int MARK = 1;
+    private static final int POINT = 2;
+    private static final int PARAGRAPH = 3;
+    private static final int START_SHIFT = 4;
+    private static final int BOUNDARY_MASK = 0x0F;
+
+    private static final Comparator<SpanRecord> SPAN_ORDER = new Comparator<SpanRecord>() {
+        @Override
+        public int compare(SpanRecord a, SpanRecord b) {
+            int priorityA = a.flags & Spanned.SPAN_PRIORITY;
+            int priorityB = b.flags & Spanned.SPAN_PRIORITY;
+            if (priorityA != priorityB) {
+                return priorityA > priorityB ? -1 : 1;
+            }
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    };
+
+    /**
+     * Never empty, an empty text has one empty chunk. Only the last chunk may end with a span
+     * boundary, i.e. a boundary at a chunk's end is anchored at the start of the next one.
+     */
+    private final ArrayList<Chunk> chunks = new ArrayList<>();
+    /**
+     * 1-based Fenwick tree over the chunk lengths
+     */
+    private int[] chunkTree = new int[2];
+    private int length;
+
+    /**
+     * 1-based segment tree over the chunks, with spanTreeLeaves leaves. A leaf holds the index of
+     * the last chunk a span starting in its chunk ends in, -1 if none, an inner node the maximum
+     * of its children.
+     */
+    private int[] spanTree = new int[2];
+    private int spanTreeLeaves = 1;
+    /**
+     * Chunks whose leaf has to be updated before the next query
+     */
+    private final ArrayList<Chunk> spanTreeChanges = new ArrayList<>();
+
+    private final IdentityHashMap<Object, SpanRecord> records = new IdentityHashMap<>();
+    private int nextOrder;
+    private int changeCount;
+
+    private InputFilter[] filters = NO_FILTERS;
+
+    // chunk of the last charAt call
+    private int cachedChunk;
+    private int cachedChunkStart;
+    private int cachedChunkEnd;
+
+    public RopeEditable() {
+        this("");
+    }
+
+    public RopeEditable(CharSequence text) {
+        final int textLength = text.length();
+        int start = 0;
+        do {
+            int end = Math.min(textLength, start + INITIAL_CHUNK_LENGTH);
+            Chunk chunk = new Chunk(Math.max(end - start, 16));
+            copyChars(text, start, end, chunk.text, 0);
+            chunk.length = end - start;
+            chunk.index = chunks.size();
+            chunks.add(chunk);
+            start = end;
+        } while (start < textLength);
+        length = textLength;
+        rebuildChunkTree();
+        rebuildSpanTree();
+
+        if (text instanceof Spanned) {
+            Spanned spanned = (Spanned) text;
+            for (Object span : spanned.getSpans(0, textLength, Object.class)) {
+                if (span instanceof NoCopySpan) {
+                    continue;
+                }
+                attach(newRecord(span, spanned.getSpanFlags(span)), spanned.getSpanStart(span),
+                        spanned.getSpanEnd(span));
+            }
+        }
+    }
+
+    /**
+     * Creates {@link RopeEditable}s for a TextView
+     */
+    public static class Factory extends Editable.Factory {
+        private static final Factory INSTANCE = new Factory();
+
+        public static Factory getInstance() {
+            return INSTANCE;
+        }
+
+        @Override
+        public Editable newEditable(CharSequence source) {
+            return new RopeEditable(source);
+        }
+    }
+
+    // CharSequence
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int where) {
+        if (where < 0 || where >= length) {
+            throw new IndexOutOfBoundsException("charAt: " + where + " outside 0 ... " + length);
+        }
+        if (where < cachedChunkStart || where >= cachedChunkEnd) {
+            cachedChunk = findChunk(where);
+            cachedChunkStart = chunkStart(cachedChunk);
+            cachedChunkEnd = cachedChunkStart + chunks.get(cachedChunk).length;
+        }
+        return chunks.get(cachedChunk).text[where - cachedChunkStart];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new SpannableStringBuilder(this, start, end);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        getChars(0, length, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        checkRange("getChars", start, end);
+        int index = findChunk(start);
+        int offset = start - chunkStart(index);
+        while (start < end) {
+            Chunk chunk = chunks.get(index);
+            int count = Math.min(chunk.length - offset, end - start);
+            System.arraycopy(chunk.text, offset, dest, destoff, count);
+            start += count;
+            destoff += count;
+            offset = 0;
+            index++;
+        }
+    }
+
+    // Editable
+
+    @Override
+    public Editable replace(int st, int en, CharSequence source, int start, int end) {
+        checkRange("replace", st, en);
+
+        for (InputFilter filter : filters) {
+            CharSequence replacement = filter.filter(source, start, end, this, st, en);
+            if (replacement != null) {
+                source = replacement;
+                start = 0;
+                end = replacement.length();
+            }
+        }
+
+        final int before = en - st;
+        final int after = end - start;
+        if (before == 0 && after == 0) {
+            return this;
+        }
+
+        TextWatcher[] textWatchers = getSpans(st, st + before, TextWatcher.class);
+        for (TextWatcher watcher : textWatchers) {
+            watcher.beforeTextChanged(this, st, before, after);
+        }
+
+        SpanChanges spanChanges = new SpanChanges();
+        change(st, en, source, start, end, spanChanges);
+
+        for (TextWatcher watcher : textWatchers) {
+            watcher.onTextChanged(this, st, before, after);
+        }
+        for (TextWatcher watcher : textWatchers) {
+            watcher.afterTextChanged(this);
+        }
+
+        spanChanges.send(this);
+        return this;
+    }
+
+    @Override
+    public Editable replace(int st, int en, CharSequence text) {
+        return replace(st, en, text, 0, text.length());
+    }
+
+    @Override
+    public Editable insert(int where, CharSequence text, int start, int end) {
+        return replace(where, where, text, start, end);
+    }
+
+    @Override
+    public Editable insert(int where, CharSequence text) {
+        return replace(where, where, text, 0, text.length());
+    }
+
+    @Override
+    public Editable delete(int st, int en) {
+        return replace(st, en, "", 0, 0);
+    }
+
+    @Override
+    public Editable append(CharSequence text) {
+        return replace(length, length, text, 0, text.length());
+    }
+
+    @Override
+    public Editable append(CharSequence text, int start, int end) {
+        return replace(length, length, text, start, end);
+    }
+
+    @Override
+    public Editable append(char text) {
+        return append(String.valueOf(text));
+    }
+
+    @Override
+    public void clear() {
+        replace(0, length, "", 0, 0);
+    }
+
+    @Override
+    public void clearSpans() {
+        Object[] spans = records.keySet().toArray();
+        for (int i = spans.length - 1; i >= 0; i--) {
+            removeSpan(spans[i]);
+        }
+    }
+
+    @Override
+    public void setFilters(InputFilter[] filters) {
+        if (filters == null) {
+            throw new IllegalArgumentException();
+        }
+        this.filters = filters;
+    }
+
+    @Override
+    public InputFilter[] getFilters() {
+        return filters;
+    }
+
+    // Spannable
+
+    @Override
+    public void setSpan(Object what, int start, int end, int flags) {
+        checkRange("setSpan", start, end);
+        if (boundaryFlag(flags, false) == PARAGRAPH && !isParagraphBoundary(start)) {
+            throw new RuntimeException("PARAGRAPH span must start at paragraph boundary");
+        }
+        if (boundaryFlag(flags, true) == PARAGRAPH && !isParagraphBoundary(end)) {
+            throw new RuntimeException("PARAGRAPH span must end at paragraph boundary");
+        }
+
+        SpanRecord record = records.get(what);
+        if (record != null) {
+            int oldStart = getStart(record);
+            int oldEnd = getEnd(record);
+            detach(record);
+            record.flags = flags;
+            attach(record, start, end);
+            sendSpanChanged(what, oldStart, oldEnd, start, end);
+        } else {
+            attach(newRecord(what, flags), start, end);
+            sendSpanAdded(what, start, end);
+        }
+    }
+
+    @Override
+    public void removeSpan(Object what) {
+        SpanRecord record = records.remove(what);
+        if (record == null) {
+            return;
+        }
+        int start = getStart(record);
+        int end = getEnd(record);
+        detach(record);
+        sendSpanRemoved(what, start, end);
+    }
+
+    // Spanned
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
+        if (kind == null) {
+            return (T[]) new Object[0];
+        }
+
+        ArrayList<SpanRecord> found = collect(queryStart, queryEnd, kind, false);
+        if (found.size() > 1) {
+            Collections.sort(found, SPAN_ORDER);
+        }
+
+        T[] spans = (T[]) Array.newInstance(kind, found.size());
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = (T) found.get(i).span;
+        }
+        return spans;
+    }
+
+    @Override
+    public int getSpanStart(Object what) {
+        SpanRecord record = records.get(what);
+        return record != null ? getStart(record) : -1;
+    }
+
+    @Override
+    public int getSpanEnd(Object what) {
+        SpanRecord record = records.get(what);
+        return record != null ? getEnd(record) : -1;
+    }
+
+    @Override
+    public int getSpanFlags(Object what) {
+        SpanRecord record = records.get(what);
+        return record != null ? record.flags : 0;
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class kind) {
+        if (kind == null) {
+            kind = Object.class;
+        }
+        for (SpanRecord record : collect(start, limit, kind, true)) {
+            int spanStart = getStart(record);
+            int spanEnd = getEnd(record);
+            if (spanStart > start && spanStart < limit) {
+                limit = spanStart;
+            }
+            if (spanEnd > start && spanEnd < limit) {
+                limit = spanEnd;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Replaces the text and moves the span boundaries in the affected chunks, like
+     * SpannableStringBuilder does with the boundaries in the replaced range
+     */
+    private void change(int st, int en, CharSequence source, int start, int end, SpanChanges spanChanges) {
+        final int before = en - st;
+        final int after = end - start;
+        final int first = findChunk(st);
+        final int last = findChunk(en);
+        final int selectionStart = getSpanStart(Selection.SELECTION_START);
+        final int selectionEnd = getSpanStart(Selection.SELECTION_END);
+
+        // take the spans anchored in the affected chunks out, remembering their positions
+        final int mark = ++changeCount;
+        final ArrayList<SpanRecord> moved = new ArrayList<>();
+        final ArrayList<int[]> oldPositions = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            Chunk chunk = chunks.get(i);
+            takeRecords(chunk.starting, mark, moved, oldPositions);
+            takeRecords(chunk.ending, mark, moved, oldPositions);
+        }
+        for (SpanRecord record : moved) {
+            detach(record);
+        }
+
+        replaceText(first, last, st, en, source, start, end);
+        cachedChunkStart = cachedChunkEnd = 0;
+
+        for (int i = 0, size = moved.size(); i < size; i++) {
+            SpanRecord record = moved.get(i);
+            int oldStart = oldPositions.get(i)[0];
+            int oldEnd = oldPositions.get(i)[1];
+            int newStart = updatedPosition(oldStart, st, en, after, boundaryFlag(record.flags, false));
+            int newEnd = updatedPosition(oldEnd, st, en, after, boundaryFlag(record.flags, true));
+
+            if (newStart > newEnd
+                    || ((record.flags & Spanned.SPAN_POINT_MARK_MASK) == Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+                    && newStart == newEnd && before > 0 && oldStart >= st && oldEnd <= en)) {
+                records.remove(record.span);
+                spanChanges.removed(record.span, Math.min(newStart, newEnd), Math.min(newStart, newEnd));
+                continue;
+            }
+
+            if (boundaryFlag(record.flags, false) == PARAGRAPH) {
+                newStart = nextParagraphBoundary(newStart);
+            }
+            if (boundaryFlag(record.flags, true) == PARAGRAPH) {
+                newEnd = nextParagraphBoundary(newEnd);
+            }
+            attach(record, newStart, newEnd);
+
+            boolean inRange = (oldStart >= st && oldStart <= en) || (oldEnd >= st && oldEnd <= en);
+            if (inRange && (newStart != oldStart || newEnd != oldEnd)) {
+                spanChanges.changed(record.span, oldStart, oldEnd, newStart, newEnd);
+            }
+        }
+
+        // the selection may have moved with the text without being in the replaced range
+        notifySelectionMoved(Selection.SELECTION_START, selectionStart, st, en, after, spanChanges);
+        notifySelectionMoved(Selection.SELECTION_END, selectionEnd, st, en, after, spanChanges);
+
+        if (after > 0 && source instanceof Spanned) {
+            Spanned spanned = (Spanned) source;
+            for (Object span : spanned.getSpans(start, end, Object.class)) {
+                if (span instanceof NoCopySpan || records.containsKey(span)) {
+                    continue;
+                }
+                int spanStart = Math.max(spanned.getSpanStart(span), start) - start + st;
+                int spanEnd = Math.min(spanned.getSpanEnd(span), end) - start + st;
+                attach(newRecord(span, spanned.getSpanFlags(span)), spanStart, spanEnd);
+                spanChanges.added(span, spanStart, spanEnd);
+            }
+        }
+    }
+
+    private void notifySelectionMoved(Object selection, int oldPosition, int st, int en, int after,
+                                      SpanChanges spanChanges) {
+        if (oldPosition > en && after != en - st) {
+            int newPosition = getSpanStart(selection);
+            spanChanges.changed(selection, oldPosition, oldPosition, newPosition, newPosition);
+        }
+    }
+
+    private void takeRecords(ArrayList<SpanRecord> anchored, int mark, ArrayList<SpanRecord> moved,
+                             ArrayList<int[]> oldPositions) {
+        for (int i = 0, size = anchored.size(); i < size; i++) {
+            SpanRecord record = anchored.get(i);
+            if (record.mark != mark) {
+                record.mark = mark;
+                moved.add(record);
+                oldPositions.add(new int[]{getStart(record), getEnd(record)});
+            }
+        }
+    }
+
+    /**
+     * @return the position of a span boundary at position after replacing [st, en] with after
+     * characters
+     */
+    private static int updatedPosition(int position, int st, int en, int after, int flag) {
+        if (position < st) {
+            return position;
+        }
+        if (position > en) {
+            return position + after - (en - st);
+        }
+        if (after == 0) {
+            // text removed
+            return st;
+        }
+        if (flag == MARK) {
+            // marks stay before inserted text, unless they were at the end of replaced text
+            return position == en && en > st ? st + after : st;
+        }
+        // points move after inserted text, unless they were at the start of replaced text
+        return position > st || en == st ? st + after : st;
+    }
+
+    /**
+     * Replaces the text of chunks first to last, in place if it stays in one chunk
+     */
+    private void replaceText(int first, int last, int st, int en, CharSequence source, int start, int end) {
+        final int delta = (end - start) - (en - st);
+        final int regionStart = chunkStart(first);
+        final Chunk firstChunk = chunks.get(first);
+        final Chunk lastChunk = chunks.get(last);
+        final int lastChunkStart = first == last ? regionStart : chunkStart(last);
+        final int regionLength = lastChunkStart + lastChunk.length - regionStart + delta;
+        length += delta;
+
+        if (first == last && regionLength <= MAX_CHUNK_LENGTH && (regionLength > 0 || chunks.size() == 1)) {
+            firstChunk.ensureCapacity(regionLength);
+            int tail = en - regionStart;
+            System.arraycopy(firstChunk.text, tail, firstChunk.text, tail + delta, firstChunk.length - tail);
+            copyChars(source, start, end, firstChunk.text, st - regionStart);
+            firstChunk.length = regionLength;
+            addChunkLength(first, delta);
+            return;
+        }
+
+        char[] region = new char[regionLength];
+        System.arraycopy(firstChunk.text, 0, region, 0, st - regionStart);
+        copyChars(source, start, end, region, st - regionStart);
+        int tail = en - lastChunkStart;
+        System.arraycopy(lastChunk.text, tail, region, st - regionStart + end - start, lastChunk.length - tail);
+
+        int pieces = (regionLength + MAX_CHUNK_LENGTH - 1) / MAX_CHUNK_LENGTH;
+        if (pieces == 0 && chunks.size() == last - first + 1) {
+            // keep one empty chunk
+            pieces = 1;
+        }
+        ArrayList<Chunk> replacement = new ArrayList<>(pieces);
+        for (int i = 0; i < pieces; i++) {
+            int pieceStart = (int) ((long) regionLength * i / pieces);
+            int pieceEnd = (int) ((long) regionLength * (i + 1) / pieces);
+            Chunk chunk = new Chunk(Math.max(pieceEnd - pieceStart, 16));
+            System.arraycopy(region, pieceStart, chunk.text, 0, pieceEnd - pieceStart);
+            chunk.length = pieceEnd - pieceStart;
+            replacement.add(chunk);
+        }
+
+        chunks.subList(first, last + 1).clear();
+        chunks.addAll(first, replacement);
+        for (int i = first, size = chunks.size(); i < size; i++) {
+            chunks.get(i).index = i;
+        }
+        rebuildChunkTree();
+        rebuildSpanTree();
+    }
+
+    /**
+     * @return the spans of class kind which overlap [queryStart, queryEnd], unsorted
+     * @param touching whether to include spans which only touch the range, otherwise the rules
+     *                 of SpannableStringBuilder#getSpans apply
+     */
+    private ArrayList<SpanRecord> collect(int queryStart, int queryEnd, Class<?> kind, boolean touching) {
+        final ArrayList<SpanRecord> found = new ArrayList<>();
+        final int firstChunk = findChunk(Math.max(0, Math.min(queryStart, length)));
+        final int lastChunk = findChunk(Math.max(0, Math.min(queryEnd, length)));
+        updateSpanTree();
+
+        // chunks with a span ending in or after the first chunk of the range
+        for (int i = nextChunkReaching(1, 0, spanTreeLeaves, 0, firstChunk); i >= 0 && i <= lastChunk;
+             i = nextChunkReaching(1, 0, spanTreeLeaves, i + 1, firstChunk)) {
+            Chunk chunk = chunks.get(i);
+            int chunkStart = chunkStart(i);
+            for (int j = 0, size = chunk.starting.size(); j < size; j++) {
+                SpanRecord record = chunk.starting.get(j);
+                if (!kind.isInstance(record.span)) {
+                    continue;
+                }
+                int spanStart = chunkStart + record.startOffset;
+                if (spanStart > queryEnd) {
+                    continue;
+                }
+                int spanEnd = getEnd(record);
+                if (spanEnd < queryStart) {
+                    continue;
+                }
+                if (!touching && spanStart != spanEnd && queryStart != queryEnd
+                        && (spanStart == queryEnd || spanEnd == queryStart)) {
+                    continue;
+                }
+                found.add(record);
+            }
+        }
+        return found;
+    }
+
+    private SpanRecord newRecord(Object span, int flags) {
+        SpanRecord record = new SpanRecord(span, flags, nextOrder++);
+        records.put(span, record);
+        return record;
+    }
+
+    private void attach(SpanRecord record, int start, int end) {
+        int startIndex = findChunk(start);
+        int endIndex = findChunk(end);
+        record.startChunk = chunks.get(startIndex);
+        record.startOffset = start - chunkStart(startIndex);
+        record.endChunk = chunks.get(endIndex);
+        record.endOffset = end - chunkStart(endIndex);
+        record.startChunk.starting.add(record);
+        record.endChunk.ending.add(record);
+        invalidateMaxEnd(record.startChunk);
+    }
+
+    private void detach(SpanRecord record) {
+        record.startChunk.starting.remove(record);
+        record.endChunk.ending.remove(record);
+        invalidateMaxEnd(record.startChunk);
+    }
+
+    private void invalidateMaxEnd(Chunk chunk) {
+        if (chunk.maxEndValid) {
+            chunk.maxEndValid = false;
+            spanTreeChanges.add(chunk);
+        }
+    }
+
+    private int getStart(SpanRecord record) {
+        return chunkStart(record.startChunk.index) + record.startOffset;
+    }
+
+    private int getEnd(SpanRecord record) {
+        return chunkStart(record.endChunk.index) + record.endOffset;
+    }
+
+    /**
+     * Copies the characters in [start, end) of source to dest, like TextUtils#getChars
+     */
+    private static void copyChars(CharSequence source, int start, int end, char[] dest, int destoff) {
+        if (source instanceof String) {
+            ((String) source).getChars(start, end, dest, destoff);
+        } else if (source instanceof GetChars) {
+            ((GetChars) source).getChars(start, end, dest, destoff);
+        } else {
+            for (int i = start; i < end; i++) {
+                dest[destoff++] = source.charAt(i);
+            }
+        }
+    }
+
+    private static int boundaryFlag(int flags, boolean atEnd) {
+        return atEnd ? flags & BOUNDARY_MASK : (flags >> START_SHIFT) & BOUNDARY_MASK;
+    }
+
+    private boolean isParagraphBoundary(int position) {
+        return position == 0 || position == length || charAt(position - 1) == '\n';
+    }
+
+    private int nextParagraphBoundary(int position) {
+        while (!isParagraphBoundary(position)) {
+            position++;
+        }
+        return position;
+    }
+
+    // Chunk tree
+
+    private void rebuildChunkTree() {
+        final int count = chunks.size();
+        if (chunkTree.length < count + 1) {
+            chunkTree = new int[count + 1 + count / 2];
+        }
+        Arrays.fill(chunkTree, 0);
+        for (int i = 1; i <= count; i++) {
+            chunkTree[i] += chunks.get(i - 1).length;
+            int parent = i + (i & -i);
+            if (parent <= count) {
+                chunkTree[parent] += chunkTree[i];
+            }
+        }
+    }
+
+    private void addChunkLength(int index, int delta) {
+        for (int i = index + 1, count = chunks.size(); i <= count; i += i & -i) {
+            chunkTree[i] += delta;
+        }
+    }
+
+    // Span tree
+
+    private void rebuildSpanTree() {
+        final int count = chunks.size();
+        spanTreeLeaves = Math.max(1, Integer.highestOneBit(count - 1) << 1);
+        if (spanTree.length < 2 * spanTreeLeaves) {
+            spanTree = new int[2 * spanTreeLeaves];
+        }
+        Arrays.fill(spanTree, -1);
+        for (int i = 0; i < count; i++) {
+            spanTree[spanTreeLeaves + i] = maxEndIndex(chunks.get(i));
+        }
+        for (int node = spanTreeLeaves - 1; node > 0; node--) {
+            spanTree[node] = Math.max(spanTree[2 * node], spanTree[2 * node + 1]);
+        }
+        spanTreeChanges.clear();
+    }
+
+    private void updateSpanTree() {
+        for (int i = 0, size = spanTreeChanges.size(); i < size; i++) {
+            Chunk chunk = spanTreeChanges.get(i);
+            if (chunk.index >= chunks.size() || chunks.get(chunk.index) != chunk) {
+                // replaced since
+                continue;
+            }
+            int node = spanTreeLeaves + chunk.index;
+            spanTree[node] = maxEndIndex(chunk);
+            for (node >>= 1; node > 0; node >>= 1) {
+                spanTree[node] = Math.max(spanTree[2 * node], spanTree[2 * node + 1]);
+            }
+        }
+        spanTreeChanges.clear();
+    }
+
+    private static int maxEndIndex(Chunk chunk) {
+        Chunk maxEnd = chunk.getMaxEnd();
+        return maxEnd != null ? maxEnd.index : -1;
+    }
+
+    /**
+     * @return the first chunk index at or after from, within [nodeStart, nodeEnd) of node, whose
+     * spans reach the chunk at minEnd, -1 if there is none
+     */
+    private int nextChunkReaching(int node, int nodeStart, int nodeEnd, int from, int minEnd) {
+        if (nodeEnd <= from || spanTree[node] < minEnd) {
+            return -1;
+        }
+        if (nodeEnd - nodeStart == 1) {
+            return nodeStart;
+        }
+        int middle = (nodeStart + nodeEnd) >>> 1;
+        int found = nextChunkReaching(2 * node, nodeStart, middle, from, minEnd);
+        return found >= 0 ? found : nextChunkReaching(2 * node + 1, middle, nodeEnd, from, minEnd);
+    }
+
+    /**
+     * @return position of the first character of the chunk at index
+     */
+    private int chunkStart(int index) {
+        int start = 0;
+        for (int i = index; i > 0; i -= i & -i) {
+            start += chunkTree[i];
+        }
+        return start;
+    }
+
+    /**
+     * @return index of the chunk containing position, the last chunk for the end of the text
+     */
+    private int findChunk(int position) {
+        final int count = chunks.size();
+        int index = 0;
+        for (int step = Integer.highestOneBit(count); step > 0; step >>= 1) {
+            int next = index + step;
+            if (next <= count && chunkTree[next] <= position) {
+                index = next;
+                position -= chunkTree[next];
+            }
+        }
+        return Math.min(index, count - 1);
+    }
+
+    private void checkRange(String operation, int start, int end) {
+        if (end < start) {
+            throw new IndexOutOfBoundsException(operation + " " + start + " ... " + end + " has end before start");
+        }
+        if (start < 0 || end > length) {
+            throw new IndexOutOfBoundsException(operation + " " + start + " ... " + end + " ends beyond length " + length);
+        }
+    }
+
+    // Span watchers
+
+    private void sendSpanAdded(Object what, int start, int end) {
+        for (SpanWatcher watcher : getSpans(start, end, SpanWatcher.class)) {
+            watcher.onSpanAdded(this, what, start, end);
+        }
+    }
+
+    private void sendSpanRemoved(Object what, int start, int end) {
+        for (SpanWatcher watcher : getSpans(start, end, SpanWatcher.class)) {
+            watcher.onSpanRemoved(this, what, start, end);
+        }
+    }
+
+    private void sendSpanChanged(Object what, int oldStart, int oldEnd, int start, int end) {
+        SpanWatcher[] watchers = getSpans(Math.min(oldStart, start),
+                Math.min(Math.max(oldEnd, end), length), SpanWatcher.class);
+        for (SpanWatcher watcher : watchers) {
+            watcher.onSpanChanged(this, what, oldStart, oldEnd, start, end);
+        }
+    }
+
+    /**
+     * Span watcher calls caused by a replace, sent once the text watchers are done
+     */
+    private static class SpanChanges {
+        private final ArrayList<Object> spans = new ArrayList<>();
+        // kind, old start, old end, start, end for each span
+        private int[] positions = new int[5 * 4];
+
+        private static final int ADDED = 0;
+        private static final int REMOVED = 1;
+        private static final int CHANGED = 2;
+
+        void added(Object span, int start, int end) {
+            add(span, ADDED, start, end, start, end);
+        }
+
+        void removed(Object span, int start, int end) {
+            add(span, REMOVED, start, end, start, end);
+        }
+
+        void changed(Object span, int oldStart, int oldEnd, int start, int end) {
+            add(span, CHANGED, oldStart, oldEnd, start, end);
+        }
+
+        private void add(Object span, int kind, int oldStart, int oldEnd, int start, int end) {
+            int i = spans.size() * 5;
+            if (i + 5 > positions.length) {
+                positions = Arrays.copyOf(positions, positions.length * 2);
+            }
+            positions[i] = kind;
+            positions[i + 1] = oldStart;
+            positions[i + 2] = oldEnd;
+            positions[i + 3] = start;
+            positions[i + 4] = end;
+            spans.add(span);
+        }
+
+        void send(RopeEditable text) {
+            for (int s = 0, size = spans.size(); s < size; s++) {
+                int i = s * 5;
+                Object span = spans.get(s);
+                switch (positions[i]) {
+                    case ADDED:
+                        text.sendSpanAdded(span, positions[i + 3], positions[i + 4]);
+                        break;
+                    case REMOVED:
+                        text.sendSpanRemoved(span, positions[i + 3], positions[i + 4]);
+                        break;
+                    default:
+                        text.sendSpanChanged(span, positions[i + 1], positions[i + 2],
+                                positions[i + 3], positions[i + 4]);
+                        break;
+                }
+            }
+        }
+    }
+
+    private static final class Chunk {
+        char[] text;
+        int length;
+        int index;
+
+        /**
+         * Spans whose start respectively end is in this chunk
+         */
+        final ArrayList<SpanRecord> starting = new ArrayList<>(0);
+        final ArrayList<SpanRecord> ending = new ArrayList<>(0);
+
+        /**
+         * The chunk with the highest index any span starting in this chunk ends in, null if no
+         * span starts here
+         */
+        private Chunk maxEnd;
+        boolean maxEndValid = true;
+
+        Chunk(int capacity) {
+            text = new char[capacity];
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > text.length) {
+                text = Arrays.copyOf(text, Math.min(Math.max(capacity, text.length * 2), MAX_CHUNK_LENGTH));
+            }
+        }
+
+        Chunk getMaxEnd() {
+            if (!maxEndValid) {
+                maxEnd = null;
+                for (int i = 0, size = starting.size(); i < size; i++) {
+                    Chunk end = starting.get(i).endChunk;
+                    if (maxEnd == null || end.index > maxEnd.index) {
+                        maxEnd = end;
+                    }
+                }
+                maxEndValid = true;
+            }
+            return maxEnd;
+        }
+    }
+
+    private static final class SpanRecord {
+        final Object span;
+        final int order;
+        int flags;
+        int mark;
+
+        Chunk startChunk;
+        int startOffset;
+        Chunk endChunk;
+        int endOffset;
+
+        SpanRecord(Object span, int flags, int order) {
+            this.span = span;
+            this.flags = flags;
+            this.order = order;
+        }
+    }
+}
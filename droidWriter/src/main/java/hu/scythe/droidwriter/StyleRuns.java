@@ -0,0 +1,428 @@
+package hu.scythe.droidwriter;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Bold, italic and underline of every character of a text, as runs of characters with the same
+ * attributes. The runs are kept in an implicit treap ordered by position, every node knows the
+ * length and the common and combined attributes of its subtree, so finding, splitting and
+ * changing runs costs O(log runs). Neighbouring runs never have the same attributes.
+ */
+final class StyleRuns {
+
+    static final int BOLD = 1;
+    static final int ITALIC = 2;
+    static final int UNDERLINE = 4;
+    static final int ALL = BOLD | ITALIC | UNDERLINE;
+
+    private final Random random = new Random();
+    private Node root;
+
+    // Incremented by every change
+    private int version;
+
+    int length() {
+        return length(root);
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    int runCount() {
+        return root != null ? root.count : 0;
+    }
+
+    void clear() {
+        root = null;
+        version++;
+    }
+
+    /**
+     * Inserts length characters with the given attributes at position
+     */
+    void insert(int position, int length, int attributes) {
+        if (length <= 0) {
+            return;
+        }
+        version++;
+        Node[] parts = split(root, position);
+        root = merge(merge(parts[0], new Node(length, attributes, random.nextInt())), parts[1]);
+        coalesce(position + length);
+        coalesce(position);
+    }
+
+    /**
+     * Removes the characters in [start, end)
+     */
+    void delete(int start, int end) {
+        if (end <= start) {
+            return;
+        }
+        version++;
+        Node[] tail = split(root, end);
+        Node[] head = split(tail[0], start);
+        root = merge(head[0], tail[1]);
+        coalesce(start);
+    }
+
+    /**
+     * Sets or clears the attributes in mask for the characters in [start, end)
+     */
+    void setAttributes(int start, int end, int mask, boolean set) {
+        if (end <= start) {
+            return;
+        }
+        version++;
+        Node[] tail = split(root, end);
+        Node[] head = split(tail[0], start);
+
+        // rebuilds the middle part from its runs, merging the ones which become equal
+        Node middle = null;
+        Node pending = null;
+        ArrayList<Node> runs = new ArrayList<>();
+        collect(head[1], runs);
+        for (Node run : runs) {
+            int attributes = set ? run.attributes | mask : run.attributes & ~mask;
+            if (pending != null && pending.attributes == attributes) {
+                pending.runLength += run.runLength;
+                update(pending);
+            } else {
+                if (pending != null) {
+                    middle = merge(middle, pending);
+                }
+                pending = new Node(run.runLength, attributes, random.nextInt());
+            }
+        }
+        middle = merge(middle, pending);
+
+        root = merge(merge(head[0], middle), tail[1]);
+        coalesce(end);
+        coalesce(start);
+    }
+
+    /**
+     * @return the runs of [start, end) as pairs of length and attributes
+     */
+    int[] getRuns(int start, int end) {
+        if (end <= start) {
+            return new int[0];
+        }
+        Node[] tail = split(root, end);
+        Node[] head = split(tail[0], start);
+        ArrayList<Node> runs = new ArrayList<>();
+        collect(head[1], runs);
+
+        int[] result = new int[runs.size() * 2];
+        for (int i = 0; i < runs.size(); i++) {
+            result[2 * i] = runs.get(i).runLength;
+            result[2 * i + 1] = runs.get(i).attributes;
+        }
+
+        root = merge(merge(head[0], head[1]), tail[1]);
+        coalesce(end);
+        coalesce(start);
+        return result;
+    }
+
+    /**
+     * Replaces the attributes of the characters from start with runs, pairs of length and
+     * attributes as returned by {@link #getRuns(int, int)}
+     */
+    void setRuns(int start, int[] runs) {
+        int end = start;
+        for (int i = 0; i < runs.length; i += 2) {
+            end += runs[i];
+        }
+        if (end <= start) {
+            return;
+        }
+        version++;
+        Node[] tail = split(root, end);
+        Node[] head = split(tail[0], start);
+
+        Node middle = null;
+        Node pending = null;
+        for (int i = 0; i < runs.length; i += 2) {
+            if (runs[i] <= 0) {
+                continue;
+            }
+            if (pending != null && pending.attributes == runs[i + 1]) {
+                pending.runLength += runs[i];
+                update(pending);
+            } else {
+                if (pending != null) {
+                    middle = merge(middle, pending);
+                }
+                pending = new Node(runs[i], runs[i + 1], random.nextInt());
+            }
+        }
+        middle = merge(middle, pending);
+
+        root = merge(merge(head[0], middle), tail[1]);
+        coalesce(end);
+        coalesce(start);
+    }
+
+    /**
+     * @return attributes of the character at position
+     */
+    int attributesAt(int position) {
+        Node node = root;
+        while (node != null) {
+            int leftLength = length(node.left);
+            if (position < leftLength) {
+                node = node.left;
+            } else if (position < leftLength + node.runLength) {
+                return node.attributes;
+            } else {
+                position -= leftLength + node.runLength;
+                node = node.right;
+            }
+        }
+        return 0;
+    }
+
+    boolean hasAttribute(int position, int attribute) {
+        return (attributesAt(position) & attribute) != 0;
+    }
+
+    /**
+     * @return attributes all characters in [start, end) have, {@link #ALL} for an empty range
+     */
+    int commonAttributes(int start, int end) {
+        if (end <= start) {
+            return ALL;
+        }
+        return commonAttributes(root, 0, start, end);
+    }
+
+    private static int commonAttributes(Node node, int offset, int start, int end) {
+        if (node == null || end <= offset || start >= offset + node.length) {
+            return ALL;
+        }
+        if (start <= offset && end >= offset + node.length) {
+            return node.commonAttributes;
+        }
+        int runStart = offset + length(node.left);
+        int result = commonAttributes(node.left, offset, start, end);
+        if (start < runStart + node.runLength && end > runStart) {
+            result &= node.attributes;
+        }
+        return result & commonAttributes(node.right, runStart + node.runLength, start, end);
+    }
+
+    /**
+     * @return the first position at or after from whose character has attribute, length() if
+     * there is none
+     */
+    int firstWith(int from, int attribute) {
+        int found = find(root, 0, from, attribute, true);
+        return found >= 0 ? found : length();
+    }
+
+    /**
+     * @return the first position at or after from whose character doesn't have attribute,
+     * length() if there is none
+     */
+    int firstWithout(int from, int attribute) {
+        int found = find(root, 0, from, attribute, false);
+        return found >= 0 ? found : length();
+    }
+
+    /**
+     * @return the last position before before whose character doesn't have attribute, -1 if
+     * there is none
+     */
+    int lastWithout(int before, int attribute) {
+        return findLast(root, 0, before, attribute);
+    }
+
+    private static int find(Node node, int offset, int from, int attribute, boolean with) {
+        if (node == null || offset + node.length <= from) {
+            return -1;
+        }
+        if (with ? (node.anyAttributes & attribute) == 0 : (node.commonAttributes & attribute) != 0) {
+            return -1;
+        }
+        int found = find(node.left, offset, from, attribute, with);
+        if (found >= 0) {
+            return found;
+        }
+        int runStart = offset + length(node.left);
+        if (((node.attributes & attribute) != 0) == with && runStart + node.runLength > from) {
+            return Math.max(runStart, from);
+        }
+        return find(node.right, runStart + node.runLength, from, attribute, with);
+    }
+
+    private static int findLast(Node node, int offset, int before, int attribute) {
+        if (node == null || offset >= before || (node.commonAttributes & attribute) != 0) {
+            return -1;
+        }
+        int runStart = offset + length(node.left);
+        int found = findLast(node.right, runStart + node.runLength, before, attribute);
+        if (found >= 0) {
+            return found;
+        }
+        if ((node.attributes & attribute) == 0 && runStart < before) {
+            return Math.min(runStart + node.runLength, before) - 1;
+        }
+        return findLast(node.left, offset, before, attribute);
+    }
+
+    /**
+     * Merges the runs before and after position if they have the same attributes
+     */
+    private void coalesce(int position) {
+        if (position <= 0 || position >= length()) {
+            return;
+        }
+        Node[] parts = split(root, position);
+        Node[] left = splitLast(parts[0]);
+        Node[] right = splitFirst(parts[1]);
+        if (left[1].attributes == right[0].attributes) {
+            left[1].runLength += right[0].runLength;
+            update(left[1]);
+            root = merge(merge(left[0], left[1]), right[1]);
+        } else {
+            root = merge(merge(merge(left[0], left[1]), right[0]), right[1]);
+        }
+    }
+
+    /**
+     * @return the tree of the first position characters and the tree of the rest, a run
+     * crossing position is cut in two
+     */
+    private Node[] split(Node node, int position) {
+        if (node == null) {
+            return new Node[]{null, null};
+        }
+        int leftLength = length(node.left);
+        if (position <= leftLength) {
+            Node[] parts = split(node.left, position);
+            node.left = parts[1];
+            update(node);
+            return new Node[]{parts[0], node};
+        }
+        if (position >= leftLength + node.runLength) {
+            Node[] parts = split(node.right, position - leftLength - node.runLength);
+            node.right = parts[0];
+            update(node);
+            return new Node[]{node, parts[1]};
+        }
+
+        int cut = position - leftLength;
+        Node tail = new Node(node.runLength - cut, node.attributes, random.nextInt());
+        Node right = node.right;
+        node.runLength = cut;
+        node.right = null;
+        update(node);
+        return new Node[]{node, merge(tail, right)};
+    }
+
+    /**
+     * @return the tree without its last run and the last run
+     */
+    private static Node[] splitLast(Node node) {
+        if (node.right == null) {
+            Node left = node.left;
+            node.left = null;
+            update(node);
+            return new Node[]{left, node};
+        }
+        Node[] parts = splitLast(node.right);
+        node.right = parts[0];
+        update(node);
+        return new Node[]{node, parts[1]};
+    }
+
+    /**
+     * @return the first run and the tree without it
+     */
+    private static Node[] splitFirst(Node node) {
+        if (node.left == null) {
+            Node right = node.right;
+            node.right = null;
+            update(node);
+            return new Node[]{node, right};
+        }
+        Node[] parts = splitFirst(node.left);
+        node.left = parts[1];
+        update(node);
+        return new Node[]{parts[0], node};
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+
+    /**
+     * Adds the runs of the tree to runs in order
+     */
+    private static void collect(Node node, ArrayList<Node> runs) {
+        while (node != null) {
+            collect(node.left, runs);
+            runs.add(node);
+            node = node.right;
+        }
+    }
+
+    private static int length(Node node) {
+        return node != null ? node.length : 0;
+    }
+
+    private static void update(Node node) {
+        node.length = node.runLength;
+        node.count = 1;
+        node.commonAttributes = node.attributes;
+        node.anyAttributes = node.attributes;
+        if (node.left != null) {
+            node.length += node.left.length;
+            node.count += node.left.count;
+            node.commonAttributes &= node.left.commonAttributes;
+            node.anyAttributes |= node.left.anyAttributes;
+        }
+        if (node.right != null) {
+            node.length += node.right.length;
+            node.count += node.right.count;
+            node.commonAttributes &= node.right.commonAttributes;
+            node.anyAttributes |= node.right.anyAttributes;
+        }
+    }
+
+    private static final class Node {
+        final int priority;
+        int runLength;
+        int attributes;
+        Node left;
+        Node right;
+
+        // of the subtree
+        int length;
+        int count;
+        int commonAttributes;
+        int anyAttributes;
+
+        Node(int runLength, int attributes, int priority) {
+            this.runLength = runLength;
+            this.attributes = attributes;
+            this.priority = priority;
+            update(this);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package hu.scythe.droidwriter;
+
+import android.text.Spanned;
+import android.text.TextUtils;
+
+import java.util.ArrayDeque;
+
+/**
+ * Undo and redo history of an editor, as reverse deltas: every entry only holds what a change
+ * replaced, the text and style runs of the changed range, never a copy of the document. Undoing
+ * an entry replaces the range again and records what it removed as the entry of the redo, so
+ * both cost O(size of the change).
+ * <p/>
+ * Consecutive typing is coalesced into one entry per word, and consecutive deletions into one
+ * entry. Only letters, digits, white space and punctuation count as typing, an inserted image is
+ * a step of its own. The oldest entries are dropped when the estimated size of the history exceeds the
+ * budget.
+ */
+final class UndoJournal {
+
+    // Estimated size of an entry without its text and runs, and of a span of its text
+    private static final int ENTRY_SIZE = 64;
+    private static final int SPAN_SIZE = 48;
+
+    static final class Entry {
+        final int start;
+
+        // Length of the text the change inserted
+        int newLength;
+
+        // Text the change replaced, null if only the styles changed
+        CharSequence oldText;
+
+        // Runs of the replaced text, see StyleRuns#getRuns
+        int[] oldRuns;
+
+        // Entries of a group are undone and redone together
+        int group;
+
+        // Set while typing or deleting can be merged into the entry
+        boolean typing;
+
+        int size;
+
+        Entry(int start, int newLength, CharSequence oldText, int[] oldRuns) {
+            this.start = start;
+            this.newLength = newLength;
+            this.oldText = oldText;
+            this.oldRuns = oldRuns;
+            size = estimateSize(oldText, oldRuns);
+        }
+    }
+
+    /**
+     * Applies entries to the text
+     */
+    interface Applier {
+        /**
+         * @return the entry reverting the change, null if the entry doesn't fit the text
+         */
+        Entry apply(Entry entry);
+    }
+
+    private final ArrayDeque<Entry> undoEntries = new ArrayDeque<>();
+    private final ArrayDeque<Entry> redoEntries = new ArrayDeque<>();
+
+    private int budget;
+    private int size;
+
+    private int groupDepth;
+    private int group;
+    private int lastGroup;
+
+    UndoJournal(int budget) {
+        this.budget = budget;
+    }
+
+    int getBudget() {
+        return budget;
+    }
+
+    void setBudget(int budget) {
+        this.budget = budget;
+        trim();
+    }
+
+    boolean canUndo() {
+        return !undoEntries.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !redoEntries.isEmpty();
+    }
+
+    void clear() {
+        undoEntries.clear();
+        redoEntries.clear();
+        size = 0;
+    }
+
+    /**
+     * Records the changes until the matching {@link #endGroup()} as one step
+     */
+    void beginGroup() {
+        if (groupDepth++ == 0) {
+            group = ++lastGroup;
+        }
+    }
+
+    void endGroup() {
+        if (groupDepth > 0) {
+            groupDepth--;
+        }
+    }
+
+    /**
+     * Merges a change of the text into the last entry if it continues typing there, e.g. the
+     * next character of a word or the input method replacing the word being composed.
+     *
+     * @param s      the text after the change
+     * @param start  start of the change
+     * @param before length of the replaced text
+     * @param after  length of the new text
+     * @return false if the change has to be recorded in a new entry
+     */
+    boolean extendTyping(CharSequence s, int start, int before, int after) {
+        Entry last = undoEntries.peekLast();
+        if (last == null || !last.typing || groupDepth > 0 || last.newLength == 0
+                || !isTyped(s, start, start + after)) {
+            return false;
+        }
+        int end = last.start + last.newLength;
+        if (start < last.start || start + before > end) {
+            return false;
+        }
+        // A new word starts a new entry
+        if (before == 0 && start == end && Character.isWhitespace(s.charAt(start - 1))) {
+            return false;
+        }
+        clearRedo();
+        last.newLength += after - before;
+        if (last.newLength == 0 && last.oldText.length() == 0) {
+            // everything typed was deleted again
+            undoEntries.removeLast();
+            size -= last.size;
+        }
+        return true;
+    }
+
+    /**
+     * Records a change of the styles
+     */
+    void record(Entry entry) {
+        record(entry, false);
+    }
+
+    /**
+     * Records a change of the text, merging consecutive deletions
+     *
+     * @param s the text after the change
+     */
+    void recordText(Entry entry, CharSequence s) {
+        record(entry, isTyped(s, entry.start, entry.start + entry.newLength));
+    }
+
+    /**
+     * @param typed whether the new text was typed, see {@link #isTyped(CharSequence, int, int)}
+     */
+    private void record(Entry entry, boolean typed) {
+        clearRedo();
+
+        Entry last = undoEntries.peekLast();
+        boolean deletion = entry.oldText != null && entry.newLength == 0 && entry.oldText.length() == 1;
+        if (deletion && groupDepth == 0 && last != null && last.typing && last.newLength == 0) {
+            if (entry.start + 1 == last.start) {
+                // backspace
+                undoEntries.removeLast();
+                size -= last.size;
+                entry.oldText = concat(entry.oldText, last.oldText);
+                entry.oldRuns = concat(entry.oldRuns, last.oldRuns);
+            } else if (entry.start == last.start) {
+                // delete
+                undoEntries.removeLast();
+                size -= last.size;
+                entry.oldText = concat(last.oldText, entry.oldText);
+                entry.oldRuns = concat(last.oldRuns, entry.oldRuns);
+            }
+            entry.size = estimateSize(entry.oldText, entry.oldRuns);
+        }
+
+        entry.typing = groupDepth == 0 && entry.oldText != null
+                && (deletion || (entry.oldText.length() == 0 && entry.newLength == 1 && typed));
+        entry.group = groupDepth > 0 ? group : ++lastGroup;
+        undoEntries.addLast(entry);
+        size += entry.size;
+        trim();
+    }
+
+    /**
+     * Reverts the last step
+     *
+     * @return false if there is nothing to undo
+     */
+    boolean undo(Applier applier) {
+        return move(undoEntries, redoEntries, applier);
+    }
+
+    /**
+     * Repeats the last undone step
+     *
+     * @return false if there is nothing to redo
+     */
+    boolean redo(Applier applier) {
+        return move(redoEntries, undoEntries, applier);
+    }
+
+    /**
+     * Applies the entries of the last group of from and records their reverse entries in to
+     */
+    private boolean move(ArrayDeque<Entry> from, ArrayDeque<Entry> to, Applier applier) {
+        Entry last = from.peekLast();
+        if (last == null) {
+            return false;
+        }
+        int stepGroup = last.group;
+        while (!from.isEmpty() && from.peekLast().group == stepGroup) {
+            Entry entry = from.removeLast();
+            size -= entry.size;
+
+            Entry reverse = applier.apply(entry);
+            if (reverse == null) {
+                // the history doesn't match the text anymore
+                clear();
+                return false;
+            }
+            reverse.group = stepGroup;
+            to.addLast(reverse);
+            size += reverse.size;
+        }
+
+        // Typing after an undo or redo starts a new step
+        if (!undoEntries.isEmpty()) {
+            undoEntries.peekLast().typing = false;
+        }
+        trim();
+        return true;
+    }
+
+    private void clearRedo() {
+        for (Entry entry : redoEntries) {
+            size -= entry.size;
+        }
+        redoEntries.clear();
+    }
+
+    /**
+     * Drops the oldest steps, undo before redo, until the history fits the budget
+     */
+    private void trim() {
+        while (size > budget && !undoEntries.isEmpty()) {
+            int oldestGroup = undoEntries.peekFirst().group;
+            while (!undoEntries.isEmpty() && undoEntries.peekFirst().group == oldestGroup) {
+                size -= undoEntries.removeFirst().size;
+            }
+        }
+        while (size > budget && !redoEntries.isEmpty()) {
+            int furthestGroup = redoEntries.peekFirst().group;
+            while (!redoEntries.isEmpty() && redoEntries.peekFirst().group == furthestGroup) {
+                size -= redoEntries.removeFirst().size;
+            }
+        }
+    }
+
+    /**
+     * @return whether [start, end) of s only holds letters, digits, white space and punctuation,
+     * e.g. not the object replacement character of an inserted image
+     */
+    static boolean isTyped(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (Character.isLetterOrDigit(c) || Character.isWhitespace(c)) {
+                continue;
+            }
+            switch (Character.getType(c)) {
+                case Character.CONNECTOR_PUNCTUATION:
+                case Character.DASH_PUNCTUATION:
+                case Character.START_PUNCTUATION:
+                case Character.END_PUNCTUATION:
+                case Character.INITIAL_QUOTE_PUNCTUATION:
+                case Character.FINAL_QUOTE_PUNCTUATION:
+                case Character.OTHER_PUNCTUATION:
+                    continue;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return first followed by second, a String unless one of them has spans
+     */
+    private static CharSequence concat(CharSequence first, CharSequence second) {
+        if (first instanceof Spanned || second instanceof Spanned) {
+            return TextUtils.concat(first, second);
+        }
+        return first.toString() + second;
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        int[] result = new int[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static int estimateSize(CharSequence text, int[] runs) {
+        int size = ENTRY_SIZE + 4 * runs.length;
+        if (text != null) {
+            size += 2 * text.length();
+            if (text instanceof Spanned) {
+                size += SPAN_SIZE * ((Spanned) text).getSpans(0, text.length(), Object.class).length;
+            }
+        }
+        return size;
+    }
+}
@@ -34,6 +34,23 @@ public abstract class ClickableTableSpan extends ClickableSpan {
         this.tableHtml = tableHtml;
     }
 
+    /**
+     * Sets the table HTML to the range start...end of source, the HTML document the table was
+     * parsed from
+     */
+    public void setTableHtmlSource(CharSequence source, int start, int end) {
+        setTableHtml(source.subSequence(start, end).toString());
+    }
+
+    /**
+     * @return a new instance with the same table HTML
+     */
+    ClickableTableSpan copy() {
+        ClickableTableSpan copy = newInstance();
+        copy.tableHtml = tableHtml;
+        return copy;
+    }
+
     public String getTableHtml() {
         return tableHtml;
     }
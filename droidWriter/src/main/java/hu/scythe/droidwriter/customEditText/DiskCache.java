@@ -0,0 +1,362 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-capped cache of byte arrays in a directory, evicting the least recently used entries.
+ * Every entry is a file named after the SHA-1 of its key. The order of use survives restarts in
+ * a journal of the writes, reads and removals, which is compacted when it grows too long.
+ * Entries are written to a temporary file first, so a crash never leaves a partial entry.
+ * <p/>
+ * The lock guards the entries and the journal, the renames and deletions of entry files which
+ * have to stay in order with them. Entry data is read and written without holding it, so one
+ * slow read or write doesn't block the other threads.
+ */
+final class DiskCache {
+
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+    private static final String HEADER = "hu.scythe.droidwriter.DiskCache 1";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String PUT = "P";
+    private static final String READ = "R";
+    private static final String DELETE = "D";
+
+    // Journal lines beyond the number of entries before the journal is compacted
+    private static final int MAX_REDUNDANT_LINES = 2000;
+
+    private final File directory;
+    private final long maxSize;
+
+    // Sizes of the entries by file name, in the order of use
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    @Nullable
+    private Writer journal;
+    private int redundantLines;
+
+    /**
+     * Opens the cache in directory, creating it or reading back its journal
+     */
+    DiskCache(@NonNull File directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        try {
+            readJournal();
+        } catch (IOException | RuntimeException e) {
+            Log.w(HtmlTextView.TAG, "Discarding image cache " + directory, e);
+            entries.clear();
+            size = 0;
+            deleteContents();
+        }
+        rewriteJournal();
+        trim();
+    }
+
+    /**
+     * @return the data cached for key, or null if there is none. The file is read without
+     * holding the lock, entries are never changed in place but replaced by a renamed file.
+     */
+    @Nullable
+    byte[] get(@NonNull String key) {
+        String name = fileName(key);
+        Long length;
+        synchronized (this) {
+            length = entries.get(name);
+            if (length == null) {
+                return null;
+            }
+        }
+
+        File file = new File(directory, name);
+        byte[] data;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                // the length of the file opened, which may have been replaced in the meantime
+                data = new byte[(int) in.getChannel().size()];
+                int offset = 0;
+                int read;
+                while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+                    offset += read;
+                }
+                if (offset != data.length) {
+                    throw new IOException("Truncated cache entry " + file);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(HtmlTextView.TAG, "Could not read cache entry " + file, e);
+            synchronized (this) {
+                // unless it has been replaced in the meantime
+                if (length.equals(entries.get(name))) {
+                    remove(name);
+                }
+            }
+            return null;
+        }
+
+        synchronized (this) {
+            if (entries.containsKey(name)) {
+                appendJournal(READ, name);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Caches data for key. The data is written to a temporary file without holding the lock,
+     * which is only renamed to the entry with it.
+     */
+    void put(@NonNull String key, @NonNull byte[] data) {
+        if (data.length > maxSize) {
+            return;
+        }
+        String name = fileName(key);
+        File file = new File(directory, name);
+        File tmp = null;
+        try {
+            // unique, the same key may be written by two threads at once
+            tmp = File.createTempFile(name, TMP_SUFFIX, directory);
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(HtmlTextView.TAG, "Could not write cache entry " + file, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            if (!tmp.renameTo(file)) {
+                Log.w(HtmlTextView.TAG, "Could not rename " + tmp);
+                tmp.delete();
+                return;
+            }
+            Long previous = entries.put(name, (long) data.length);
+            if (previous != null) {
+                size -= previous;
+            }
+            size += data.length;
+            appendJournal(PUT, name + ' ' + data.length);
+            trim();
+        }
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+        closeJournal();
+        deleteContents();
+        rewriteJournal();
+    }
+
+    private void remove(String name) {
+        Long length = entries.remove(name);
+        if (length != null) {
+            size -= length;
+            new File(directory, name).delete();
+            appendJournal(DELETE, name);
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            new File(directory, eldest.getKey()).delete();
+            appendJournal(DELETE, eldest.getKey());
+        }
+    }
+
+    private void readJournal() throws IOException {
+        File file = new File(directory, JOURNAL);
+        if (!file.exists()) {
+            deleteContents();
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Unknown journal header");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (PUT.equals(parts[0]) && parts.length == 3) {
+                    Long previous = entries.put(parts[1], Long.parseLong(parts[2]));
+                    if (previous != null) {
+                        size -= previous;
+                    }
+                    size += Long.parseLong(parts[2]);
+                } else if (READ.equals(parts[0]) && parts.length == 2) {
+                    entries.get(parts[1]);
+                } else if (DELETE.equals(parts[0]) && parts.length == 2) {
+                    Long previous = entries.remove(parts[1]);
+                    if (previous != null) {
+                        size -= previous;
+                    }
+                } else if (line.length() > 0) {
+                    // the last line may have been cut off by a crash
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // files written or removed without a journal entry
+        for (Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (new File(directory, entry.getKey()).length() != entry.getValue()) {
+                iterator.remove();
+                size -= entry.getValue();
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.equals(JOURNAL) && !entries.containsKey(name)) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a journal of the current entries only, in the order of use
+     */
+    private void rewriteJournal() {
+        closeJournal();
+        File tmp = new File(directory, JOURNAL_TMP);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                    StandardCharsets.UTF_8));
+            try {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    writer.write(PUT + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tmp.renameTo(new File(directory, JOURNAL))) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            journal = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(directory, JOURNAL), true), StandardCharsets.UTF_8));
+            redundantLines = 0;
+        } catch (IOException e) {
+            // the cache still works for this process
+            Log.w(HtmlTextView.TAG, "Could not write journal of " + directory, e);
+        }
+    }
+
+    private void appendJournal(String operation, String arguments) {
+        if (redundantLines >= MAX_REDUNDANT_LINES && redundantLines >= entries.size()) {
+            rewriteJournal();
+            return;
+        }
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.write(operation + ' ' + arguments + '\n');
+            journal.flush();
+            redundantLines++;
+        } catch (IOException e) {
+            Log.w(HtmlTextView.TAG, "Could not write journal of " + directory, e);
+            closeJournal();
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ignored) {
+            }
+            journal = null;
+        }
+    }
+
+    private void deleteContents() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @NonNull
+    private static String fileName(@NonNull String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits a HTML document into chunks which can be parsed one after the other, used by
+ * {@link HtmlTextView#setHtmlProgressive}. A chunk only ends right before a block element which
+ * is not nested in any other element, so lists and tables are never cut in two.
+ * <p/>
+ * Elements whose end tag is optional, like &lt;p&gt; and &lt;li&gt;, are not counted as open. If
+ * some other element is never closed, the rest of the document simply stays in one chunk.
+ */
+final class HtmlChunker {
+
+    /**
+     * Elements without content, never closed
+     */
+    private static final Set<String> VOID_TAGS = new HashSet<>(Arrays.asList(
+            "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param",
+            "source", "track", "wbr"));
+
+    /**
+     * Elements whose end tag may be omitted, plus the document wrappers
+     */
+    private static final Set<String> OPTIONAL_END_TAGS = new HashSet<>(Arrays.asList(
+            "html", "head", "body", "p", "li", "dt", "dd", "tr", "td", "th", "thead", "tbody",
+            "tfoot", "option"));
+
+    /**
+     * Elements a chunk may start with
+     */
+    private static final Set<String> BLOCK_TAGS = new HashSet<>(Arrays.asList(
+            "p", "div", "h1", "h2", "h3", "h4", "h5", "h6", "ul", "ol", "dl", "table", "blockquote",
+            "pre", "hr", "center", "section", "article", "header", "footer", "aside", "nav",
+            "figure"));
+
+    private HtmlChunker() {
+    }
+
+    /**
+     * @param html             String containing HTML
+     * @param firstChunkLength minimum length of the first chunk
+     * @param chunkLength      minimum length of the following chunks
+     * @return the chunks, which concatenated are html again
+     */
+    @NonNull
+    static List<String> split(@NonNull String html, int firstChunkLength, int chunkLength) {
+        final List<String> chunks = new ArrayList<>();
+        int chunkStart = 0;
+        int target = firstChunkLength;
+        int depth = 0;
+
+        final HtmlTagScanner tags = new HtmlTagScanner(html);
+        while (tags.next() && tags.tagEnd >= 0) {
+            final String name = html.substring(tags.nameStart, tags.nameEnd).toLowerCase(Locale.US);
+
+            if (tags.closing) {
+                if (depth > 0 && !VOID_TAGS.contains(name) && !OPTIONAL_END_TAGS.contains(name)) {
+                    depth--;
+                }
+            } else {
+                final int i = tags.tagStart;
+                if (depth == 0 && i - chunkStart >= target && BLOCK_TAGS.contains(name)) {
+                    chunks.add(html.substring(chunkStart, i));
+                    chunkStart = i;
+                    target = chunkLength;
+                }
+
+                // the scanner continues at the end tag of scripts and styles, which closes them
+                if (!tags.isSelfClosing() && !VOID_TAGS.contains(name) && !OPTIONAL_END_TAGS.contains(name)) {
+                    depth++;
+                }
+            }
+        }
+
+        chunks.add(html.substring(chunkStart));
+        return chunks;
+    }
+}
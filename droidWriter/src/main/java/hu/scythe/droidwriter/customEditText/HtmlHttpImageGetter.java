@@ -17,25 +17,25 @@
 
 package hu.scythe.droidwriter.customEditText;
 
-import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.Html.ImageGetter;
 import android.util.Log;
-import android.view.View;
 import android.widget.TextView;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
 public class HtmlHttpImageGetter implements ImageGetter {
     TextView container;
@@ -45,13 +45,33 @@ public class HtmlHttpImageGetter implements ImageGetter {
     private boolean compressImage = false;
     private int qualityImage = 50;
 
+    @NonNull
+    private ImageLoader imageLoader = ImageLoader.getDefault();
+    @NonNull
+    private final ImageRequestManager requestManager;
+    private int priority = ImageLoader.PRIORITY_NORMAL;
+    @Nullable
+    private Bitmap.Config bitmapConfig;
+
+    private boolean relayoutPending;
+    private final Runnable relayout = new Runnable() {
+        @Override
+        public void run() {
+            relayoutPending = false;
+            // re-set text to fix images overlapping text
+            container.setText(container.getText());
+        }
+    };
+
     public HtmlHttpImageGetter(TextView textView) {
         this.container = textView;
+        this.requestManager = ImageRequestManager.get(textView);
         this.matchParentWidth = false;
     }
 
     public HtmlHttpImageGetter(TextView textView, String baseUrl) {
         this.container = textView;
+        this.requestManager = ImageRequestManager.get(textView);
         if (baseUrl != null) {
             this.baseUri = URI.create(baseUrl);
         }
@@ -59,6 +79,7 @@ public class HtmlHttpImageGetter implements ImageGetter {
 
     public HtmlHttpImageGetter(TextView textView, String baseUrl, boolean matchParentWidth) {
         this.container = textView;
+        this.requestManager = ImageRequestManager.get(textView);
         this.matchParentWidth = matchParentWidth;
         if (baseUrl != null) {
             this.baseUri = URI.create(baseUrl);
@@ -74,168 +95,324 @@ public class HtmlHttpImageGetter implements ImageGetter {
         qualityImage = quality;
     }
 
+    /**
+     * Load the images with the given loader instead of {@link ImageLoader#getDefault()}, e.g. to
+     * use another executor or other limits
+     */
+    public void setImageLoader(@NonNull ImageLoader imageLoader) {
+        this.imageLoader = imageLoader;
+    }
+
+    /**
+     * Priority of the images of this getter in the loader, {@link ImageLoader#PRIORITY_NORMAL}
+     * by default. Images with the same priority are loaded in the order they appear.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Decode the images with the given config, e.g. {@link Bitmap.Config#RGB_565} takes half the
+     * memory of the default {@link Bitmap.Config#ARGB_8888} for images without transparency
+     */
+    public void setBitmapConfig(@Nullable Bitmap.Config bitmapConfig) {
+        this.bitmapConfig = bitmapConfig;
+    }
+
+    /**
+     * @return a getter for one document, which sizes its images as declared by their img tags
+     * in index, see {@link HtmlTagHandler#parse(String, ImageGetter)}. This getter itself if
+     * the document declares no sizes.
+     */
+    @NonNull
+    ImageGetter withDeclaredSizes(@NonNull HtmlSourceIndex index) {
+        if (index.getImageCount() == 0) {
+            return this;
+        }
+        final Map<String, int[]> declaredSizes = new HashMap<>();
+        for (int i = 0, count = index.getImageCount(); i < count; i++) {
+            declaredSizes.put(index.getImageSource(i),
+                    new int[]{index.getImageWidth(i), index.getImageHeight(i)});
+        }
+        return new ImageGetter() {
+            @Override
+            public Drawable getDrawable(String source) {
+                int[] declared = declaredSizes.get(source);
+                return declared != null
+                        ? HtmlHttpImageGetter.this.getDrawable(source, declared[0], declared[1])
+                        : HtmlHttpImageGetter.this.getDrawable(source);
+            }
+        };
+    }
+
     public Drawable getDrawable(String source) {
+        return getDrawable(source, 0, 0);
+    }
+
+    /**
+     * @param declaredWidth  width declared by the img tag, 0 if not declared
+     * @param declaredHeight height declared by the img tag, 0 if not declared
+     */
+    Drawable getDrawable(String source, int declaredWidth, int declaredHeight) {
         UrlDrawable urlDrawable = new UrlDrawable();
+        // in pixels of the image, like the size of a bitmap without declared size
+        urlDrawable.declaredWidth = declaredWidth;
+        urlDrawable.declaredHeight = declaredHeight;
+
+        URL url;
+        try {
+            url = resolve(source);
+        } catch (IllegalArgumentException | MalformedURLException e) {
+            Log.w(HtmlTextView.TAG, "Invalid image source: " + source);
+            return urlDrawable;
+        }
 
-        // get the actual source
-        ImageGetterAsyncTask asyncTask = new ImageGetterAsyncTask(urlDrawable, this, container,
-                matchParentWidth, compressImage, qualityImage);
+        int decodeWidth = getDecodeWidth(container.getWidth(),
+                container.getResources().getDisplayMetrics().widthPixels);
+        ImageLoader.Decoder decoder = compressImage
+                ? new CompressingDecoder(decodeWidth, bitmapConfig, qualityImage)
+                : new SampledDecoder(decodeWidth, bitmapConfig);
+        Bitmap cached = imageLoader.getCached(url, decoder);
+        if (cached != null) {
+            // the text isn't laid out yet, the image is shown with it
+            setImage(urlDrawable, cached);
+            return urlDrawable;
+        }
 
-        asyncTask.execute(source);
+        // size the placeholder like the image if it is known, so the image only has to be drawn
+        int[] size = imageLoader.getCachedSize(url, decoder);
+        Rect bounds = size != null
+                ? getImageBounds(urlDrawable, size[0], size[1])
+                : getImageBounds(urlDrawable, 0, 0);
+        if (bounds != null) {
+            urlDrawable.setBounds(bounds);
+        }
+        // cancelled with the other images of the container when it gets new HTML or is detached
+        requestManager.load(imageLoader, url, decoder, priority, new ImageCallback(urlDrawable, this));
 
         // return reference to URLDrawable which will asynchronously load the image specified in the src tag
         return urlDrawable;
     }
 
     /**
-     * Static inner {@link AsyncTask} that keeps a {@link WeakReference} to the {@link UrlDrawable}
-     * and {@link HtmlHttpImageGetter}.
-     * <p/>
-     * This way, if the AsyncTask has a longer life span than the UrlDrawable,
-     * we won't leak the UrlDrawable or the HtmlRemoteImageGetter.
+     * @return whether the bounds of urlDrawable changed, i.e. the text has to be laid out again
      */
-    private static class ImageGetterAsyncTask extends AsyncTask<String, Void, Drawable> {
-        private final WeakReference<UrlDrawable> drawableReference;
-        private final WeakReference<HtmlHttpImageGetter> imageGetterReference;
-        private final WeakReference<View> containerReference;
-        private final WeakReference<Resources> resources;
-        private String source;
-        private boolean matchParentWidth;
-        private float scale;
+    private boolean setImage(UrlDrawable urlDrawable, Bitmap bitmap) {
+        Drawable result = new BitmapDrawable(container.getResources(), bitmap);
+        Rect bounds = getImageBounds(urlDrawable, bitmap.getWidth(), bitmap.getHeight());
+        if (bounds == null) {
+            bounds = new Rect();
+        }
+        result.setBounds(bounds);
 
-        private boolean compressImage = false;
-        private int qualityImage = 50;
+        // set the correct bound according to the result from HTTP call
+        boolean resized = !bounds.equals(urlDrawable.getBounds());
+        urlDrawable.setBounds(bounds);
 
-        public ImageGetterAsyncTask(UrlDrawable d, HtmlHttpImageGetter imageGetter, View container,
-                                    boolean matchParentWidth, boolean compressImage, int qualityImage) {
-            this.drawableReference = new WeakReference<>(d);
-            this.imageGetterReference = new WeakReference<>(imageGetter);
-            this.containerReference = new WeakReference<>(container);
-            this.resources = new WeakReference<>(container.getResources());
-            this.matchParentWidth = matchParentWidth;
-            this.compressImage = compressImage;
-            this.qualityImage = qualityImage;
+        // change the reference of the current drawable to the result from the HTTP call
+        urlDrawable.drawable = result;
+        return resized;
+    }
+
+    /**
+     * @param imageWidth  width of the bitmap, 0 if not known yet
+     * @param imageHeight height of the bitmap, 0 if not known yet
+     * @return the bounds to show the image of urlDrawable with, its declared size if there is one,
+     * null if the size isn't known
+     */
+    @Nullable
+    private Rect getImageBounds(UrlDrawable urlDrawable, int imageWidth, int imageHeight) {
+        int width = urlDrawable.declaredWidth;
+        int height = urlDrawable.declaredHeight;
+        if (width <= 0 && height <= 0) {
+            width = imageWidth;
+            height = imageHeight;
+        } else if (height <= 0 && imageWidth > 0) {
+            height = imageHeight * width / imageWidth;
+        } else if (width <= 0 && imageHeight > 0) {
+            width = imageWidth * height / imageHeight;
+        }
+        if (width <= 0 || height <= 0) {
+            return null;
         }
 
-        @Override
-        protected Drawable doInBackground(String... params) {
-            source = params[0];
-
-            if (resources.get() != null) {
-                if (compressImage) {
-                    return fetchCompressedDrawable(resources.get(), source);
-                } else {
-                    return fetchDrawable(resources.get(), source);
-                }
-            }
+        float scale = getScale(width);
+        return new Rect(0, 0, (int) (width * scale), (int) (height * scale));
+    }
 
-            return null;
+    /**
+     * Lays the text out again on the next frame, once for all images loaded until then
+     */
+    private void requestRelayout() {
+        if (!relayoutPending) {
+            relayoutPending = true;
+            container.postOnAnimation(relayout);
         }
+    }
 
-        @Override
-        protected void onPostExecute(Drawable result) {
-            if (result == null) {
-                Log.w(HtmlTextView.TAG, "Drawable result is null! (source: " + source + ")");
-                return;
-            }
-            final UrlDrawable urlDrawable = drawableReference.get();
-            if (urlDrawable == null) {
-                return;
-            }
-            // set the correct bound according to the result from HTTP call
-            urlDrawable.setBounds(0, 0, (int) (result.getIntrinsicWidth() * scale), (int) (result.getIntrinsicHeight() * scale));
+    private float getScale(int originalWidth) {
+        // compressed images always fill the width
+        if (!(matchParentWidth || compressImage) || originalWidth <= 0) {
+            return 1f;
+        }
 
-            // change the reference of the current drawable to the result from the HTTP call
-            urlDrawable.drawable = result;
+        float maxWidth = getMaxWidth();
+        return maxWidth / originalWidth;
+    }
 
-            final HtmlHttpImageGetter imageGetter = imageGetterReference.get();
-            if (imageGetter == null) {
-                return;
-            }
-            // redraw the image by invalidating the container
-            imageGetter.container.invalidate();
-            // re-set text to fix images overlapping text
-            imageGetter.container.setText(imageGetter.container.getText());
-        }
-
-        /**
-         * Get the Drawable from URL
-         */
-        public Drawable fetchDrawable(Resources res, String urlString) {
-            try {
-                InputStream is = fetch(urlString);
-                Drawable drawable = new BitmapDrawable(res, is);
-                scale = getScale(drawable);
-                drawable.setBounds(0, 0, (int) (drawable.getIntrinsicWidth() * scale), (int) (drawable.getIntrinsicHeight() * scale));
-                return drawable;
-            } catch (Exception e) {
-                return null;
-            }
+    /**
+     * @return the width of the container, or the width of the screen before it is laid out
+     */
+    private int getMaxWidth() {
+        int width = container.getWidth();
+        if (width <= 0) {
+            width = container.getResources().getDisplayMetrics().widthPixels;
         }
+        return width;
+    }
+
+    private URL resolve(String source) throws MalformedURLException {
+        if (baseUri != null) {
+            return baseUri.resolve(source).toURL();
+        }
+        return URI.create(source).toURL();
+    }
 
-        /**
-         * Get the compressed image with specific quality from URL
-         */
-        public Drawable fetchCompressedDrawable(Resources res, String urlString) {
-            try {
-                InputStream is = fetch(urlString);
-                Bitmap original = new BitmapDrawable(res, is).getBitmap();
+    /**
+     * The width images are decoded for doesn't follow every width of the container but steps of
+     * a quarter of the screen width, rounded up. Before the container is laid out it is the
+     * screen width, which is also the step of containers almost as wide as the screen, so an
+     * image isn't decoded, and transcoded, once before and once after the layout. The decoders
+     * and their keys only depend on this width.
+     *
+     * @param width       width of the container, 0 if it isn't laid out yet
+     * @param screenWidth width of the screen
+     * @return the width to decode images for, at least width
+     */
+    static int getDecodeWidth(int width, int screenWidth) {
+        if (width <= 0 || screenWidth <= 0) {
+            return Math.max(screenWidth, width);
+        }
+        int steps = (int) ((4L * width + screenWidth - 1) / screenWidth);
+        return (int) ((long) steps * screenWidth / 4);
+    }
 
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                original.compress(Bitmap.CompressFormat.JPEG, qualityImage, out);
-                original.recycle();
-                is.close();
+    /**
+     * @return the power of two to subsample an image of the given width by, so that it is still
+     * at least maxWidth wide
+     */
+    static int getSampleSize(int width, int maxWidth) {
+        int sampleSize = 1;
+        if (maxWidth > 0) {
+            while (width / (sampleSize * 2) >= maxWidth) {
+                sampleSize *= 2;
+            }
+        }
+        return sampleSize;
+    }
 
-                Bitmap decoded = BitmapFactory.decodeStream(new ByteArrayInputStream(out.toByteArray()));
-                out.close();
+    /**
+     * Decodes the image subsampled to about the width it is shown with. The bounds are read
+     * first, so the full resolution image is never allocated.
+     */
+    private static class SampledDecoder implements ImageLoader.Decoder {
+        private final int maxWidth;
+        @Nullable
+        private final Bitmap.Config config;
+
+        SampledDecoder(int maxWidth, @Nullable Bitmap.Config config) {
+            this.maxWidth = maxWidth;
+            this.config = config;
+        }
 
-                scale = getScale(decoded);
-                BitmapDrawable b = new BitmapDrawable(res, decoded);
+        @NonNull
+        @Override
+        public String getKey() {
+            return "w" + maxWidth + (config != null ? config.name() : "");
+        }
 
-                b.setBounds(0, 0, (int) (b.getIntrinsicWidth() * scale), (int) (b.getIntrinsicHeight() * scale));
-                return b;
-            } catch (Exception e) {
+        @Override
+        public Bitmap decode(@NonNull byte[] data) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
                 return null;
             }
-        }
 
-        private float getScale(Bitmap bitmap) {
-            View container = containerReference.get();
-            if (container == null) {
-                return 1f;
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = getSampleSize(options.outWidth, maxWidth);
+            if (config != null) {
+                options.inPreferredConfig = config;
             }
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /**
+     * Decodes the image compressed to a JPEG of the given quality. The JPEG is made of the
+     * subsampled image and is cached by the loader, so later loads only decode it.
+     */
+    private static final class CompressingDecoder extends SampledDecoder implements ImageLoader.Transcoder {
+        private final int quality;
 
-            float maxWidth = container.getWidth();
-            float originalDrawableWidth = bitmap.getWidth();
+        CompressingDecoder(int maxWidth, @Nullable Bitmap.Config config, int quality) {
+            super(maxWidth, config);
+            this.quality = quality;
+        }
 
-            return maxWidth / originalDrawableWidth;
+        @NonNull
+        @Override
+        public String getKey() {
+            return super.getKey() + "jpeg" + quality;
         }
 
-        private float getScale(Drawable drawable) {
-            View container = containerReference.get();
-            if (!matchParentWidth || container == null) {
-                return 1f;
+        @Override
+        public byte[] transcode(@NonNull byte[] data) {
+            Bitmap original = super.decode(data);
+            if (original == null) {
+                return null;
             }
 
-            float maxWidth = container.getWidth();
-            float originalDrawableWidth = drawable.getIntrinsicWidth();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            original.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            original.recycle();
+            return out.toByteArray();
+        }
+    }
 
-            return maxWidth / originalDrawableWidth;
+    /**
+     * Shows the loaded image in its {@link UrlDrawable}. Keeps {@link WeakReference}s to the
+     * UrlDrawable and the {@link HtmlHttpImageGetter}, so a request waiting in the loader
+     * doesn't leak them.
+     */
+    private static class ImageCallback implements ImageLoader.Callback {
+        private final WeakReference<UrlDrawable> drawableReference;
+        private final WeakReference<HtmlHttpImageGetter> imageGetterReference;
+
+        ImageCallback(UrlDrawable d, HtmlHttpImageGetter imageGetter) {
+            this.drawableReference = new WeakReference<>(d);
+            this.imageGetterReference = new WeakReference<>(imageGetter);
         }
 
-        private InputStream fetch(String urlString) throws IOException {
-            URL url;
+        @Override
+        public void onImageLoaded(@NonNull String url, @NonNull Bitmap bitmap) {
+            final UrlDrawable urlDrawable = drawableReference.get();
             final HtmlHttpImageGetter imageGetter = imageGetterReference.get();
-            if (imageGetter == null) {
-                return null;
+            if (urlDrawable == null || imageGetter == null) {
+                return;
             }
-            if (imageGetter.baseUri != null) {
-                url = imageGetter.baseUri.resolve(urlString).toURL();
+            if (imageGetter.setImage(urlDrawable, bitmap)) {
+                imageGetter.requestRelayout();
             } else {
-                url = URI.create(urlString).toURL();
+                // the placeholder had the size of the image, redrawing it is enough
+                imageGetter.container.invalidate();
             }
+        }
 
-            return (InputStream) url.getContent();
+        @Override
+        public void onImageFailed(@NonNull String url) {
+            Log.w(HtmlTextView.TAG, "Drawable result is null! (source: " + url + ")");
         }
     }
 
@@ -243,6 +420,10 @@ public class HtmlHttpImageGetter implements ImageGetter {
     public class UrlDrawable extends BitmapDrawable {
         protected Drawable drawable;
 
+        // Size declared by the img tag in pixels, 0 if not declared
+        int declaredWidth;
+        int declaredHeight;
+
         @Override
         public void draw(Canvas canvas) {
             // override the draw to facilitate refresh function later
@@ -0,0 +1,349 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.graphics.drawable.Drawable;
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.Html;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AbsoluteSizeSpan;
+import android.text.style.AlignmentSpan;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.BulletSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.ImageSpan;
+import android.text.style.LeadingMarginSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.SubscriptSpan;
+import android.text.style.SuperscriptSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Memory-bounded cache of parsed HTML, which can be shared by several {@link HtmlTextView}s with
+ * {@link HtmlTextView#setParseCache(HtmlParseCache)}. Entries are weighted by their length plus
+ * {@link #SPAN_WEIGHT} for each span plus the length of the HTML they keep, i.e. the source of
+ * the key and the HTML of the tables, and the least recently used entries are evicted first.
+ * <p/>
+ * Cached text is never displayed itself. {@link #get(Key, Html.ImageGetter)} returns a copy with
+ * new span objects, so two views never share spans. Images are fetched again with the image getter
+ * of the caller, keeping their alignment and the size they were parsed with. Spans are only
+ * copied if their class is known exactly, documents with other spans (e.g. set by custom
+ * {@link TagAction}s or subclasses of the framework spans) are not cached.
+ */
+public class HtmlParseCache {
+
+    /**
+     * Weight of a span, in characters
+     */
+    public static final int SPAN_WEIGHT = 16;
+
+    private final LruCache<Key, Spanned> cache;
+
+    /**
+     * @param maxWeight maximum total weight of the cached documents, i.e. characters plus
+     *                  {@link #SPAN_WEIGHT} per span
+     */
+    public HtmlParseCache(int maxWeight) {
+        cache = new LruCache<Key, Spanned>(maxWeight) {
+            @Override
+            protected int sizeOf(Key key, Spanned value) {
+                return weightOf(key, value);
+            }
+        };
+    }
+
+    /**
+     * @return a copy of the document cached for key, or null if there is none
+     */
+    @Nullable
+    public Spanned get(@NonNull Key key, @Nullable Html.ImageGetter imageGetter) {
+        Spanned cached = cache.get(key);
+        if (cached == null) {
+            return null;
+        }
+        return copy(cached, imageGetter);
+    }
+
+    /**
+     * Caches a copy of text, text itself can still be displayed. Text with spans which can't be
+     * copied is not cached.
+     */
+    public void put(@NonNull Key key, @NonNull CharSequence text) {
+        Spanned copy = copy(text, null);
+        if (copy != null) {
+            cache.put(key, copy);
+        }
+    }
+
+    public void evictAll() {
+        cache.evictAll();
+    }
+
+    public int hitCount() {
+        return cache.hitCount();
+    }
+
+    public int missCount() {
+        return cache.missCount();
+    }
+
+    /**
+     * @return total weight of the cached documents
+     */
+    public int weight() {
+        return cache.size();
+    }
+
+    private static int weightOf(Key key, Spanned text) {
+        int spanCount = text.getSpans(0, text.length(), Object.class).length;
+        int weight = text.length() + spanCount * SPAN_WEIGHT;
+
+        // the HTML kept by the entry, copies of a table span share its HTML
+        CharSequence source = key.source instanceof CharSequence ? (CharSequence) key.source : null;
+        if (source != null) {
+            weight += source.length();
+        }
+        Set<String> tableHtml = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        for (ClickableTableSpan span : text.getSpans(0, text.length(), ClickableTableSpan.class)) {
+            String html = span.getTableHtml();
+            if (html != null && tableHtml.add(html)) {
+                weight += html.length();
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * @param imageGetter used to fetch the drawables of images again, if null the drawables are
+     *                    shared
+     * @return the copy, null if text has a span which can't be copied
+     */
+    @Nullable
+    private static Spanned copy(CharSequence text, @Nullable Html.ImageGetter imageGetter) {
+        SpannableStringBuilder copy = new SpannableStringBuilder(text.toString());
+        if (!(text instanceof Spanned)) {
+            return copy;
+        }
+
+        Spanned spanned = (Spanned) text;
+        Object[] spans = spanned.getSpans(0, spanned.length(), Object.class);
+        for (Object span : spans) {
+            Object spanCopy = copySpan(span, imageGetter);
+            if (spanCopy == null) {
+                if (HtmlTextView.DEBUG) {
+                    Log.d(HtmlTextView.TAG, "Not caching span of unknown class " + span.getClass().getName());
+                }
+                return null;
+            }
+            copy.setSpan(spanCopy, spanned.getSpanStart(span), spanned.getSpanEnd(span),
+                    spanned.getSpanFlags(span));
+        }
+        return copy;
+    }
+
+    /**
+     * @return a new span equal to span, null if the class of span is unknown
+     */
+    @Nullable
+    private static Object copySpan(Object span, @Nullable Html.ImageGetter imageGetter) {
+        // subclasses may have state or behaviour a copy of the framework class would lose
+        final Class<?> kind = span.getClass();
+        if (kind == StyleSpan.class) {
+            return new StyleSpan(((StyleSpan) span).getStyle());
+        } else if (kind == UnderlineSpan.class) {
+            return new UnderlineSpan();
+        } else if (kind == StrikethroughSpan.class) {
+            return new StrikethroughSpan();
+        } else if (kind == SubscriptSpan.class) {
+            return new SubscriptSpan();
+        } else if (kind == SuperscriptSpan.class) {
+            return new SuperscriptSpan();
+        } else if (kind == TypefaceSpan.class) {
+            return new TypefaceSpan(((TypefaceSpan) span).getFamily());
+        } else if (kind == ForegroundColorSpan.class) {
+            return new ForegroundColorSpan(((ForegroundColorSpan) span).getForegroundColor());
+        } else if (kind == BackgroundColorSpan.class) {
+            return new BackgroundColorSpan(((BackgroundColorSpan) span).getBackgroundColor());
+        } else if (kind == RelativeSizeSpan.class) {
+            return new RelativeSizeSpan(((RelativeSizeSpan) span).getSizeChange());
+        } else if (kind == AbsoluteSizeSpan.class) {
+            AbsoluteSizeSpan sizeSpan = (AbsoluteSizeSpan) span;
+            return new AbsoluteSizeSpan(sizeSpan.getSize(), sizeSpan.getDip());
+        } else if (kind == URLSpan.class) {
+            return new URLSpan(((URLSpan) span).getURL());
+        } else if (kind == QuoteSpan.class) {
+            return new QuoteSpan(((QuoteSpan) span).getColor());
+        } else if (kind == AlignmentSpan.Standard.class) {
+            return new AlignmentSpan.Standard(((AlignmentSpan.Standard) span).getAlignment());
+        } else if (kind == LeadingMarginSpan.Standard.class) {
+            LeadingMarginSpan.Standard marginSpan = (LeadingMarginSpan.Standard) span;
+            return new LeadingMarginSpan.Standard(marginSpan.getLeadingMargin(true),
+                    marginSpan.getLeadingMargin(false));
+        } else if (kind == BulletSpan.class) {
+            // the gap width has no getter before API 28
+            Parcel parcel = Parcel.obtain();
+            try {
+                ((BulletSpan) span).writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                return new BulletSpan(parcel);
+            } finally {
+                parcel.recycle();
+            }
+        } else if (kind == NumberSpan.class) {
+            return new NumberSpan((NumberSpan) span);
+        } else if (kind == DrawTableLinkSpan.class) {
+            return ((DrawTableLinkSpan) span).newInstance();
+        } else if (kind == ImageSpan.class) {
+            ImageSpan imageSpan = (ImageSpan) span;
+            Drawable cachedDrawable = imageSpan.getDrawable();
+            Drawable drawable = null;
+            if (imageGetter != null) {
+                drawable = getDrawable(imageGetter, imageSpan.getSource(), cachedDrawable);
+            }
+            if (drawable == null) {
+                drawable = cachedDrawable;
+            } else if (drawable.getBounds().isEmpty() && !cachedDrawable.getBounds().isEmpty()) {
+                // the size the image had in the parsed document, so the text is laid out alike
+                drawable.setBounds(cachedDrawable.getBounds());
+            }
+            return new ImageSpan(drawable, imageSpan.getSource(), imageSpan.getVerticalAlignment());
+        } else if (span instanceof ClickableTableSpan) {
+            // subclasses create instances of their own class
+            return ((ClickableTableSpan) span).copy();
+        }
+        return null;
+    }
+
+    /**
+     * @return the drawable of imageGetter for source, of the size declared by the img tag the
+     * cached drawable was made for
+     */
+    @Nullable
+    private static Drawable getDrawable(@NonNull Html.ImageGetter imageGetter, String source,
+                                        Drawable cachedDrawable) {
+        if (imageGetter instanceof HtmlHttpImageGetter
+                && cachedDrawable instanceof HtmlHttpImageGetter.UrlDrawable) {
+            HtmlHttpImageGetter.UrlDrawable urlDrawable = (HtmlHttpImageGetter.UrlDrawable) cachedDrawable;
+            return ((HtmlHttpImageGetter) imageGetter).getDrawable(source, urlDrawable.declaredWidth,
+                    urlDrawable.declaredHeight);
+        }
+        return imageGetter.getDrawable(source);
+    }
+
+    /**
+     * Identifies a document and the settings of the view it was parsed for
+     */
+    public static final class Key {
+        private final Object source;
+        private final float indent;
+        private final boolean removeTrailingWhiteSpace;
+        private final boolean hasImageGetter;
+        @Nullable
+        private final Class<?> clickableTableSpanClass;
+        @Nullable
+        private final String drawTableLinkText;
+        private final float drawTableLinkTextSize;
+        private final int drawTableLinkTextColor;
+        private final String rewriterSignature;
+        @Nullable
+        private final String tagActionsSignature;
+        private final List<HtmlPostProcessor> postProcessors;
+        private final int hashCode;
+
+        Key(@NonNull Object source, float indent, boolean removeTrailingWhiteSpace,
+            boolean hasImageGetter, @Nullable ClickableTableSpan clickableTableSpan,
+            @Nullable DrawTableLinkSpan drawTableLinkSpan, @NonNull HtmlTagRewriter tagRewriter,
+            @Nullable TagActionRegistry tagActions, @NonNull List<HtmlPostProcessor> postProcessors) {
+            this.source = source;
+            this.indent = indent;
+            this.removeTrailingWhiteSpace = removeTrailingWhiteSpace;
+            this.hasImageGetter = hasImageGetter;
+            this.clickableTableSpanClass = clickableTableSpan != null ? clickableTableSpan.getClass() : null;
+            if (drawTableLinkSpan != null) {
+                this.drawTableLinkText = drawTableLinkSpan.getTableLinkText();
+                this.drawTableLinkTextSize = drawTableLinkSpan.getTextSize();
+                this.drawTableLinkTextColor = drawTableLinkSpan.getTextColor();
+            } else {
+                this.drawTableLinkText = null;
+                this.drawTableLinkTextSize = 0;
+                this.drawTableLinkTextColor = 0;
+            }
+            this.rewriterSignature = tagRewriter.getSignature();
+            this.tagActionsSignature = tagActions != null ? tagActions.getSignature() : null;
+            this.postProcessors = new ArrayList<>(postProcessors);
+            this.hashCode = computeHashCode();
+        }
+
+        private int computeHashCode() {
+            int result = source.hashCode();
+            result = 31 * result + Float.floatToIntBits(indent);
+            result = 31 * result + (removeTrailingWhiteSpace ? 1 : 0);
+            result = 31 * result + (hasImageGetter ? 1 : 0);
+            result = 31 * result + (clickableTableSpanClass != null ? clickableTableSpanClass.hashCode() : 0);
+            result = 31 * result + (drawTableLinkText != null ? drawTableLinkText.hashCode() : 0);
+            result = 31 * result + Float.floatToIntBits(drawTableLinkTextSize);
+            result = 31 * result + drawTableLinkTextColor;
+            result = 31 * result + rewriterSignature.hashCode();
+            result = 31 * result + (tagActionsSignature != null ? tagActionsSignature.hashCode() : 0);
+            result = 31 * result + postProcessors.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key key = (Key) o;
+            return hashCode == key.hashCode
+                    && Float.compare(indent, key.indent) == 0
+                    && removeTrailingWhiteSpace == key.removeTrailingWhiteSpace
+                    && hasImageGetter == key.hasImageGetter
+                    && clickableTableSpanClass == key.clickableTableSpanClass
+                    && Float.compare(drawTableLinkTextSize, key.drawTableLinkTextSize) == 0
+                    && drawTableLinkTextColor == key.drawTableLinkTextColor
+                    && objectEquals(drawTableLinkText, key.drawTableLinkText)
+                    && rewriterSignature.equals(key.rewriterSignature)
+                    && objectEquals(tagActionsSignature, key.tagActionsSignature)
+                    && postProcessors.equals(key.postProcessors)
+                    && source.equals(key.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        private static boolean objectEquals(@Nullable Object a, @Nullable Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.support.annotation.NonNull;
+import android.text.SpannableStringBuilder;
+
+/**
+ * A pass over parsed HTML before it is displayed, added with
+ * {@link HtmlTextView#addPostProcessor(HtmlPostProcessor)}. The text is modified in place, it is
+ * not displayed or shared yet, so changing it doesn't notify any watchers.
+ * <p/>
+ * Called on the thread parsing the HTML, which is not the main thread for setHtmlAsync and
+ * setHtmlProgressive. Documents taken from a parse cache have been processed before and are not
+ * passed again.
+ */
+public interface HtmlPostProcessor {
+
+    /**
+     * @param text the parsed HTML, or a chunk of it in setHtmlProgressive
+     */
+    void process(@NonNull SpannableStringBuilder text);
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Positions of elements in the original HTML of a document, recorded by {@link HtmlTagRewriter}
+ * while it rewrites the document. This way the parser output can refer back to the source without
+ * keeping copies of it. It also records the attributes of images the parser doesn't pass on to the
+ * image getter, their declared sizes.
+ */
+public class HtmlSourceIndex {
+
+    private String source = "";
+
+    /**
+     * Start and end of each root table, i.e. table not nested in another table, in source order
+     */
+    private int[] tableStarts = new int[4];
+    private int[] tableEnds = new int[4];
+    private int[] tableElementCounts = new int[4];
+    private int tableCount = 0;
+
+    /**
+     * Source and declared width and height of each image, 0 if not declared, in source order
+     */
+    private String[] imageSources = new String[4];
+    private int[] imageWidths = new int[4];
+    private int[] imageHeights = new int[4];
+    private int imageCount = 0;
+
+    void reset(@NonNull String source) {
+        this.source = source;
+        tableCount = 0;
+        Arrays.fill(imageSources, 0, imageCount, null);
+        imageCount = 0;
+    }
+
+    void addTable(int start, int end, int elementCount) {
+        if (tableCount == tableStarts.length) {
+            tableStarts = Arrays.copyOf(tableStarts, tableCount * 2);
+            tableEnds = Arrays.copyOf(tableEnds, tableCount * 2);
+            tableElementCounts = Arrays.copyOf(tableElementCounts, tableCount * 2);
+        }
+        tableStarts[tableCount] = start;
+        tableEnds[tableCount] = end;
+        tableElementCounts[tableCount] = elementCount;
+        tableCount++;
+    }
+
+    void addImage(@NonNull String source, int width, int height) {
+        if (imageCount == imageSources.length) {
+            imageSources = Arrays.copyOf(imageSources, imageCount * 2);
+            imageWidths = Arrays.copyOf(imageWidths, imageCount * 2);
+            imageHeights = Arrays.copyOf(imageHeights, imageCount * 2);
+        }
+        imageSources[imageCount] = source;
+        imageWidths[imageCount] = width;
+        imageHeights[imageCount] = height;
+        imageCount++;
+    }
+
+    /**
+     * @return the HTML the positions refer to
+     */
+    @NonNull
+    public String getSource() {
+        return source;
+    }
+
+    public int getTableCount() {
+        return tableCount;
+    }
+
+    /**
+     * @return start of the root table with the given index in the source
+     */
+    public int getTableStart(int index) {
+        return tableStarts[index];
+    }
+
+    /**
+     * @return end (exclusive) of the root table with the given index in the source
+     */
+    public int getTableEnd(int index) {
+        return tableEnds[index];
+    }
+
+    /**
+     * @return number of table, td and th start tags of the root table with the given index,
+     * including the root table itself, or -1 if the parser may see the table differently
+     */
+    public int getTableElementCount(int index) {
+        return tableElementCounts[index];
+    }
+
+    /**
+     * @return number of images with a declared width or height
+     */
+    public int getImageCount() {
+        return imageCount;
+    }
+
+    /**
+     * @return src attribute of the image with the given index, as passed to the image getter
+     */
+    @NonNull
+    public String getImageSource(int index) {
+        return imageSources[index];
+    }
+
+    /**
+     * @return width attribute of the image with the given index in CSS pixels, 0 if not declared
+     */
+    public int getImageWidth(int index) {
+        return imageWidths[index];
+    }
+
+    /**
+     * @return height attribute of the image with the given index in CSS pixels, 0 if not declared
+     */
+    public int getImageHeight(int index) {
+        return imageHeights[index];
+    }
+}
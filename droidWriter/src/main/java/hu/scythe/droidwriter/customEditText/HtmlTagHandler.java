@@ -19,11 +19,12 @@
 
 package hu.scythe.droidwriter.customEditText;
 
+import android.os.Build;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.Editable;
 import android.text.Html;
 import android.text.Layout;
-import android.text.Spannable;
 import android.text.Spanned;
 import android.text.TextPaint;
 import android.text.style.AlignmentSpan;
@@ -35,8 +36,12 @@ import android.util.Log;
 
 import org.xml.sax.XMLReader;
 
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Stack;
 
+import co.zipperstudios.supporthtml.SupportHtml;
+
 /**
  * Some parts of this code are based on android.text.SupportHtml
  */
@@ -45,6 +50,7 @@ public class HtmlTagHandler implements Html.TagHandler {
     public static final String UNORDERED_LIST = "HTML_TEXTVIEW_ESCAPED_UL_TAG";
     public static final String ORDERED_LIST = "HTML_TEXTVIEW_ESCAPED_OL_TAG";
     public static final String LIST_ITEM = "HTML_TEXTVIEW_ESCAPED_LI_TAG";
+    private static final String TABLE_PLACEHOLDER = "table placeholder";
     private final TextPaint mTextPaint;
 
     public HtmlTagHandler(TextPaint textPaint) {
@@ -58,22 +64,38 @@ public class HtmlTagHandler implements Html.TagHandler {
      * replace the &lt;ul&gt; and &lt;li&gt; tags with tags of our own.
      *
      * @see <a href="https://github.com/android/platform_frameworks_base/commit/8b36c0bbd1503c61c111feac939193c47f812190">Specific Android SDK Commit</a>
+     * @see HtmlTagRewriter
      *
      * @param html        String containing HTML, for example: "<b>Hello world!</b>"
      * @return html with replaced <ul> and <li> tags
      */
     String overrideTags(@Nullable String html){
+        if (tagRewriter == null) {
+            tagRewriter = new HtmlTagRewriter();
+        }
+        return tagRewriter.rewrite(html, sourceIndex);
+    }
 
-        if (html == null) return null;
-
-        html = html.replace("<ul", "<" + UNORDERED_LIST);
-        html = html.replace("</ul>", "</" + UNORDERED_LIST + ">");
-        html = html.replace("<ol", "<" + ORDERED_LIST);
-        html = html.replace("</ol>", "</" + ORDERED_LIST + ">");
-        html = html.replace("<li", "<" + LIST_ITEM);
-        html = html.replace("</li>", "</" + LIST_ITEM + ">");
+    /**
+     * Rewrites the tags of html with {@link #overrideTags(String)} and parses it with this handler.
+     * A handler can only parse one document.
+     *
+     * @param html        String containing HTML, for example: "<b>Hello world!</b>"
+     * @param imageGetter for fetching images, may be null
+     */
+    public Spanned parse(@NonNull String html, @Nullable Html.ImageGetter imageGetter) {
+        html = overrideTags(html);
 
-        return html;
+        // the parser only passes the src of an image to the getter, the declared sizes are
+        // passed by a getter for this document, so getters shared by parses don't change
+        if (imageGetter instanceof HtmlHttpImageGetter) {
+            imageGetter = ((HtmlHttpImageGetter) imageGetter).withDeclaredSizes(sourceIndex);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Html.fromHtml(html, Html.FROM_HTML_SEPARATOR_LINE_BREAK_PARAGRAPH, imageGetter, this);
+        } else {
+            return SupportHtml.fromHtml(html, SupportHtml.FROM_HTML_SEPARATOR_LINE_BREAK_PARAGRAPH, imageGetter, this);
+        }
     }
 
     /**
@@ -90,8 +112,8 @@ public class HtmlTagHandler implements Html.TagHandler {
      * List indentation in pixels. Nested lists use multiple of this.
      */
     /**
-     * Running HTML table string based off of the root table tag. Root table tag being the tag which
-     * isn't embedded within any other table tag. Example:
+     * Positions of the root tables in the HTML passed to {@link #overrideTags(String)}. Root table
+     * tag being the tag which isn't embedded within any other table tag. Example:
      * <!-- This is the root level opening table tag. This is where we keep track of tables. -->
      * <table>
      * ...
@@ -100,20 +122,54 @@ public class HtmlTagHandler implements Html.TagHandler {
      * </table>
      * ...
      * </table>
-     * <!-- This is the root level closing table tag and the end of the string we track. -->
+     * <!-- This is the root level closing table tag and the end of the range we track. -->
+     */
+    private final HtmlSourceIndex sourceIndex = new HtmlSourceIndex();
+    /**
+     * Number of root tables closed so far, i.e. index of the next root table in sourceIndex
+     */
+    private int rootTableCount = 0;
+    /**
+     * Set once a root table didn't match the one at its index in sourceIndex, the HTML of this
+     * and the following tables is built from the parsed tags
+     */
+    private boolean tablesMisaligned = false;
+    /**
+     * Tags reported in the current root table, with the length of the output when they were
+     * reported, to build its HTML if it can't be cut out of the source
+     */
+    private String[] tableTagNames = new String[16];
+    private boolean[] tableTagsOpening = new boolean[16];
+    private int[] tableTagPositions = new int[16];
+    private int tableTagCount = 0;
+    /**
+     * Number of table, td and th start tags in the current root table
      */
-    StringBuilder tableHtmlBuilder = new StringBuilder();
+    private int tableElementCount = 0;
     /**
      * Tells us which level of table tag we're on; ultimately used to find the root table tag.
      */
     int tableTagLevel = 0;
 
-    private static int userGivenIndent = -1;
+    /**
+     * Set before the parse, handlers of documents parsed at the same time keep their own indent
+     */
+    private int userGivenIndent = -1;
     private static final int defaultIndent = 10;
     private static final int defaultListItemIndent = defaultIndent * 2;
     private static final BulletSpan defaultBullet = new BulletSpan(defaultIndent);
     private ClickableTableSpan clickableTableSpan;
     private DrawTableLinkSpan drawTableLinkSpan;
+    private HtmlTagRewriter tagRewriter;
+    private TagActionRegistry tagActions;
+
+    /**
+     * Elements opened by {@link #start(Editable, Class)} and not closed yet, with their start in
+     * the output. On top of the stack is the most recently opened element.
+     */
+    private Class<?>[] openKinds = new Class<?>[16];
+    private int[] openStarts = new int[16];
+    private int openCount = 0;
 
     private static class Ul {
     }
@@ -142,171 +198,297 @@ public class HtmlTagHandler implements Html.TagHandler {
     private static class Td {
     }
 
+    /**
+     * Actions for the tags handled by this class, shared by all instances
+     */
+    private static final TagActionRegistry BUILT_IN_ACTIONS = new TagActionRegistry();
+
+    static {
+        BUILT_IN_ACTIONS.register(UNORDERED_LIST, new UnorderedListAction());
+        BUILT_IN_ACTIONS.register(ORDERED_LIST, new OrderedListAction());
+        BUILT_IN_ACTIONS.register(LIST_ITEM, new ListItemAction());
+        BUILT_IN_ACTIONS.register("code", new CodeAction());
+        BUILT_IN_ACTIONS.register("center", new CenterAction());
+        BUILT_IN_ACTIONS.register("s", new StrikeAction());
+        BUILT_IN_ACTIONS.register("strike", new StrikeAction());
+        BUILT_IN_ACTIONS.register("table", new TableAction());
+        BUILT_IN_ACTIONS.register("tr", new TableRowAction());
+        BUILT_IN_ACTIONS.register("th", new TableHeaderAction());
+        BUILT_IN_ACTIONS.register("td", new TableDataAction());
+    }
+
     @Override
     public void handleTag(final boolean opening, final String tag, Editable output, final XMLReader xmlReader) {
-        if (opening) {
-            // opening tag
-            if (HtmlTextView.DEBUG) {
-                Log.d(HtmlTextView.TAG, "opening, output: " + output.toString());
+        if (HtmlTextView.DEBUG) {
+            Log.d(HtmlTextView.TAG, (opening ? "opening" : "closing") + ", output: " + output.toString());
+        }
+
+        if (tableTagLevel > 0 || (opening && tag.equalsIgnoreCase("table"))) {
+            addTableTag(opening, tag, output.length());
+        }
+
+        // custom actions take precedence, so they can also replace the built-in ones
+        TagAction action = null;
+        if (tagActions != null) {
+            action = tagActions.get(tag);
+        }
+        if (action == null) {
+            action = BUILT_IN_ACTIONS.get(tag);
+        }
+        if (action != null) {
+            action.handleTag(this, opening, tag, output, xmlReader);
+        }
+    }
+
+    private static class UnorderedListAction implements TagAction {
+        @Override
+        public void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                              @NonNull Editable output, @NonNull XMLReader xmlReader) {
+            if (opening) {
+                handler.lists.push(UNORDERED_LIST);
+            } else {
+                handler.lists.pop();
+            }
+        }
+    }
+
+    private static class OrderedListAction implements TagAction {
+        @Override
+        public void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                              @NonNull Editable output, @NonNull XMLReader xmlReader) {
+            if (opening) {
+                handler.lists.push(ORDERED_LIST);
+                handler.olNextIndex.push(1);
+            } else {
+                handler.lists.pop();
+                handler.olNextIndex.pop();
             }
+        }
+    }
+
+    private static class ListItemAction implements TagAction {
+        @Override
+        public void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                              @NonNull Editable output, @NonNull XMLReader xmlReader) {
+            if (opening) {
+                handler.openListItem(output);
+            } else {
+                handler.closeListItem(output);
+            }
+        }
+    }
+
+    private static class CodeAction implements TagAction {
+        @Override
+        public void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                              @NonNull Editable output, @NonNull XMLReader xmlReader) {
+            if (opening) {
+                handler.start(output, Code.class);
+            } else {
+                handler.end(output, Code.class, false, new TypefaceSpan("monospace"));
+            }
+        }
+    }
+
+    private static class CenterAction implements TagAction {
+        @Override
+        public void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                              @NonNull Editable output, @NonNull XMLReader xmlReader) {
+            if (opening) {
+                handler.start(output, Center.class);
+            } else {
+                handler.end(output, Center.class, true, new AlignmentSpan.Standard(Layout.Alignment.ALIGN_CENTER));
+            }
+        }
+    }
 
-            if (tag.equalsIgnoreCase(UNORDERED_LIST)) {
-                lists.push(tag);
-            } else if (tag.equalsIgnoreCase(ORDERED_LIST)) {
-                lists.push(tag);
-                olNextIndex.push(1);
-            } else if (tag.equalsIgnoreCase(LIST_ITEM)) {
+    private static class StrikeAction implements TagAction {
+        @Override
+        public void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                              @NonNull Editable output, @NonNull XMLReader xmlReader) {
+            if (opening) {
+                handler.start(output, Strike.class);
+            } else {
+                handler.end(output, Strike.class, false, new StrikethroughSpan());
+            }
+        }
+    }
+
+    private static class TableAction implements TagAction {
+        @Override
+        public void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                              @NonNull Editable output, @NonNull XMLReader xmlReader) {
+            if (opening) {
+                handler.openTable(output);
+            } else {
+                handler.closeTable(output);
+            }
+        }
+    }
+
+    private static class TableRowAction implements TagAction {
+        @Override
+        public void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                              @NonNull Editable output, @NonNull XMLReader xmlReader) {
+            if (opening) {
+                handler.start(output, Tr.class);
+            } else {
+                handler.end(output, Tr.class, false);
+            }
+        }
+    }
+
+    private static class TableHeaderAction implements TagAction {
+        @Override
+        public void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                              @NonNull Editable output, @NonNull XMLReader xmlReader) {
+            if (opening) {
+                handler.start(output, Th.class);
+            } else {
+                handler.end(output, Th.class, false);
+            }
+        }
+    }
+
+    private static class TableDataAction implements TagAction {
+        @Override
+        public void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                              @NonNull Editable output, @NonNull XMLReader xmlReader) {
+            if (opening) {
+                handler.start(output, Td.class);
+            } else {
+                handler.end(output, Td.class, false);
+            }
+        }
+    }
+
+    private void openListItem(Editable output) {
+        if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
+            output.append("\n");
+        }
+        if (!lists.isEmpty()) {
+            String parentList = lists.peek();
+            if (parentList.equals(ORDERED_LIST)) {
+                start(output, Ol.class);
+                olNextIndex.push(olNextIndex.pop() + 1);
+            } else if (parentList.equals(UNORDERED_LIST)) {
+                start(output, Ul.class);
+            }
+        }
+    }
+
+    private void closeListItem(Editable output) {
+        if (!lists.isEmpty()) {
+            int listItemIndent = (userGivenIndent > -1) ? (userGivenIndent * 2) : defaultListItemIndent;
+            if (lists.peek().equals(UNORDERED_LIST)) {
                 if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
                     output.append("\n");
                 }
-                if (!lists.isEmpty()) {
-                    String parentList = lists.peek();
-                    if (parentList.equalsIgnoreCase(ORDERED_LIST)) {
-                        start(output, new Ol());
-                        olNextIndex.push(olNextIndex.pop() + 1);
-                    } else if (parentList.equalsIgnoreCase(UNORDERED_LIST)) {
-                        start(output, new Ul());
+                // Nested BulletSpans increases distance between bullet and text, so we must prevent it.
+                int indent = (userGivenIndent > -1) ? userGivenIndent : defaultIndent;
+                BulletSpan bullet = (userGivenIndent > -1) ? new BulletSpan(userGivenIndent) : defaultBullet;
+                if (lists.size() > 1) {
+                    indent = indent - bullet.getLeadingMargin(true);
+                    if (lists.size() > 2) {
+                        // This get's more complicated when we add a LeadingMarginSpan into the same line:
+                        // we have also counter it's effect to BulletSpan
+                        indent -= (lists.size() - 2) * listItemIndent;
                     }
                 }
-            } else if (tag.equalsIgnoreCase("code")) {
-                start(output, new Code());
-            } else if (tag.equalsIgnoreCase("center")) {
-                start(output, new Center());
-            } else if (tag.equalsIgnoreCase("s") || tag.equalsIgnoreCase("strike")) {
-                start(output, new Strike());
-            } else if (tag.equalsIgnoreCase("table")) {
-                start(output, new Table());
-                if (tableTagLevel == 0) {
-                    tableHtmlBuilder = new StringBuilder();
-                    // We need some text for the table to be replaced by the span because
-                    // the other tags will remove their text when their text is extracted
-                    output.append("table placeholder");
+                BulletSpan newBullet = new BulletSpan(indent);
+                end(output, Ul.class, false,
+                        new LeadingMarginSpan.Standard(listItemIndent * (lists.size() - 1)),
+                        newBullet);
+            } else if (lists.peek().equals(ORDERED_LIST)) {
+                if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
+                    output.append("\n");
                 }
 
-                tableTagLevel++;
-            } else if (tag.equalsIgnoreCase("tr")) {
-                start(output, new Tr());
-            } else if (tag.equalsIgnoreCase("th")) {
-                start(output, new Th());
-            } else if (tag.equalsIgnoreCase("td")) {
-                start(output, new Td());
-            }
-        } else {
-            // closing tag
-            if (HtmlTextView.DEBUG) {
-                Log.d(HtmlTextView.TAG, "closing, output: " + output.toString());
-            }
-
-            if (tag.equalsIgnoreCase(UNORDERED_LIST)) {
-                lists.pop();
-            } else if (tag.equalsIgnoreCase(ORDERED_LIST)) {
-                lists.pop();
-                olNextIndex.pop();
-            } else if (tag.equalsIgnoreCase(LIST_ITEM)) {
-                if (!lists.isEmpty()) {
-                    int listItemIndent = (userGivenIndent > -1) ? (userGivenIndent * 2) : defaultListItemIndent;
-                    if (lists.peek().equalsIgnoreCase(UNORDERED_LIST)) {
-                        if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
-                            output.append("\n");
-                        }
-                        // Nested BulletSpans increases distance between bullet and text, so we must prevent it.
-                        int indent = (userGivenIndent > -1) ? userGivenIndent : defaultIndent;
-                        BulletSpan bullet = (userGivenIndent > -1) ? new BulletSpan(userGivenIndent) : defaultBullet;
-                        if (lists.size() > 1) {
-                            indent = indent - bullet.getLeadingMargin(true);
-                            if (lists.size() > 2) {
-                                // This get's more complicated when we add a LeadingMarginSpan into the same line:
-                                // we have also counter it's effect to BulletSpan
-                                indent -= (lists.size() - 2) * listItemIndent;
-                            }
-                        }
-                        BulletSpan newBullet = new BulletSpan(indent);
-                        end(output, Ul.class, false,
-                                new LeadingMarginSpan.Standard(listItemIndent * (lists.size() - 1)),
-                                newBullet);
-                    } else if (lists.peek().equalsIgnoreCase(ORDERED_LIST)) {
-                        if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
-                            output.append("\n");
-                        }
-
-                        // Nested NumberSpans increases distance between number and text, so we must prevent it.
-                        int indent = (userGivenIndent > -1) ? userGivenIndent : defaultIndent;
-                        NumberSpan span = new NumberSpan(indent, olNextIndex.lastElement() - 1);
-                        if (lists.size() > 1) {
-                            indent = indent - span.getLeadingMargin(true);
-                            if (lists.size() > 2) {
-                                // As with BulletSpan, we need to compensate for the spacing after the number.
-                                indent -= (lists.size() - 2) * listItemIndent;
-                            }
-                        }
-                        NumberSpan numberSpan = new NumberSpan(indent, olNextIndex.lastElement() - 1);
-                        end(output, Ol.class, false,
-                                new LeadingMarginSpan.Standard(listItemIndent * (lists.size() - 1)),
-                                numberSpan);
+                // Nested NumberSpans increases distance between number and text, so we must prevent it.
+                int indent = (userGivenIndent > -1) ? userGivenIndent : defaultIndent;
+                NumberSpan span = new NumberSpan(indent, olNextIndex.lastElement() - 1);
+                if (lists.size() > 1) {
+                    indent = indent - span.getLeadingMargin(true);
+                    if (lists.size() > 2) {
+                        // As with BulletSpan, we need to compensate for the spacing after the number.
+                        indent -= (lists.size() - 2) * listItemIndent;
                     }
                 }
-            } else if (tag.equalsIgnoreCase("code")) {
-                end(output, Code.class, false, new TypefaceSpan("monospace"));
-            } else if (tag.equalsIgnoreCase("center")) {
-                end(output, Center.class, true, new AlignmentSpan.Standard(Layout.Alignment.ALIGN_CENTER));
-            } else if (tag.equalsIgnoreCase("s") || tag.equalsIgnoreCase("strike")) {
-                end(output, Strike.class, false, new StrikethroughSpan());
-            } else if (tag.equalsIgnoreCase("table")) {
-                tableTagLevel--;
-
-                // When we're back at the root-level table
-                if (tableTagLevel == 0) {
-                    final String tableHtml = tableHtmlBuilder.toString();
-
-                    ClickableTableSpan myClickableTableSpan = null;
-                    if (clickableTableSpan != null) {
-                        myClickableTableSpan = clickableTableSpan.newInstance();
-                        myClickableTableSpan.setTableHtml(tableHtml);
-                    }
+                NumberSpan numberSpan = new NumberSpan(indent, olNextIndex.lastElement() - 1);
+                end(output, Ol.class, false,
+                        new LeadingMarginSpan.Standard(listItemIndent * (lists.size() - 1)),
+                        numberSpan);
+            }
+        }
+    }
 
-                    DrawTableLinkSpan myDrawTableLinkSpan = null;
-                    if (drawTableLinkSpan != null) {
-                        myDrawTableLinkSpan = drawTableLinkSpan.newInstance();
-                    }
+    private void openTable(Editable output) {
+        start(output, Table.class);
+        if (tableTagLevel == 0) {
+            // We need some text for the table to be replaced by the span because
+            // the text of the table is removed when the root table is closed
+            output.append(TABLE_PLACEHOLDER);
+        }
+
+        tableTagLevel++;
+    }
+
+    private void closeTable(Editable output) {
+        tableTagLevel--;
+
+        // When we're back at the root-level table
+        if (tableTagLevel == 0) {
+            int where = peekOpenElement(Table.class);
 
-                    end(output, Table.class, false, myDrawTableLinkSpan, myClickableTableSpan);
-                } else {
-                    end(output, Table.class, false);
+            // The parser sees the same table as the source index if it reports the same tables
+            // and cells. Otherwise, e.g. if it closed a badly nested table early, the tables at
+            // this index and after it differ.
+            int index = rootTableCount;
+            if (index >= sourceIndex.getTableCount()
+                    || sourceIndex.getTableElementCount(index) != tableElementCount) {
+                tablesMisaligned = true;
+            }
+            rootTableCount++;
+
+            ClickableTableSpan myClickableTableSpan = null;
+            if (clickableTableSpan != null) {
+                myClickableTableSpan = clickableTableSpan.newInstance();
+                if (!tablesMisaligned) {
+                    // the table HTML is cut out of the source instead of being built from the tags
+                    myClickableTableSpan.setTableHtmlSource(sourceIndex.getSource(),
+                            sourceIndex.getTableStart(index), sourceIndex.getTableEnd(index));
+                } else if (where >= 0) {
+                    myClickableTableSpan.setTableHtml(buildTableHtml(output, where + TABLE_PLACEHOLDER.length()));
                 }
-            } else if (tag.equalsIgnoreCase("tr")) {
-                end(output, Tr.class, false);
-            } else if (tag.equalsIgnoreCase("th")) {
-                end(output, Th.class, false);
-            } else if (tag.equalsIgnoreCase("td")) {
-                end(output, Td.class, false);
             }
-        }
 
-        storeTableTags(opening, tag);
-    }
+            DrawTableLinkSpan myDrawTableLinkSpan = null;
+            if (drawTableLinkSpan != null) {
+                myDrawTableLinkSpan = drawTableLinkSpan.newInstance();
+            }
 
-    /**
-     * If we're arriving at a table tag or are already within a table tag, then we should store it
-     * the raw HTML for our ClickableTableSpan
-     */
-    private void storeTableTags(boolean opening, String tag) {
-        if (tableTagLevel > 0 || tag.equalsIgnoreCase("table")) {
-            tableHtmlBuilder.append("<");
-            if (!opening) {
-                tableHtmlBuilder.append("/");
+            if (where >= 0) {
+                removeTableText(output, where + TABLE_PLACEHOLDER.length());
             }
-            tableHtmlBuilder
-                    .append(tag.toLowerCase())
-                    .append(">");
+            end(output, Table.class, false, myDrawTableLinkSpan, myClickableTableSpan);
+        } else {
+            end(output, Table.class, false);
         }
     }
 
     /**
-     * Mark the opening tag by using private classes
+     * Mark the opening tag by using private classes. The kind and the current length of the output
+     * are pushed onto the stack of open elements, no span is set.
      */
-    private void start(Editable output, Object mark) {
+    public void start(Editable output, Class<?> kind) {
         int len = output.length();
-        output.setSpan(mark, len, len, Spannable.SPAN_MARK_MARK);
+        if (openCount == openKinds.length) {
+            openKinds = Arrays.copyOf(openKinds, openCount * 2);
+            openStarts = Arrays.copyOf(openStarts, openCount * 2);
+        }
+        openKinds[openCount] = kind;
+        openStarts[openCount] = len;
+        openCount++;
 
         if (HtmlTextView.DEBUG) {
             Log.d(HtmlTextView.TAG, "len: " + len);
@@ -315,22 +497,20 @@ public class HtmlTagHandler implements Html.TagHandler {
 
     /**
      * Modified from {@link Html}
+     * <p/>
+     * Spans the text since the last opened element of the given kind with replaces and removes
+     * the element from the stack of open elements.
      */
-    private void end(Editable output, Class kind, boolean paragraphStyle, Object... replaces) {
-        Object obj = getLast(output, kind);
+    public void end(Editable output, Class<?> kind, boolean paragraphStyle, Object... replaces) {
         // start of the tag
-        int where = output.getSpanStart(obj);
+        int where = popOpenElement(kind);
+        if (where < 0) {
+            // closing tag without opening tag
+            return;
+        }
         // end of the tag
         int len = output.length();
 
-        // If we're in a table, then we need to store the raw HTML for later
-        if (tableTagLevel > 0) {
-            final CharSequence extractedSpanText = extractSpanText(output, kind);
-            tableHtmlBuilder.append(extractedSpanText);
-        }
-
-        output.removeSpan(obj);
-
         if (where != len) {
             int thisLen = len;
             // paragraph styles like AlignmentSpan need to end with a new line!
@@ -349,36 +529,123 @@ public class HtmlTagHandler implements Html.TagHandler {
         }
     }
 
+    private void addTableTag(boolean opening, String tag, int position) {
+        if (tableTagLevel == 0) {
+            // a new root table
+            tableTagCount = 0;
+            tableElementCount = 0;
+        }
+        if (tableTagCount == tableTagNames.length) {
+            tableTagNames = Arrays.copyOf(tableTagNames, tableTagCount * 2);
+            tableTagsOpening = Arrays.copyOf(tableTagsOpening, tableTagCount * 2);
+            tableTagPositions = Arrays.copyOf(tableTagPositions, tableTagCount * 2);
+        }
+        tableTagNames[tableTagCount] = tag;
+        tableTagsOpening[tableTagCount] = opening;
+        tableTagPositions[tableTagCount] = position;
+        tableTagCount++;
+
+        if (opening && (tag.equalsIgnoreCase("table") || tag.equalsIgnoreCase("td")
+                || tag.equalsIgnoreCase("th"))) {
+            tableElementCount++;
+        }
+    }
+
+    /**
+     * @return HTML of the current root table built from its tags and the text in the output
+     * since textStart, without attributes, like the parser saw it
+     */
+    private String buildTableHtml(Editable output, int textStart) {
+        StringBuilder html = new StringBuilder();
+        int position = textStart;
+        for (int i = 0; i < tableTagCount; i++) {
+            int tagPosition = tableTagPositions[i];
+            if (tagPosition > position) {
+                appendEscaped(html, output, position, tagPosition);
+                position = tagPosition;
+            }
+            String tag = tableTagNames[i];
+            if (tagRewriter != null) {
+                // the name in the source, e.g. li instead of the escaped list item tag
+                tag = tagRewriter.getSourceTag(tag);
+            }
+            html.append(tableTagsOpening[i] ? "<" : "</").append(tag.toLowerCase(Locale.US)).append('>');
+        }
+        if (output.length() > position) {
+            appendEscaped(html, output, position, output.length());
+        }
+        return html.toString();
+    }
+
+    private static void appendEscaped(StringBuilder html, CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                html.append("&lt;");
+            } else if (c == '>') {
+                html.append("&gt;");
+            } else if (c == '&') {
+                html.append("&amp;");
+            } else {
+                html.append(c);
+            }
+        }
+    }
+
     /**
-     * Returns the text contained within a span and deletes it from the output string
+     * Deletes the text of a root table following its placeholder, in one go for the whole table
      */
-    private CharSequence extractSpanText(Editable output, Class kind) {
-        final Object obj = getLast(output, kind);
-        // start of the tag
-        final int where = output.getSpanStart(obj);
-        // end of the tag
+    private void removeTableText(Editable output, int from) {
         final int len = output.length();
+        if (from >= len) {
+            return;
+        }
+        output.delete(from, len);
 
-        final CharSequence extractedSpanText = output.subSequence(where, len);
-        output.delete(where, len);
-        return extractedSpanText;
+        // elements which are still open but started inside the deleted text (badly nested tags)
+        // now start at its end
+        for (int i = 0; i < openCount; i++) {
+            if (openStarts[i] > from) {
+                openStarts[i] = from;
+            }
+        }
     }
 
     /**
-     * Get last marked position of a specific tag kind (private class)
+     * @return start of the most recently opened element of a specific kind, or -1 if no such
+     * element is open
      */
-    private static Object getLast(Editable text, Class kind) {
-        Object[] objs = text.getSpans(0, text.length(), kind);
-        if (objs.length == 0) {
-            return null;
-        } else {
-            for (int i = objs.length; i > 0; i--) {
-                if (text.getSpanFlags(objs[i - 1]) == Spannable.SPAN_MARK_MARK) {
-                    return objs[i - 1];
+    private int peekOpenElement(Class<?> kind) {
+        for (int i = openCount - 1; i >= 0; i--) {
+            if (openKinds[i] == kind) {
+                return openStarts[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the most recently opened element of a specific kind (private class) from the stack
+     * of open elements.
+     *
+     * @return start of the element in the output, or -1 if no such element is open
+     */
+    private int popOpenElement(Class<?> kind) {
+        for (int i = openCount - 1; i >= 0; i--) {
+            if (openKinds[i] == kind) {
+                int where = openStarts[i];
+                // usually i is the top of the stack, otherwise the tags are badly nested
+                int moved = openCount - i - 1;
+                if (moved > 0) {
+                    System.arraycopy(openKinds, i + 1, openKinds, i, moved);
+                    System.arraycopy(openStarts, i + 1, openStarts, i, moved);
                 }
+                openCount--;
+                openKinds[openCount] = null;
+                return where;
             }
-            return null;
         }
+        return -1;
     }
 
     // Util method for setting pixels.
@@ -393,4 +660,19 @@ public class HtmlTagHandler implements Html.TagHandler {
     public void setDrawTableLinkSpan(DrawTableLinkSpan drawTableLinkSpan) {
         this.drawTableLinkSpan = drawTableLinkSpan;
     }
+
+    /**
+     * Actions for custom tags, consulted before the built-in ones.
+     */
+    public void setTagActions(@Nullable TagActionRegistry tagActions) {
+        this.tagActions = tagActions;
+    }
+
+    /**
+     * Use the given rewriter in {@link #overrideTags(String)}, so its buffer and aliases can be
+     * shared between documents.
+     */
+    public void setTagRewriter(HtmlTagRewriter tagRewriter) {
+        this.tagRewriter = tagRewriter;
+    }
 } 
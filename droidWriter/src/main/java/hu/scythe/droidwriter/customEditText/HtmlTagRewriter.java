@@ -0,0 +1,324 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Renames tags of a HTML string in a single pass, for example &lt;ul&gt; to the escaped tag
+ * handled by {@link HtmlTagHandler}. Tag names are matched case-insensitively and as a whole, so
+ * an alias for &lt;li&gt; leaves &lt;link&gt; alone. Like the parser, it ignores tags in
+ * comments, scripts, styles and quoted attribute values. The same pass can record root tables and
+ * image sizes in a {@link HtmlSourceIndex}.
+ * <p/>
+ * The rewritten document is built in a buffer that is kept between calls, so one instance can be
+ * reused for many documents without allocating a new builder every time. All methods are
+ * synchronized, so an instance may be shared between threads.
+ */
+public class HtmlTagRewriter {
+
+    private static final String TABLE = "table";
+    private static final String IMG = "img";
+
+    private static final String[] CELL_TAGS = {"td", "th"};
+
+    /**
+     * Elements the parser puts into an implied table if they are not in one
+     */
+    private static final String[] TABLE_PART_TAGS = {
+            "tr", "td", "th", "tbody", "thead", "tfoot", "caption", "col", "colgroup"};
+
+    /**
+     * Lower case source tag names, the tag at index i is renamed to handlerTags[i]
+     */
+    private final ArrayList<String> sourceTags = new ArrayList<>();
+    private final ArrayList<String> handlerTags = new ArrayList<>();
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    @Nullable
+    private String signature;
+
+    /**
+     * Creates a rewriter with the aliases needed by {@link HtmlTagHandler}: ul, ol and li.
+     */
+    public HtmlTagRewriter() {
+        putAlias("ul", HtmlTagHandler.UNORDERED_LIST);
+        putAlias("ol", HtmlTagHandler.ORDERED_LIST);
+        putAlias("li", HtmlTagHandler.LIST_ITEM);
+    }
+
+    /**
+     * Renames all opening and closing tags named sourceTag to handlerTag. An existing alias for
+     * the same source tag is replaced.
+     *
+     * @param sourceTag  tag name as found in the HTML, for example "ul"
+     * @param handlerTag tag name passed on to the parser, for example "HTML_TEXTVIEW_ESCAPED_UL_TAG"
+     */
+    public synchronized void putAlias(@NonNull String sourceTag, @NonNull String handlerTag) {
+        String source = sourceTag.toLowerCase(Locale.US);
+        int index = sourceTags.indexOf(source);
+        if (index >= 0) {
+            handlerTags.set(index, handlerTag);
+        } else {
+            sourceTags.add(source);
+            handlerTags.add(handlerTag);
+        }
+        signature = null;
+    }
+
+    /**
+     * @return the source tag renamed to handlerTag, or handlerTag itself if it isn't an alias
+     */
+    @NonNull
+    public synchronized String getSourceTag(@NonNull String handlerTag) {
+        int index = handlerTags.indexOf(handlerTag);
+        return index >= 0 ? sourceTags.get(index) : handlerTag;
+    }
+
+    public synchronized void removeAlias(@NonNull String sourceTag) {
+        int index = sourceTags.indexOf(sourceTag.toLowerCase(Locale.US));
+        if (index >= 0) {
+            sourceTags.remove(index);
+            handlerTags.remove(index);
+            signature = null;
+        }
+    }
+
+    /**
+     * @return a string which is equal for two rewriters if they rewrite HTML the same way
+     */
+    @NonNull
+    public synchronized String getSignature() {
+        if (signature == null) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0, size = sourceTags.size(); i < size; i++) {
+                builder.append(sourceTags.get(i)).append('=').append(handlerTags.get(i)).append(';');
+            }
+            signature = builder.toString();
+        }
+        return signature;
+    }
+
+    /**
+     * @param html String containing HTML, for example: "&lt;ul&gt;&lt;li&gt;Hello&lt;/li&gt;&lt;/ul&gt;"
+     * @return html with all aliased tags renamed, or html itself if no tag had to be renamed
+     */
+    @Nullable
+    public String rewrite(@Nullable String html) {
+        return rewrite(html, null);
+    }
+
+    /**
+     * Like {@link #rewrite(String)}, additionally records the positions of root tables and the
+     * declared sizes of images in html. Tables the parser may see differently, because they are
+     * not closed or follow table parts outside of a table, are recorded without an element count.
+     *
+     * @param index cleared and filled with the positions in html, may be null
+     */
+    @Nullable
+    public synchronized String rewrite(@Nullable String html, @Nullable HtmlSourceIndex index) {
+        if (html == null) return null;
+
+        if (index != null) {
+            index.reset(html);
+        }
+
+        final int length = html.length();
+        // everything before this index has been copied to the buffer
+        int copied = 0;
+        boolean rewritten = false;
+        int tableDepth = 0;
+        int tableStart = 0;
+        // tables and cells of the current root table, the parser reports the same if it sees
+        // the same table
+        int tableElements = 0;
+        // set after a table part outside of a table, the parser's tables may differ from then on
+        boolean impliedTable = false;
+
+        final HtmlTagScanner tags = new HtmlTagScanner(html);
+        while (tags.next()) {
+            final boolean closing = tags.closing;
+            final int tagEnd = tags.tagEnd;
+
+            if (index != null && tags.isName(TABLE)) {
+                if (!closing) {
+                    if (tableDepth == 0) {
+                        tableStart = tags.tagStart;
+                        tableElements = 0;
+                    }
+                    tableDepth++;
+                    tableElements++;
+                }
+                // <table/> is closed right away
+                if ((closing || tags.isSelfClosing()) && tableDepth > 0) {
+                    tableDepth--;
+                    if (tableDepth == 0) {
+                        index.addTable(tableStart, tagEnd < 0 ? length : tagEnd + 1,
+                                impliedTable ? -1 : tableElements);
+                    }
+                }
+            } else if (index != null && !closing) {
+                if (tableDepth > 0) {
+                    if (tags.findName(CELL_TAGS) != null) {
+                        tableElements++;
+                    }
+                } else if (tags.findName(TABLE_PART_TAGS) != null) {
+                    impliedTable = true;
+                }
+            }
+
+            if (index != null && !closing && tags.isName(IMG)) {
+                addImage(html, tags.nameEnd, index);
+            }
+
+            String handlerTag = findHandlerTag(tags);
+            if (handlerTag != null) {
+                if (!rewritten) {
+                    buffer.setLength(0);
+                    buffer.ensureCapacity(length + length / 16);
+                    rewritten = true;
+                }
+                buffer.append(html, copied, tags.nameStart).append(handlerTag);
+                copied = tags.nameEnd;
+            }
+        }
+
+        if (index != null && tableDepth > 0) {
+            // unclosed root table, the parser closes it at the end of the document or earlier
+            index.addTable(tableStart, length, -1);
+        }
+
+        if (!rewritten) {
+            return html;
+        }
+
+        buffer.append(html, copied, length);
+        String result = buffer.toString();
+        // keep the capacity for the next document
+        buffer.setLength(0);
+        return result;
+    }
+
+    /**
+     * Records the src, width and height attributes of the img tag whose attributes start at start,
+     * if it declares a width or height
+     */
+    private static void addImage(String html, int start, HtmlSourceIndex index) {
+        String source = null;
+        int width = 0;
+        int height = 0;
+
+        final int length = html.length();
+        int i = start;
+        while (i < length) {
+            char c = html.charAt(i);
+            if (c == '>') {
+                break;
+            }
+            if (!HtmlTagScanner.isTagNameChar(c)) {
+                i++;
+                continue;
+            }
+
+            int nameStart = i;
+            while (i < length && HtmlTagScanner.isTagNameChar(html.charAt(i))) {
+                i++;
+            }
+            int nameEnd = i;
+            while (i < length && html.charAt(i) == ' ') {
+                i++;
+            }
+            if (i == length || html.charAt(i) != '=') {
+                continue;
+            }
+            i++;
+            while (i < length && html.charAt(i) == ' ') {
+                i++;
+            }
+
+            int valueStart;
+            int valueEnd;
+            if (i < length && (html.charAt(i) == '"' || html.charAt(i) == '\'')) {
+                valueStart = i + 1;
+                valueEnd = html.indexOf(html.charAt(i), valueStart);
+                if (valueEnd < 0) {
+                    return;
+                }
+                i = valueEnd + 1;
+            } else {
+                valueStart = i;
+                while (i < length && html.charAt(i) != '>' && !Character.isWhitespace(html.charAt(i))) {
+                    i++;
+                }
+                valueEnd = i;
+            }
+
+            String name = html.substring(nameStart, nameEnd);
+            if (name.equalsIgnoreCase("src")) {
+                source = unescape(html.substring(valueStart, valueEnd));
+            } else if (name.equalsIgnoreCase("width")) {
+                width = parseLength(html, valueStart, valueEnd);
+            } else if (name.equalsIgnoreCase("height")) {
+                height = parseLength(html, valueStart, valueEnd);
+            }
+        }
+
+        if (source != null && (width > 0 || height > 0)) {
+            index.addImage(source, width, height);
+        }
+    }
+
+    /**
+     * @return the length in pixels, e.g. "120" or "120px", 0 for relative lengths like "50%"
+     */
+    private static int parseLength(String html, int start, int end) {
+        int value = 0;
+        int i = start;
+        while (i < end && html.charAt(i) >= '0' && html.charAt(i) <= '9' && value < 100000) {
+            value = value * 10 + html.charAt(i) - '0';
+            i++;
+        }
+        if (i < end && !html.regionMatches(true, i, "px", 0, 2)) {
+            return 0;
+        }
+        return value;
+    }
+
+    /**
+     * Replaces the entities the parser replaces in attribute values which are common in URLs
+     */
+    private static String unescape(String value) {
+        if (value.indexOf('&') < 0) {
+            return value;
+        }
+        return value.replace("&quot;", "\"").replace("&#39;", "'").replace("&apos;", "'")
+                .replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+    }
+
+    @Nullable
+    private String findHandlerTag(HtmlTagScanner tags) {
+        for (int i = 0, size = sourceTags.size(); i < size; i++) {
+            if (tags.isName(sourceTags.get(i))) {
+                return handlerTags.get(i);
+            }
+        }
+        return null;
+    }
+}
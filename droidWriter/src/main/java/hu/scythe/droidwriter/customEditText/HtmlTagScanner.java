@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Finds the tags of a HTML string one after the other, the way the parser sees them: tags in
+ * comments and in the content of scripts and styles are skipped, and a '&gt;' in a quoted
+ * attribute value doesn't end a tag. Used by {@link HtmlTagRewriter} and {@link HtmlChunker}.
+ * <p/>
+ * The current tag is described by the fields set by {@link #next()}, so scanning allocates
+ * nothing.
+ */
+final class HtmlTagScanner {
+
+    private static final String COMMENT_START = "<!--";
+    private static final String COMMENT_END = "-->";
+
+    /**
+     * Elements whose content is not HTML
+     */
+    private static final String[] RAW_TEXT_TAGS = {"script", "style"};
+
+    private final String html;
+    private final int length;
+
+    // index of the next '<' to look at, -1 once the end is reached
+    private int position;
+
+    /**
+     * Index of the '&lt;' starting the current tag
+     */
+    int tagStart;
+
+    /**
+     * Index of the '&gt;' ending the current tag, -1 if it is not closed. Such a tag is the last
+     * one.
+     */
+    int tagEnd;
+
+    /**
+     * Whether the current tag is an end tag, like &lt;/p&gt;
+     */
+    boolean closing;
+
+    /**
+     * Range of the name of the current tag
+     */
+    int nameStart;
+    int nameEnd;
+
+    HtmlTagScanner(@NonNull String html) {
+        this.html = html;
+        length = html.length();
+        position = html.indexOf('<');
+    }
+
+    /**
+     * Moves to the next tag
+     *
+     * @return false if there is none
+     */
+    boolean next() {
+        while (position >= 0 && position < length - 1) {
+            final int i = position;
+            if (html.startsWith(COMMENT_START, i)) {
+                int commentEnd = html.indexOf(COMMENT_END, i + COMMENT_START.length());
+                position = commentEnd < 0 ? -1 : html.indexOf('<', commentEnd + COMMENT_END.length());
+                continue;
+            }
+
+            final boolean endTag = html.charAt(i + 1) == '/';
+            final int start = endTag ? i + 2 : i + 1;
+            int end = start;
+            while (end < length && isTagNameChar(html.charAt(end))) {
+                end++;
+            }
+            if (end == start) {
+                // a '<' which doesn't start a tag, e.g. in "a < b"
+                position = html.indexOf('<', i + 1);
+                continue;
+            }
+
+            tagStart = i;
+            closing = endTag;
+            nameStart = start;
+            nameEnd = end;
+            tagEnd = findTagEnd(html, end);
+
+            if (tagEnd < 0) {
+                position = -1;
+            } else if (!closing && !isSelfClosing() && findName(RAW_TEXT_TAGS) != null) {
+                // tags in scripts and styles are not seen by the parser, continue at the end tag
+                position = indexOfEndTag(tagEnd + 1);
+            } else {
+                position = html.indexOf('<', tagEnd + 1);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    int nameLength() {
+        return nameEnd - nameStart;
+    }
+
+    /**
+     * @return whether the current tag ends with "/&gt;", like &lt;br/&gt;
+     */
+    boolean isSelfClosing() {
+        return tagEnd > nameEnd && html.charAt(tagEnd - 1) == '/';
+    }
+
+    /**
+     * @return whether the name of the current tag is name, ignoring case
+     */
+    boolean isName(@NonNull String name) {
+        return name.length() == nameEnd - nameStart
+                && html.regionMatches(true, nameStart, name, 0, name.length());
+    }
+
+    /**
+     * @return the name of names which is the name of the current tag, ignoring case, null if none is
+     */
+    @Nullable
+    String findName(@NonNull String[] names) {
+        for (String name : names) {
+            if (isName(name)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    static boolean isTagNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '_' || c == ':';
+    }
+
+    /**
+     * @return index of the end tag of the current element at or after from, -1 if there is none
+     */
+    private int indexOfEndTag(int from) {
+        final int nameLength = nameEnd - nameStart;
+        for (int i = html.indexOf("</", from); i >= 0; i = html.indexOf("</", i + 2)) {
+            if (html.regionMatches(true, i + 2, html, nameStart, nameLength)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the '>' ending the tag whose attributes start at start, -1 if the tag is
+     * not closed
+     */
+    private static int findTagEnd(String html, int start) {
+        final int length = html.length();
+        int i = start;
+        while (i < length) {
+            char c = html.charAt(i);
+            if (c == '>') {
+                return i;
+            }
+            if ((c == '"' || c == '\'') && isAfterEquals(html, start, i)) {
+                int valueEnd = html.indexOf(c, i + 1);
+                if (valueEnd < 0) {
+                    return -1;
+                }
+                i = valueEnd;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether the quote at index starts an attribute value, i.e. follows a '='
+     */
+    private static boolean isAfterEquals(String html, int start, int index) {
+        int i = index - 1;
+        while (i >= start && html.charAt(i) == ' ') {
+            i--;
+        }
+        return i >= start && html.charAt(i) == '=';
+    }
+}
@@ -17,22 +17,35 @@
 package hu.scythe.droidwriter.customEditText;
 
 import android.content.Context;
-import android.os.Build;
+import android.content.res.Resources;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RawRes;
 import android.text.Editable;
 import android.text.Html;
-import android.text.Spannable;
+import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.style.StyleSpan;
 import android.text.style.UnderlineSpan;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.Choreographer;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Scanner;
-
-import co.zipperstudios.supporthtml.SupportHtml;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class HtmlTextView extends JellyBeanSpanFixTextView {
 
@@ -46,6 +59,21 @@ public class HtmlTextView extends JellyBeanSpanFixTextView {
     private float indent = 24.0f; // Default to 24px.
 
     private boolean removeTrailingWhiteSpace = true;
+    private final ArrayList<HtmlPostProcessor> postProcessors = new ArrayList<>();
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    @NonNull
+    private Executor parseExecutor = AsyncTask.THREAD_POOL_EXECUTOR;
+    @Nullable
+    private ParseTask pendingParse;
+    @Nullable
+    private ChunkTask pendingChunks;
+    @Nullable
+    private HtmlParseCache parseCache;
+
+    private final HtmlTagRewriter tagRewriter = new HtmlTagRewriter();
+    @Nullable
+    private TagActionRegistry tagActions;
 
     public HtmlTextView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
@@ -60,29 +88,27 @@ public class HtmlTextView extends JellyBeanSpanFixTextView {
     }
 
     /**
-     * http://stackoverflow.com/questions/309424/read-convert-an-inputstream-to-a-string
-     */
-    @NonNull
-    static private String convertStreamToString(@NonNull InputStream is) {
-        Scanner s = new Scanner(is).useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
-    }
-
-    /**
-     * Html.fromHtml sometimes adds extra space at the bottom.
-     * This methods removes this space again.
-     * See https://github.com/SufficientlySecure/html-textview/issues/19
+     * Reads a UTF-8 encoded stream into builder and closes it. Html.fromHtml only accepts a
+     * String, so the whole document has to be in memory, but it is copied only once more.
+     *
+     * @throws IOException if the stream can't be read, builder holds the text read until then
      */
-    @Nullable
-    static private CharSequence removeHtmlBottomPadding(@Nullable CharSequence text) {
-        if (text == null) {
-            return null;
+    static private void readStream(@NonNull InputStream is, @NonNull StringBuilder builder) throws IOException {
+        try {
+            // resource streams know their remaining length
+            builder.ensureCapacity(is.available());
+            Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8);
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, read);
+            }
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ignored) {
+            }
         }
-
-        while (text.length() > 0 && text.charAt(text.length() - 1) == '\n') {
-            text = text.subSequence(0, text.length() - 1);
-        }
-        return text;
     }
 
     /**
@@ -103,15 +129,42 @@ public class HtmlTextView extends JellyBeanSpanFixTextView {
      * Loads HTML from a raw resource, i.e., a HTML file in res/raw/.
      * This allows translatable resource (e.g., res/raw-de/ for german).
      * The containing HTML is parsed to Android's Spannable format and then displayed.
+     * <p/>
+     * If a parse cache is set, the resource isn't even read again as long as the same file is
+     * chosen for the current configuration.
      *
      * @param resId       for example: R.raw.help
      * @param imageGetter for fetching images. Possible ImageGetter provided by this library:
      *                    HtmlLocalImageGetter and HtmlRemoteImageGetter
      */
     public void setHtml(@RawRes int resId, @Nullable Html.ImageGetter imageGetter) {
-        InputStream inputStreamText = getContext().getResources().openRawResource(resId);
+        replaceHtml();
+
+        final Resources resources = getContext().getResources();
+        HtmlParseCache.Key cacheKey = null;
+        if (parseCache != null) {
+            // the file the resource resolves to in the current configuration, e.g. res/raw-de/help.html
+            TypedValue value = new TypedValue();
+            resources.getValue(resId, value, true);
+            cacheKey = newCacheKey(new RawResourceFile(value.assetCookie, value.string), imageGetter);
+
+            Spanned cached = parseCache.get(cacheKey, imageGetter);
+            if (cached != null) {
+                commitHtml(cached);
+                return;
+            }
+        }
 
-        setHtml(convertStreamToString(inputStreamText), imageGetter);
+        StringBuilder html = new StringBuilder();
+        try {
+            readStream(resources.openRawResource(resId), html);
+        } catch (IOException e) {
+            // display what could be read, but don't cache it for the next time
+            Log.e(TAG, "Could not read HTML", e);
+            cacheKey = null;
+        }
+        commitHtml(parseHtml(newHtmlTagHandler(), html.toString(), imageGetter,
+                newPostProcessors(removeTrailingWhiteSpace), cacheKey != null ? parseCache : null, cacheKey));
     }
 
     /**
@@ -123,53 +176,235 @@ public class HtmlTextView extends JellyBeanSpanFixTextView {
      *                    HtmlLocalImageGetter and HtmlRemoteImageGetter
      */
     public void setHtml(@NonNull String html, @Nullable Html.ImageGetter imageGetter) {
-        final HtmlTagHandler htmlTagHandler = new HtmlTagHandler(getPaint());
-        htmlTagHandler.setClickableTableSpan(clickableTableSpan);
-        htmlTagHandler.setDrawTableLinkSpan(drawTableLinkSpan);
-        htmlTagHandler.setListIndentPx(indent);
+        // a parse started earlier must not overwrite this document
+        replaceHtml();
+
+        commitHtml(loadHtml(newHtmlTagHandler(), html, imageGetter,
+                newPostProcessors(removeTrailingWhiteSpace), parseCache, newCacheKey(html, imageGetter)));
+    }
+
+    /**
+     * @see .HtmlTextView#setHtmlAsync(String, Html.ImageGetter, OnHtmlLoadedListener)
+     */
+    public void setHtmlAsync(@NonNull String html, @Nullable OnHtmlLoadedListener listener) {
+        setHtmlAsync(html, null, listener);
+    }
+
+    /**
+     * Like {@link #setHtml(String, Html.ImageGetter)}, but parses the HTML on the executor set with
+     * {@link #setParseExecutor(Executor)} and displays it on the main thread once it is parsed.
+     * Calling setHtml or setHtmlAsync again before that cancels this document.
+     * <p/>
+     * Has to be called on the main thread. The imageGetter is called on the executor's thread.
+     *
+     * @param html        String containing HTML, for example: "<b>Hello world!</b>"
+     * @param imageGetter for fetching images. Possible ImageGetter provided by this library:
+     *                    HtmlLocalImageGetter and HtmlRemoteImageGetter
+     * @param listener    notified on the main thread once the document is displayed or parsing
+     *                    failed, may be null
+     */
+    public void setHtmlAsync(@NonNull String html, @Nullable Html.ImageGetter imageGetter,
+                             @Nullable OnHtmlLoadedListener listener) {
+        replaceHtml();
+
+        pendingParse = new ParseTask(this, newHtmlTagHandler(), html, imageGetter,
+                newPostProcessors(removeTrailingWhiteSpace), parseCache,
+                newCacheKey(html, imageGetter), listener);
+        parseExecutor.execute(pendingParse);
+    }
+
+    /**
+     * @see .HtmlTextView#setHtmlProgressive(String, Html.ImageGetter, OnHtmlProgressListener)
+     */
+    public void setHtmlProgressive(@NonNull String html, @Nullable OnHtmlProgressListener listener) {
+        setHtmlProgressive(html, null, listener);
+    }
+
+    /**
+     * For very large documents: displays the beginning of html immediately and appends the rest
+     * while it is parsed on the executor set with {@link #setParseExecutor(Executor)}. The
+     * document is split before block elements at its top level. Parsed chunks are appended on the
+     * main thread, only as many per frame as fit in a few milliseconds, so the UI keeps responding.
+     * Calling setHtml, setHtmlAsync or setHtmlProgressive again before the document is complete
+     * stops appending to it.
+     * <p/>
+     * The parse cache is not used by this method. Has to be called on the main thread, the
+     * imageGetter is called on both the main and the executor's thread.
+     *
+     * @param html        String containing HTML, for example: "<b>Hello world!</b>"
+     * @param imageGetter for fetching images. Possible ImageGetter provided by this library:
+     *                    HtmlLocalImageGetter and HtmlRemoteImageGetter
+     * @param listener    notified on the main thread for every chunk appended and once the
+     *                    document is complete or parsing failed, may be null
+     */
+    public void setHtmlProgressive(@NonNull String html, @Nullable Html.ImageGetter imageGetter,
+                                   @Nullable OnHtmlProgressListener listener) {
+        replaceHtml();
+
+        final List<String> chunks = HtmlChunker.split(html, ChunkTask.FIRST_CHUNK_LENGTH,
+                ChunkTask.CHUNK_LENGTH);
+        final boolean complete = chunks.size() == 1;
+
+        // trailing white space is only removed from the end of the whole document
+        commitHtml(loadHtml(newHtmlTagHandler(), chunks.get(0), imageGetter,
+                newPostProcessors(removeTrailingWhiteSpace && complete), null, null));
+        if (listener != null) {
+            listener.onChunkDisplayed(1, chunks.size());
+        }
 
-        html = htmlTagHandler.overrideTags(html);
+        if (complete) {
+            if (listener != null) {
+                listener.onHtmlLoaded(getText());
+            }
+            return;
+        }
 
-        Spanned spannedHtml;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            spannedHtml = Html.fromHtml(html, Html.FROM_HTML_SEPARATOR_LINE_BREAK_PARAGRAPH, imageGetter, htmlTagHandler);
-        } else {
-            spannedHtml = SupportHtml.fromHtml(html, SupportHtml.FROM_HTML_SEPARATOR_LINE_BREAK_PARAGRAPH, imageGetter, htmlTagHandler);
+        final HtmlTagHandler[] htmlTagHandlers = new HtmlTagHandler[chunks.size()];
+        for (int i = 1; i < htmlTagHandlers.length; i++) {
+            htmlTagHandlers[i] = newHtmlTagHandler();
         }
+        pendingChunks = new ChunkTask(this, chunks, htmlTagHandlers, imageGetter,
+                newPostProcessors(false), removeTrailingWhiteSpace, listener);
+        parseExecutor.execute(pendingChunks);
+    }
 
-        if (removeTrailingWhiteSpace) {
-            setText(removeHtmlBottomPadding(spannedHtml));
-        } else {
-            setText(spannedHtml);
+    /**
+     * Cancels the pending document and the image requests of the displayed one, which is replaced
+     */
+    private void replaceHtml() {
+        cancelPendingHtml();
+        ImageRequestManager.cancelAll(this);
+    }
+
+    /**
+     * Cancels the document passed to the last call of setHtmlAsync if it isn't displayed yet,
+     * or stops appending the document passed to setHtmlProgressive. Their listener is not
+     * notified.
+     */
+    public void cancelPendingHtml() {
+        if (pendingParse != null) {
+            pendingParse.cancelled = true;
+            pendingParse = null;
         }
+        if (pendingChunks != null) {
+            pendingChunks.cancelled = true;
+            Choreographer.getInstance().removeFrameCallback(pendingChunks);
+            pendingChunks = null;
+        }
+    }
 
-        // make links work
-        setMovementMethod(LocalLinkMovementMethod.getInstance());
+    /**
+     * Executor used by setHtmlAsync to parse HTML, defaults to {@link AsyncTask#THREAD_POOL_EXECUTOR}.
+     */
+    public void setParseExecutor(@NonNull Executor parseExecutor) {
+        this.parseExecutor = parseExecutor;
+    }
 
-        setSpanFlags();
+    /**
+     * Cache parsed documents in the given cache, which can be shared with other views. Documents
+     * are only taken from the cache if they were parsed with the same settings as the current
+     * ones of this view.
+     *
+     * @param parseCache cache to use, null to disable caching (default)
+     */
+    public void setParseCache(@Nullable HtmlParseCache parseCache) {
+        this.parseCache = parseCache;
     }
 
-    private void setSpanFlags() {
-        Editable editable = getText();
-        StyleSpan[] styleSpans = editable.getSpans(0, editable.length(), StyleSpan.class);
-        for (StyleSpan characterStyleSpan : styleSpans) {
-            int start = editable.getSpanStart(characterStyleSpan);
-            int end = editable.getSpanEnd(characterStyleSpan);
+    @Nullable
+    private HtmlParseCache.Key newCacheKey(@NonNull Object source, @Nullable Html.ImageGetter imageGetter) {
+        if (parseCache == null) {
+            return null;
+        }
+        return new HtmlParseCache.Key(source, indent, removeTrailingWhiteSpace, imageGetter != null,
+                clickableTableSpan, drawTableLinkSpan, tagRewriter, tagActions, postProcessors);
+    }
 
-            editable.removeSpan(characterStyleSpan);
-            editable.setSpan(new StyleSpan(characterStyleSpan.getStyle()), start, end,
-                    Spannable.SPAN_EXCLUSIVE_INCLUSIVE);
+    /**
+     * Parses html, or copies it out of parseCache if it has been parsed before. May be called on
+     * any thread.
+     */
+    private static CharSequence loadHtml(HtmlTagHandler htmlTagHandler, String html,
+                                         Html.ImageGetter imageGetter,
+                                         HtmlPostProcessor[] postProcessors,
+                                         @Nullable HtmlParseCache parseCache,
+                                         @Nullable HtmlParseCache.Key cacheKey) {
+        if (parseCache != null) {
+            Spanned cached = parseCache.get(cacheKey, imageGetter);
+            if (cached != null) {
+                return cached;
+            }
         }
+        return parseHtml(htmlTagHandler, html, imageGetter, postProcessors, parseCache, cacheKey);
+    }
 
-        UnderlineSpan[] underlineSpans = editable.getSpans(0, editable.length(), UnderlineSpan.class);
-        for (UnderlineSpan underlineSpan : underlineSpans) {
-            int start = editable.getSpanStart(underlineSpan);
-            int end = editable.getSpanEnd(underlineSpan);
+    /**
+     * Parses html, runs postProcessors on it and puts it into parseCache. May be called on any
+     * thread.
+     */
+    private static CharSequence parseHtml(HtmlTagHandler htmlTagHandler, String html,
+                                          Html.ImageGetter imageGetter,
+                                          HtmlPostProcessor[] postProcessors,
+                                          @Nullable HtmlParseCache parseCache,
+                                          @Nullable HtmlParseCache.Key cacheKey) {
+        CharSequence text = postProcess(htmlTagHandler.parse(html, imageGetter), postProcessors);
+
+        if (parseCache != null) {
+            parseCache.put(cacheKey, text);
+        }
+        return text;
+    }
+
+    /**
+     * @return a tag handler configured with the current settings of this view
+     */
+    private HtmlTagHandler newHtmlTagHandler() {
+        final HtmlTagHandler htmlTagHandler = new HtmlTagHandler(getPaint());
+        htmlTagHandler.setClickableTableSpan(clickableTableSpan);
+        htmlTagHandler.setDrawTableLinkSpan(drawTableLinkSpan);
+        htmlTagHandler.setListIndentPx(indent);
+        htmlTagHandler.setTagRewriter(tagRewriter);
+        htmlTagHandler.setTagActions(tagActions);
+        return htmlTagHandler;
+    }
+
+    /**
+     * @param removeTrailingWhiteSpace whether to trim the newlines at the end of the text
+     * @return the post processors to run on a parsed document, the built in ones first
+     */
+    private HtmlPostProcessor[] newPostProcessors(boolean removeTrailingWhiteSpace) {
+        final int builtIn = removeTrailingWhiteSpace ? 2 : 1;
+        final HtmlPostProcessor[] processors = new HtmlPostProcessor[builtIn + postProcessors.size()];
+        if (removeTrailingWhiteSpace) {
+            processors[0] = TrailingNewlineRemover.INSTANCE;
+        }
+        processors[builtIn - 1] = SpanFlagsNormalizer.INSTANCE;
+        for (int i = 0, size = postProcessors.size(); i < size; i++) {
+            processors[builtIn + i] = postProcessors.get(i);
+        }
+        return processors;
+    }
 
-            editable.removeSpan(underlineSpan);
-            editable.setSpan(new UnderlineSpan(), start, end,
-                    Spannable.SPAN_EXCLUSIVE_INCLUSIVE);
+    /**
+     * Runs postProcessors on text, in place if text is a SpannableStringBuilder
+     */
+    private static SpannableStringBuilder postProcess(Spanned text, HtmlPostProcessor[] postProcessors) {
+        final SpannableStringBuilder builder = text instanceof SpannableStringBuilder
+                ? (SpannableStringBuilder) text : new SpannableStringBuilder(text);
+        for (HtmlPostProcessor processor : postProcessors) {
+            processor.process(builder);
         }
+        return builder;
+    }
+
+    /**
+     * Displays parsed HTML, has to be called on the main thread
+     */
+    private void commitHtml(CharSequence spannedHtml) {
+        setText(spannedHtml);
+
+        // make links work
+        setMovementMethod(LocalLinkMovementMethod.getInstance());
     }
 
     /**
@@ -199,6 +434,18 @@ public class HtmlTextView extends JellyBeanSpanFixTextView {
         this.removeTrailingWhiteSpace = removeFromHtmlSpace;
     }
 
+    /**
+     * Run processor on every document parsed by the following calls to setHtml, after the built
+     * in passes which remove trailing newlines and let style spans grow while typing.
+     */
+    public void addPostProcessor(@NonNull HtmlPostProcessor processor) {
+        postProcessors.add(processor);
+    }
+
+    public void removePostProcessor(@NonNull HtmlPostProcessor processor) {
+        postProcessors.remove(processor);
+    }
+
     public void setClickableTableSpan(@Nullable ClickableTableSpan clickableTableSpan) {
         this.clickableTableSpan = clickableTableSpan;
     }
@@ -207,6 +454,38 @@ public class HtmlTextView extends JellyBeanSpanFixTextView {
         this.drawTableLinkSpan = drawTableLinkSpan;
     }
 
+    /**
+     * Handle the given tag with action in the following calls to setHtml. Tags the Android parser
+     * handles itself are never delegated, use {@link #getTagRewriter()} to rename them first.
+     *
+     * @param tag    name of the tag, case-insensitive
+     * @param action action called for opening and closing tags
+     */
+    public void registerTagAction(@NonNull String tag, @NonNull TagAction action) {
+        if (tagActions == null) {
+            tagActions = new TagActionRegistry();
+        }
+        tagActions.register(tag, action);
+    }
+
+    public void unregisterTagAction(@NonNull String tag) {
+        if (tagActions != null) {
+            tagActions.unregister(tag);
+            if (tagActions.isEmpty()) {
+                tagActions = null;
+            }
+        }
+    }
+
+    /**
+     * The rewriter used to rename tags before parsing. Add aliases to it to have other tags
+     * handled like the ones of {@link HtmlTagHandler}, e.g. putAlias("menu", HtmlTagHandler.UNORDERED_LIST).
+     */
+    @NonNull
+    public HtmlTagRewriter getTagRewriter() {
+        return tagRewriter;
+    }
+
     /**
      * Add ability to increase list item spacing. Useful for configuring spacing based on device
      * screen size. This applies to ordered and unordered lists.
@@ -216,4 +495,307 @@ public class HtmlTextView extends JellyBeanSpanFixTextView {
     public void setListIndentPx(float px) {
         this.indent = px;
     }
+
+    /**
+     * Html.fromHtml sometimes adds extra space at the bottom.
+     * This pass removes this space again.
+     * See https://github.com/SufficientlySecure/html-textview/issues/19
+     */
+    private static final class TrailingNewlineRemover implements HtmlPostProcessor {
+        static final TrailingNewlineRemover INSTANCE = new TrailingNewlineRemover();
+
+        @Override
+        public void process(@NonNull SpannableStringBuilder text) {
+            removeTrailingNewlines(text);
+        }
+
+        static void removeTrailingNewlines(Editable text) {
+            int end = text.length();
+            while (end > 0 && text.charAt(end - 1) == '\n') {
+                end--;
+            }
+            if (end < text.length()) {
+                text.delete(end, text.length());
+            }
+        }
+    }
+
+    /**
+     * Makes bold, italic and underline spans exclusive-inclusive, so they are extended while
+     * typing at their end. The existing spans are updated in place.
+     */
+    private static final class SpanFlagsNormalizer implements HtmlPostProcessor {
+        static final SpanFlagsNormalizer INSTANCE = new SpanFlagsNormalizer();
+
+        @Override
+        public void process(@NonNull SpannableStringBuilder text) {
+            normalize(text, text.getSpans(0, text.length(), StyleSpan.class));
+            normalize(text, text.getSpans(0, text.length(), UnderlineSpan.class));
+        }
+
+        private static void normalize(SpannableStringBuilder text, Object[] spans) {
+            for (Object span : spans) {
+                int flags = text.getSpanFlags(span);
+                if ((flags & Spanned.SPAN_POINT_MARK_MASK) != Spanned.SPAN_EXCLUSIVE_INCLUSIVE) {
+                    text.setSpan(span, text.getSpanStart(span), text.getSpanEnd(span),
+                            (flags & ~Spanned.SPAN_POINT_MARK_MASK) | Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Source of a document loaded from a raw resource, identifies the resource file chosen for a
+     * configuration
+     */
+    private static final class RawResourceFile {
+        private final int assetCookie;
+        private final String path;
+
+        RawResourceFile(int assetCookie, CharSequence path) {
+            this.assetCookie = assetCookie;
+            this.path = String.valueOf(path);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RawResourceFile)) return false;
+
+            RawResourceFile other = (RawResourceFile) o;
+            return assetCookie == other.assetCookie && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * assetCookie + path.hashCode();
+        }
+    }
+
+    /**
+     * Notified by setHtmlAsync on the main thread
+     */
+    public interface OnHtmlLoadedListener {
+
+        /**
+         * @param text the parsed HTML, now displayed by the view
+         */
+        void onHtmlLoaded(@NonNull CharSequence text);
+
+        void onHtmlFailed(@NonNull RuntimeException e);
+    }
+
+    /**
+     * Notified by setHtmlProgressive on the main thread
+     */
+    public interface OnHtmlProgressListener extends OnHtmlLoadedListener {
+
+        /**
+         * @param displayed  number of chunks displayed so far
+         * @param chunkCount number of chunks the document has been split into
+         */
+        void onChunkDisplayed(int displayed, int chunkCount);
+    }
+
+    /**
+     * Parses HTML in the background and commits it to the view on the main thread, unless it has
+     * been cancelled or replaced by a newer document in the meantime.
+     * <p/>
+     * Keeps a {@link WeakReference} to the view, so a long parse doesn't leak it.
+     */
+    private static class ParseTask implements Runnable {
+        private final WeakReference<HtmlTextView> viewReference;
+        private final HtmlTagHandler htmlTagHandler;
+        private final String html;
+        private final Html.ImageGetter imageGetter;
+        private final HtmlPostProcessor[] postProcessors;
+        private final HtmlParseCache parseCache;
+        private final HtmlParseCache.Key cacheKey;
+        private final OnHtmlLoadedListener listener;
+
+        volatile boolean cancelled;
+
+        ParseTask(HtmlTextView view, HtmlTagHandler htmlTagHandler, String html,
+                  Html.ImageGetter imageGetter, HtmlPostProcessor[] postProcessors,
+                  HtmlParseCache parseCache, HtmlParseCache.Key cacheKey,
+                  OnHtmlLoadedListener listener) {
+            this.viewReference = new WeakReference<>(view);
+            this.htmlTagHandler = htmlTagHandler;
+            this.html = html;
+            this.imageGetter = imageGetter;
+            this.postProcessors = postProcessors;
+            this.parseCache = parseCache;
+            this.cacheKey = cacheKey;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled || viewReference.get() == null) {
+                return;
+            }
+
+            CharSequence text = null;
+            RuntimeException error = null;
+            try {
+                text = loadHtml(htmlTagHandler, html, imageGetter, postProcessors, parseCache,
+                        cacheKey);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not parse HTML", e);
+                error = e;
+            }
+
+            final CharSequence result = text;
+            final RuntimeException failure = error;
+            MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(result, failure);
+                }
+            });
+        }
+
+        private void deliver(CharSequence result, RuntimeException failure) {
+            final HtmlTextView view = viewReference.get();
+            if (cancelled || view == null || view.pendingParse != this) {
+                return;
+            }
+            view.pendingParse = null;
+
+            if (failure != null) {
+                if (listener != null) {
+                    listener.onHtmlFailed(failure);
+                }
+                return;
+            }
+
+            view.commitHtml(result);
+            if (listener != null) {
+                listener.onHtmlLoaded(view.getText());
+            }
+        }
+    }
+
+    /**
+     * Parses all but the first chunk of a document in the background and appends them to the
+     * view in frame callbacks, unless it has been cancelled or replaced by a newer document in
+     * the meantime.
+     * <p/>
+     * Keeps a {@link WeakReference} to the view, so a long parse doesn't leak it.
+     */
+    private static class ChunkTask implements Runnable, Choreographer.FrameCallback {
+        static final int FIRST_CHUNK_LENGTH = 8 * 1024;
+        static final int CHUNK_LENGTH = 32 * 1024;
+        /**
+         * Time per frame spent appending chunks, the rest is left for layout and drawing
+         */
+        private static final long FRAME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(6);
+
+        private final WeakReference<HtmlTextView> viewReference;
+        private final List<String> chunks;
+        private final HtmlTagHandler[] htmlTagHandlers;
+        private final Html.ImageGetter imageGetter;
+        private final HtmlPostProcessor[] postProcessors;
+        private final boolean removeTrailingWhiteSpace;
+        private final OnHtmlProgressListener listener;
+
+        /**
+         * Parsed chunks not appended yet, filled in the background
+         */
+        private final ConcurrentLinkedQueue<Spanned> parsedChunks = new ConcurrentLinkedQueue<>();
+        private volatile boolean parsed;
+        private volatile RuntimeException failure;
+
+        // accessed on the main thread only
+        private int displayed = 1;
+        private boolean frameScheduled;
+
+        volatile boolean cancelled;
+
+        private final Runnable scheduleFrame = new Runnable() {
+            @Override
+            public void run() {
+                if (!cancelled && !frameScheduled) {
+                    frameScheduled = true;
+                    Choreographer.getInstance().postFrameCallback(ChunkTask.this);
+                }
+            }
+        };
+
+        ChunkTask(HtmlTextView view, List<String> chunks, HtmlTagHandler[] htmlTagHandlers,
+                  Html.ImageGetter imageGetter, HtmlPostProcessor[] postProcessors,
+                  boolean removeTrailingWhiteSpace, OnHtmlProgressListener listener) {
+            this.viewReference = new WeakReference<>(view);
+            this.chunks = chunks;
+            this.htmlTagHandlers = htmlTagHandlers;
+            this.imageGetter = imageGetter;
+            this.postProcessors = postProcessors;
+            this.removeTrailingWhiteSpace = removeTrailingWhiteSpace;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 1, size = chunks.size(); i < size; i++) {
+                    if (cancelled || viewReference.get() == null) {
+                        return;
+                    }
+
+                    parsedChunks.add(postProcess(htmlTagHandlers[i].parse(chunks.get(i), imageGetter),
+                            postProcessors));
+                    MAIN_HANDLER.post(scheduleFrame);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not parse HTML", e);
+                failure = e;
+            }
+            parsed = true;
+            MAIN_HANDLER.post(scheduleFrame);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frameScheduled = false;
+            final HtmlTextView view = viewReference.get();
+            if (cancelled || view == null || view.pendingChunks != this) {
+                return;
+            }
+
+            final long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+            final Editable editable = view.getText();
+            Spanned chunk;
+            while (System.nanoTime() < deadline && (chunk = parsedChunks.poll()) != null) {
+                editable.append(chunk);
+                displayed++;
+                if (listener != null) {
+                    listener.onChunkDisplayed(displayed, chunks.size());
+                }
+            }
+
+            if (!parsedChunks.isEmpty()) {
+                scheduleFrame.run();
+            } else if (parsed) {
+                finish(view, editable);
+            }
+        }
+
+        private void finish(HtmlTextView view, Editable editable) {
+            view.pendingChunks = null;
+
+            if (failure != null) {
+                if (listener != null) {
+                    listener.onHtmlFailed(failure);
+                }
+                return;
+            }
+
+            if (removeTrailingWhiteSpace) {
+                TrailingNewlineRemover.removeTrailingNewlines(editable);
+            }
+            if (listener != null) {
+                listener.onHtmlLoaded(editable);
+            }
+        }
+    }
 }
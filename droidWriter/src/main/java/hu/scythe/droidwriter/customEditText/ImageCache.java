@@ -0,0 +1,182 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Two level cache of the images of an {@link ImageLoader}: decoded bitmaps in memory, evicted by
+ * their size in bytes, and optionally the downloaded data on disk, see {@link DiskCache}. Both are
+ * least recently used caches keyed by the resolved URL of the image, the bitmaps also by the
+ * decoder they were decoded with. Data converted by an {@link ImageLoader.Transcoder} is cached on
+ * disk under the key of its bitmap.
+ * <p/>
+ * The sizes of recent bitmaps are kept after the bitmaps are evicted, so images can be laid out
+ * with their size before they are loaded again. The disk cache is opened on a loader thread when
+ * it is first needed.
+ */
+public class ImageCache {
+
+    // Number of image sizes remembered after their bitmaps are evicted
+    private static final int MAX_SIZES = 1024;
+
+    private final LruCache<String, Bitmap> bitmaps;
+    private final LruCache<String, int[]> sizes = new LruCache<>(MAX_SIZES);
+
+    @Nullable
+    private final File diskDirectory;
+    private final long maxDiskSize;
+
+    // Guarded by this
+    @Nullable
+    private DiskCache diskCache;
+    private boolean diskCacheFailed;
+    private int diskHitCount;
+    private int diskMissCount;
+
+    /**
+     * @param maxMemorySize maximum total size of the cached bitmaps in bytes
+     */
+    public ImageCache(int maxMemorySize) {
+        this(maxMemorySize, null, 0);
+    }
+
+    /**
+     * @param maxMemorySize maximum total size of the cached bitmaps in bytes
+     * @param diskDirectory directory of the disk cache, used by no other cache, e.g. a directory
+     *                      in {@link android.content.Context#getCacheDir()}
+     * @param maxDiskSize   maximum total size of the cached data on disk in bytes
+     */
+    public ImageCache(int maxMemorySize, @Nullable File diskDirectory, long maxDiskSize) {
+        bitmaps = new LruCache<String, Bitmap>(maxMemorySize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+        this.diskDirectory = diskDirectory;
+        this.maxDiskSize = maxDiskSize;
+    }
+
+    @Nullable
+    Bitmap getBitmap(@NonNull String key) {
+        return bitmaps.get(key);
+    }
+
+    void putBitmap(@NonNull String key, @NonNull Bitmap bitmap) {
+        bitmaps.put(key, bitmap);
+        sizes.put(key, new int[]{bitmap.getWidth(), bitmap.getHeight()});
+    }
+
+    /**
+     * @return width and height of the bitmap cached for key, also after it was evicted, null if
+     * it wasn't cached lately
+     */
+    @Nullable
+    int[] getSize(@NonNull String key) {
+        return sizes.get(key);
+    }
+
+    /**
+     * @param key the resolved URL for downloaded data, the key of the bitmap for converted data
+     * @return the data cached on disk for key, null if there is none or there is no disk cache
+     */
+    @Nullable
+    byte[] getData(@NonNull String key) {
+        DiskCache cache = openDiskCache();
+        if (cache == null) {
+            return null;
+        }
+        byte[] data = cache.get(key);
+        synchronized (this) {
+            if (data != null) {
+                diskHitCount++;
+            } else {
+                diskMissCount++;
+            }
+        }
+        return data;
+    }
+
+    void putData(@NonNull String key, @NonNull byte[] data) {
+        DiskCache cache = openDiskCache();
+        if (cache != null) {
+            cache.put(key, data);
+        }
+    }
+
+    @Nullable
+    private synchronized DiskCache openDiskCache() {
+        if (diskCache == null && diskDirectory != null && !diskCacheFailed) {
+            try {
+                diskCache = new DiskCache(diskDirectory, maxDiskSize);
+            } catch (IOException e) {
+                Log.w(HtmlTextView.TAG, "Could not open image cache " + diskDirectory, e);
+                diskCacheFailed = true;
+            }
+        }
+        return diskCache;
+    }
+
+    /**
+     * Removes all bitmaps from memory, e.g. in {@link android.content.ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void evictMemory() {
+        bitmaps.evictAll();
+    }
+
+    /**
+     * Removes all bitmaps from memory and all data from disk. Call it on a background thread if
+     * there is a disk cache.
+     */
+    public void clear() {
+        bitmaps.evictAll();
+        sizes.evictAll();
+        DiskCache cache = openDiskCache();
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return total size of the bitmaps in memory, in bytes
+     */
+    public int getMemorySize() {
+        return bitmaps.size();
+    }
+
+    public int getMemoryHitCount() {
+        return bitmaps.hitCount();
+    }
+
+    public int getMemoryMissCount() {
+        return bitmaps.missCount();
+    }
+
+    public synchronized int getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    public synchronized int getDiskMissCount() {
+        return diskMissCount;
+    }
+}
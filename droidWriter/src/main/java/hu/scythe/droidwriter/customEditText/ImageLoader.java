@@ -0,0 +1,591 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads images over the network for {@link HtmlHttpImageGetter}s, on an executor of its own
+ * instead of AsyncTask's serial one. It can be shared by several views.
+ * <p/>
+ * Requests for the same URL with the same {@link Decoder#getKey() decoder key} share one load,
+ * its result is handed to every request waiting for it. At most {@code maxRequests} loads run at
+ * a time and at most {@code maxRequestsPerHost} per host, the others wait in the order of their
+ * priority and then of their arrival. A load is cancelled when all its requests are.
+ * <p/>
+ * With an {@link ImageCache} decoded images are taken from memory without a load, and loads read
+ * the data from disk before downloading it, or the converted data of a {@link Transcoder}.
+ */
+public class ImageLoader {
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    private static final int DEFAULT_MAX_REQUESTS = 4;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 2;
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    @Nullable
+    private static ImageLoader defaultLoader;
+
+    @NonNull
+    private final Executor executor;
+    @NonNull
+    private final Executor callbackExecutor;
+    private final int maxRequests;
+    private final int maxRequestsPerHost;
+    @Nullable
+    private final ImageCache cache;
+
+    // Guarded by this
+    private final Map<String, Load> loads = new HashMap<>();
+    private final PriorityQueue<Load> waiting = new PriorityQueue<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int running;
+    private long sequence;
+
+    /**
+     * Decodes the downloaded data of an image, on a thread of the executor
+     */
+    public interface Decoder {
+        /**
+         * @return identifies what the decoder makes of the data, requests for the same URL only
+         * share a load if their decoders have the same key
+         */
+        @NonNull
+        String getKey();
+
+        @Nullable
+        Bitmap decode(@NonNull byte[] data) throws IOException;
+    }
+
+    /**
+     * Decoder converting the downloaded data before decoding it, e.g. re-encoding it smaller. With
+     * a disk cache the converted data is cached under the key of the decoder instead of the
+     * downloaded data, so the conversion runs once per URL and later loads only decode.
+     */
+    public interface Transcoder extends Decoder {
+        /**
+         * @return the data to decode, null if the data can't be converted
+         */
+        @Nullable
+        byte[] transcode(@NonNull byte[] data) throws IOException;
+    }
+
+    /**
+     * Notified on the main thread. A load the executor rejects fails.
+     */
+    public interface Callback {
+        void onImageLoaded(@NonNull String url, @NonNull Bitmap bitmap);
+
+        void onImageFailed(@NonNull String url);
+    }
+
+    /**
+     * A request waiting for an image
+     */
+    public final class Request {
+        final Callback callback;
+
+        // Guarded by the loader, null if the image was in the memory cache
+        @Nullable
+        Load load;
+        volatile boolean cancelled;
+
+        Request(Callback callback) {
+            this.callback = callback;
+        }
+
+        ImageLoader getLoader() {
+            return ImageLoader.this;
+        }
+
+        /**
+         * Stops waiting for the image, its callback isn't notified. The load is cancelled if no
+         * other request waits for it: a waiting load never starts, a running one is disconnected
+         * and its image isn't decoded.
+         */
+        public void cancel() {
+            cancelAll(Collections.singletonList(this));
+        }
+    }
+
+    /**
+     * @param executor           runs the loads, it should have at least maxRequests threads
+     * @param maxRequests        maximum number of loads running at a time
+     * @param maxRequestsPerHost maximum number of loads from one host running at a time
+     */
+    public ImageLoader(@NonNull Executor executor, int maxRequests, int maxRequestsPerHost) {
+        this(executor, maxRequests, maxRequestsPerHost, null);
+    }
+
+    /**
+     * @param executor           runs the loads, it should have at least maxRequests threads
+     * @param maxRequests        maximum number of loads running at a time
+     * @param maxRequestsPerHost maximum number of loads from one host running at a time
+     * @param cache              cache of the images, can be shared with other loaders
+     */
+    public ImageLoader(@NonNull Executor executor, int maxRequests, int maxRequestsPerHost,
+                       @Nullable ImageCache cache) {
+        this(executor, maxRequests, maxRequestsPerHost, cache, MainThreadExecutor.INSTANCE);
+    }
+
+    /**
+     * @param callbackExecutor runs the callbacks instead of the main thread
+     */
+    ImageLoader(@NonNull Executor executor, int maxRequests, int maxRequestsPerHost,
+                @Nullable ImageCache cache, @NonNull Executor callbackExecutor) {
+        if (maxRequests < 1 || maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequests and maxRequestsPerHost must be at least 1");
+        }
+        this.executor = executor;
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.cache = cache;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * @return the loader used by {@link HtmlHttpImageGetter}s by default, it loads 4 images at a
+     * time, 2 from the same host, on background threads of its own, and keeps the decoded
+     * images in a memory cache of an eighth of the heap
+     */
+    @NonNull
+    public static synchronized ImageLoader getDefault() {
+        if (defaultLoader == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ImageLoader #" + count.incrementAndGet());
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            int cacheSize = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+            defaultLoader = new ImageLoader(executor, DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST,
+                    new ImageCache(cacheSize));
+        }
+        return defaultLoader;
+    }
+
+    /**
+     * Loads the image at url, or joins the load of the same image already waiting or running.
+     * Joining a waiting load with a higher priority raises its priority.
+     *
+     * @param priority {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL}, {@link #PRIORITY_HIGH} or
+     *                 any other value, higher ones are loaded first
+     */
+    @NonNull
+    public Request load(@NonNull URL url, @NonNull Decoder decoder, int priority, @NonNull final Callback callback) {
+        Request request = new Request(callback);
+        String key = key(url, decoder);
+
+        final Bitmap cached = cache != null ? cache.getBitmap(key) : null;
+        if (cached != null) {
+            final Request cachedRequest = request;
+            final String source = url.toString();
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!cachedRequest.cancelled) {
+                        callback.onImageLoaded(source, cached);
+                    }
+                }
+            });
+            return request;
+        }
+
+        synchronized (this) {
+            Load load = loads.get(key);
+            if (load == null) {
+                load = new Load(key, url, decoder, priority, sequence++);
+                loads.put(key, load);
+                waiting.add(load);
+            } else if (priority > load.priority && waiting.remove(load)) {
+                load.priority = priority;
+                waiting.add(load);
+            }
+            load.requests.add(request);
+            request.load = load;
+        }
+        dispatch();
+        return request;
+    }
+
+    /**
+     * Cancels requests, see {@link Request#cancel()}. Running loads are only disconnected once all
+     * requests are cancelled, so none of their waiting loads starts in the slot of another.
+     */
+    static void cancelAll(@NonNull Collection<Request> requests) {
+        List<URLConnection> connections = new ArrayList<>();
+        for (Request request : requests) {
+            URLConnection connection = request.getLoader().cancel(request);
+            if (connection != null) {
+                connections.add(connection);
+            }
+        }
+        // aborts blocking reads on the loader threads
+        for (URLConnection connection : connections) {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+    }
+
+    /**
+     * @return the connection of the load to disconnect if the request was the last one waiting
+     * for a running load
+     */
+    @Nullable
+    private synchronized URLConnection cancel(Request request) {
+        if (request.cancelled) {
+            return null;
+        }
+        request.cancelled = true;
+        Load load = request.load;
+        if (load == null || !load.requests.remove(request) || !load.requests.isEmpty()) {
+            return null;
+        }
+
+        // a new request for the image starts a new load
+        if (loads.get(load.key) == load) {
+            loads.remove(load.key);
+        }
+        if (waiting.remove(load)) {
+            return null;
+        }
+        load.cancelled = true;
+        return load.connection;
+    }
+
+    /**
+     * @return the image decoded by decoder from url if it is in the memory cache
+     */
+    @Nullable
+    public Bitmap getCached(@NonNull URL url, @NonNull Decoder decoder) {
+        return cache != null ? cache.getBitmap(key(url, decoder)) : null;
+    }
+
+    /**
+     * @return width and height of the image decoded by decoder from url if it was cached lately
+     */
+    @Nullable
+    int[] getCachedSize(@NonNull URL url, @NonNull Decoder decoder) {
+        return cache != null ? cache.getSize(key(url, decoder)) : null;
+    }
+
+    @Nullable
+    public ImageCache getCache() {
+        return cache;
+    }
+
+    private static String key(URL url, Decoder decoder) {
+        return url.toString() + '\n' + decoder.getKey();
+    }
+
+    /**
+     * Starts waiting loads while the limits allow it. Loads the executor rejects fail, and free
+     * their slots for the next waiting loads.
+     */
+    private void dispatch() {
+        boolean rejected;
+        do {
+            List<Load> started = new ArrayList<>();
+            synchronized (this) {
+                if (running >= maxRequests || waiting.isEmpty()) {
+                    return;
+                }
+                // the first waiting load of every host below its limit, in priority order
+                List<Load> skipped = new ArrayList<>();
+                Load load;
+                while (running < maxRequests && (load = waiting.poll()) != null) {
+                    Integer hostCount = runningPerHost.get(load.host);
+                    int count = hostCount != null ? hostCount : 0;
+                    if (count >= maxRequestsPerHost) {
+                        skipped.add(load);
+                        continue;
+                    }
+                    runningPerHost.put(load.host, count + 1);
+                    running++;
+                    started.add(load);
+                }
+                waiting.addAll(skipped);
+            }
+
+            rejected = false;
+            for (Load load : started) {
+                try {
+                    executor.execute(load);
+                } catch (RejectedExecutionException e) {
+                    // e.g. the executor was shut down, don't leave the requests waiting forever
+                    load.complete(null);
+                    rejected = true;
+                }
+            }
+        } while (rejected);
+    }
+
+    private synchronized void finish(Load load) {
+        if (loads.get(load.key) == load) {
+            loads.remove(load.key);
+        }
+        running--;
+        int count = runningPerHost.get(load.host) - 1;
+        if (count > 0) {
+            runningPerHost.put(load.host, count);
+        } else {
+            runningPerHost.remove(load.host);
+        }
+    }
+
+    /**
+     * Downloads the whole response body of connection
+     */
+    @NonNull
+    static byte[] download(@NonNull URLConnection connection) throws IOException {
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        try {
+            if (connection instanceof HttpURLConnection) {
+                int status = ((HttpURLConnection) connection).getResponseCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP " + status + " for " + connection.getURL());
+                }
+            }
+            int length = connection.getContentLength();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 8192);
+            InputStream in = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            return out.toByteArray();
+        } finally {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+    }
+
+    /**
+     * Load of one image, shared by the requests for it
+     */
+    private final class Load implements Runnable, Comparable<Load> {
+        final String key;
+        final URL url;
+        final String host;
+        final Decoder decoder;
+        final long sequence;
+        int priority;
+
+        // Guarded by the loader
+        final List<Request> requests = new ArrayList<>();
+        @Nullable
+        URLConnection connection;
+        volatile boolean cancelled;
+
+        Load(String key, URL url, Decoder decoder, int priority, long sequence) {
+            this.key = key;
+            this.url = url;
+            this.host = url.getHost();
+            this.decoder = decoder;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(@NonNull Load other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence > other.sequence ? 1 : 0);
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            try {
+                bitmap = load();
+            } catch (IOException | RuntimeException e) {
+                if (!cancelled) {
+                    Log.w(HtmlTextView.TAG, "Could not load image " + url, e);
+                }
+            }
+
+            complete(bitmap);
+            dispatch();
+        }
+
+        /**
+         * Frees the slot of the load and notifies its requests
+         *
+         * @param bitmap the image, null if the load failed
+         */
+        void complete(@Nullable Bitmap bitmap) {
+            // no request can join from now on
+            final List<Request> waitingRequests;
+            synchronized (ImageLoader.this) {
+                finish(this);
+                waitingRequests = new ArrayList<>(requests);
+            }
+            if (waitingRequests.isEmpty()) {
+                return;
+            }
+
+            final Bitmap result = bitmap;
+            final String source = url.toString();
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Request request : waitingRequests) {
+                        if (request.cancelled) {
+                            continue;
+                        }
+                        if (result != null) {
+                            request.callback.onImageLoaded(source, result);
+                        } else {
+                            request.callback.onImageFailed(source);
+                        }
+                    }
+                }
+            });
+        }
+
+        private Bitmap load() throws IOException {
+            checkCancelled();
+            byte[] data;
+            if (decoder instanceof Transcoder) {
+                data = cache != null ? cache.getData(key) : null;
+                if (data == null) {
+                    byte[] downloaded = fetch(false);
+                    checkCancelled();
+                    data = ((Transcoder) decoder).transcode(downloaded);
+                    if (data == null) {
+                        return null;
+                    }
+                    if (cache != null) {
+                        cache.putData(key, data);
+                    }
+                }
+            } else {
+                data = fetch(true);
+            }
+
+            checkCancelled();
+            Bitmap bitmap = decoder.decode(data);
+            if (bitmap != null && cache != null) {
+                cache.putBitmap(key, bitmap);
+            }
+            return bitmap;
+        }
+
+        /**
+         * @param store whether to cache the downloaded data on disk
+         */
+        private byte[] fetch(boolean store) throws IOException {
+            String source = url.toString();
+            byte[] data = cache != null ? cache.getData(source) : null;
+            if (data == null) {
+                data = download();
+                if (store && cache != null) {
+                    cache.putData(source, data);
+                }
+            }
+            return data;
+        }
+
+        /**
+         * Downloads the image with a connection {@link #cancel(Request)} can disconnect
+         */
+        private byte[] download() throws IOException {
+            URLConnection urlConnection = url.openConnection();
+            synchronized (ImageLoader.this) {
+                checkCancelled();
+                connection = urlConnection;
+            }
+            try {
+                return ImageLoader.download(urlConnection);
+            } finally {
+                synchronized (ImageLoader.this) {
+                    connection = null;
+                }
+            }
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (cancelled) {
+                throw new InterruptedIOException("Cancelled loading " + url);
+            }
+        }
+    }
+
+    /**
+     * Runs the callbacks on the main thread, its handler is only created when a loader uses it
+     */
+    private static final class MainThreadExecutor implements Executor {
+        static final MainThreadExecutor INSTANCE = new MainThreadExecutor();
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            handler.post(command);
+        }
+    }
+}
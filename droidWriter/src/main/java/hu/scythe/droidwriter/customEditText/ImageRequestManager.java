@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.View;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import hu.scythe.droidwriter.R;
+
+/**
+ * Image requests of the {@link HtmlHttpImageGetter}s of one container view. They are cancelled
+ * when the view gets a new document, see {@link #cancelAll(View)}, and when it is detached from
+ * its window, e.g. scrolled out of a list or in a finishing activity. Requests cancelled by a
+ * detach are made again when the view is attached again, unless it got a new document meanwhile.
+ * Requests of a view which isn't attached yet wait for it to be attached in the same way.
+ * <p/>
+ * Requests are made by the image getters, also on the thread parsing the HTML, the other methods
+ * have to be called on the main thread.
+ */
+public class ImageRequestManager implements View.OnAttachStateChangeListener {
+
+    // Guarded by this, in the order they were made
+    private final LinkedHashSet<Entry> active = new LinkedHashSet<>();
+    private final List<Entry> suspended = new ArrayList<>();
+    private boolean detached;
+
+    /**
+     * @param detached whether the container isn't attached yet, its requests wait for the attach
+     */
+    ImageRequestManager(boolean detached) {
+        this.detached = detached;
+    }
+
+    /**
+     * @return the manager of container, created the first time
+     */
+    @NonNull
+    public static ImageRequestManager get(@NonNull View container) {
+        ImageRequestManager manager = (ImageRequestManager) container.getTag(R.id.image_request_manager);
+        if (manager == null) {
+            // a view recycled before it is ever attached is never detached either
+            manager = new ImageRequestManager(!container.isAttachedToWindow());
+            container.setTag(R.id.image_request_manager, manager);
+            container.addOnAttachStateChangeListener(manager);
+        }
+        return manager;
+    }
+
+    /**
+     * Cancels the image requests of container if it has a manager, e.g. because its document is
+     * replaced
+     */
+    public static void cancelAll(@NonNull View container) {
+        ImageRequestManager manager = (ImageRequestManager) container.getTag(R.id.image_request_manager);
+        if (manager != null) {
+            manager.cancelAll();
+        }
+    }
+
+    /**
+     * Loads an image with loader, or later if the container is detached
+     */
+    synchronized void load(@NonNull ImageLoader loader, @NonNull URL url, @NonNull ImageLoader.Decoder decoder,
+                           int priority, @NonNull ImageLoader.Callback callback) {
+        Entry entry = new Entry(loader, url, decoder, priority, callback);
+        if (detached) {
+            suspended.add(entry);
+        } else {
+            active.add(entry);
+            entry.start();
+        }
+    }
+
+    /**
+     * Cancels all requests, including the ones waiting for the container to be attached
+     */
+    public synchronized void cancelAll() {
+        cancelActive();
+        active.clear();
+        suspended.clear();
+    }
+
+    /**
+     * @return number of requests waiting for their image
+     */
+    public synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    @Override
+    public synchronized void onViewAttachedToWindow(View v) {
+        detached = false;
+        for (Entry entry : suspended) {
+            active.add(entry);
+            entry.start();
+        }
+        suspended.clear();
+    }
+
+    @Override
+    public synchronized void onViewDetachedFromWindow(View v) {
+        detached = true;
+        cancelActive();
+        suspended.addAll(active);
+        active.clear();
+    }
+
+    private void cancelActive() {
+        List<ImageLoader.Request> requests = new ArrayList<>(active.size());
+        for (Entry entry : active) {
+            if (entry.request != null) {
+                requests.add(entry.request);
+                entry.request = null;
+            }
+        }
+        ImageLoader.cancelAll(requests);
+    }
+
+    /**
+     * A request of the container, which can be made again after it was cancelled
+     */
+    private final class Entry implements ImageLoader.Callback {
+        final ImageLoader loader;
+        final URL url;
+        final ImageLoader.Decoder decoder;
+        final int priority;
+        final ImageLoader.Callback callback;
+
+        // Guarded by the manager
+        @Nullable
+        ImageLoader.Request request;
+
+        Entry(ImageLoader loader, URL url, ImageLoader.Decoder decoder, int priority,
+              ImageLoader.Callback callback) {
+            this.loader = loader;
+            this.url = url;
+            this.decoder = decoder;
+            this.priority = priority;
+            this.callback = callback;
+        }
+
+        void start() {
+            request = loader.load(url, decoder, priority, this);
+        }
+
+        @Override
+        public void onImageLoaded(@NonNull String source, @NonNull Bitmap bitmap) {
+            if (finish()) {
+                callback.onImageLoaded(source, bitmap);
+            }
+        }
+
+        @Override
+        public void onImageFailed(@NonNull String source) {
+            if (finish()) {
+                callback.onImageFailed(source);
+            }
+        }
+
+        private boolean finish() {
+            synchronized (ImageRequestManager.this) {
+                if (!active.remove(this)) {
+                    return false;
+                }
+                request = null;
+                return true;
+            }
+        }
+    }
+}
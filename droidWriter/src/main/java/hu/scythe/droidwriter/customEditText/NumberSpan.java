@@ -46,11 +46,32 @@ public class NumberSpan implements LeadingMarginSpan, ParcelableSpan {
         mNumber = Integer.toString(number).concat(".");
     }
 
+    public NumberSpan(int gapWidth, String number) {
+        mGapWidth = gapWidth;
+        mNumber = number;
+    }
+
+    public NumberSpan(NumberSpan other) {
+        mGapWidth = other.mGapWidth;
+        mNumber = other.mNumber;
+    }
+
     public NumberSpan(Parcel src) {
         mGapWidth = src.readInt();
         mNumber = src.readString();
     }
 
+    public int getGapWidth() {
+        return mGapWidth;
+    }
+
+    /**
+     * @return the text drawn in the margin, e.g. "1."
+     */
+    public String getNumber() {
+        return mNumber;
+    }
+
     public int getSpanTypeId() {
         return getSpanTypeIdInternal();
     }
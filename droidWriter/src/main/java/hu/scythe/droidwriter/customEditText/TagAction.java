@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.support.annotation.NonNull;
+import android.text.Editable;
+
+import org.xml.sax.XMLReader;
+
+/**
+ * Handles one kind of tag for {@link HtmlTagHandler}. Actions are registered by tag name in a
+ * {@link TagActionRegistry}, e.g. through {@link HtmlTextView#registerTagAction(String, TagAction)},
+ * so custom tags can be supported without subclassing the handler.
+ * <p/>
+ * Actions are shared between documents, so state belonging to a single document should be kept by
+ * the handler, e.g. by using {@link HtmlTagHandler#start(Editable, Class)} and
+ * {@link HtmlTagHandler#end(Editable, Class, boolean, Object...)} to remember the opening tag and
+ * span the enclosed text when the tag is closed.
+ */
+public interface TagAction {
+
+    /**
+     * @param handler   the handler the tag was delegated to
+     * @param opening   true for an opening tag, false for a closing tag
+     * @param tag       name of the tag as reported by the parser
+     * @param output    text parsed so far
+     * @param xmlReader reader of the parser
+     */
+    void handleTag(@NonNull HtmlTagHandler handler, boolean opening, @NonNull String tag,
+                   @NonNull Editable output, @NonNull XMLReader xmlReader);
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Maps tag names to {@link TagAction}s. Names are folded to lower case when an action is
+ * registered, so a lookup costs a single hash map access for lower case tags (which is what the
+ * parser reports for most tags) and at most two otherwise.
+ */
+public class TagActionRegistry {
+
+    private final HashMap<String, TagAction> actions = new HashMap<>();
+
+    @Nullable
+    private String signature;
+
+    public void register(@NonNull String tag, @NonNull TagAction action) {
+        actions.put(tag.toLowerCase(Locale.US), action);
+        signature = null;
+    }
+
+    public void unregister(@NonNull String tag) {
+        actions.remove(tag.toLowerCase(Locale.US));
+        signature = null;
+    }
+
+    /**
+     * @return a string which is equal for two registries if they map the same tags to actions of
+     * the same classes
+     */
+    @NonNull
+    public String getSignature() {
+        if (signature == null) {
+            ArrayList<String> tags = new ArrayList<>(actions.keySet());
+            Collections.sort(tags);
+            StringBuilder builder = new StringBuilder();
+            for (String tag : tags) {
+                builder.append(tag).append('=').append(actions.get(tag).getClass().getName()).append(';');
+            }
+            signature = builder.toString();
+        }
+        return signature;
+    }
+
+    public boolean isEmpty() {
+        return actions.isEmpty();
+    }
+
+    @Nullable
+    public TagAction get(@NonNull String tag) {
+        TagAction action = actions.get(tag);
+        if (action == null && hasUpperCase(tag)) {
+            action = actions.get(tag.toLowerCase(Locale.US));
+        }
+        return action;
+    }
+
+    private static boolean hasUpperCase(String tag) {
+        for (int i = 0, length = tag.length(); i < length; i++) {
+            char c = tag.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,134 @@
+package hu.scythe.droidwriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RangeSetTest {
+
+    private RangeSet ranges;
+
+    @Before
+    public void setUp() {
+        ranges = new RangeSet();
+    }
+
+    @Test
+    public void keepsScatteredRangesApart() {
+        ranges.add(50, 60);
+        ranges.add(10, 20);
+        ranges.add(1000, 1001);
+
+        assertArrayEquals(new int[]{10, 20, 50, 60, 1000, 1001}, toArray(ranges));
+    }
+
+    @Test
+    public void mergesOverlappingAndTouchingRanges() {
+        ranges.add(10, 20);
+        ranges.add(30, 40);
+        ranges.add(50, 60);
+        ranges.add(20, 25);
+        assertArrayEquals(new int[]{10, 25, 30, 40, 50, 60}, toArray(ranges));
+
+        ranges.add(15, 55);
+        assertArrayEquals(new int[]{10, 60}, toArray(ranges));
+
+        ranges.add(3, 3);
+        assertEquals(1, ranges.size());
+    }
+
+    @Test
+    public void followsReplacedText() {
+        ranges.add(10, 20);
+        ranges.add(30, 40);
+
+        // inserted before, into and after the first range
+        ranges.replace(0, 0, 5);
+        ranges.replace(20, 0, 2);
+        assertArrayEquals(new int[]{15, 27, 37, 47}, toArray(ranges));
+
+        // the text between the ranges is deleted, they touch
+        ranges.replace(27, 10, 0);
+        assertArrayEquals(new int[]{15, 37}, toArray(ranges));
+
+        // a range inside of replaced text is removed
+        ranges.add(50, 55);
+        ranges.replace(45, 20, 1);
+        assertArrayEquals(new int[]{15, 37}, toArray(ranges));
+
+        ranges.clear();
+        assertTrue(ranges.isEmpty());
+    }
+
+    @Test
+    public void matchesModelAfterRandomChanges() {
+        Random random = new Random(16);
+        ArrayList<Boolean> model = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            model.add(false);
+        }
+
+        for (int step = 0; step < 5000; step++) {
+            int length = model.size();
+            int start = random.nextInt(length + 1);
+            int end = start + random.nextInt(Math.min(length - start, 30) + 1);
+            if (random.nextInt(3) == 0) {
+                int after = random.nextInt(10);
+                // text replacing the end of a range or inserted into it is part of the range
+                boolean covered = end > start ? model.get(end - 1) : start < length && model.get(start);
+                ranges.replace(start, end - start, after);
+                model.subList(start, end).clear();
+                for (int i = 0; i < after; i++) {
+                    model.add(start, covered);
+                }
+            } else {
+                ranges.add(start, end);
+                for (int i = start; i < end; i++) {
+                    model.set(i, true);
+                }
+            }
+            assertArrayEquals(toArray(model), toArray(ranges));
+            if (random.nextInt(100) == 0) {
+                ranges.clear();
+                for (int i = 0; i < model.size(); i++) {
+                    model.set(i, false);
+                }
+            }
+        }
+    }
+
+    private static int[] toArray(RangeSet ranges) {
+        int[] bounds = new int[2 * ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            bounds[2 * i] = ranges.getStart(i);
+            bounds[2 * i + 1] = ranges.getEnd(i);
+        }
+        return bounds;
+    }
+
+    /**
+     * @return the runs of marked positions of model as start, end pairs
+     */
+    private static int[] toArray(ArrayList<Boolean> model) {
+        ArrayList<Integer> bounds = new ArrayList<>();
+        for (int i = 0; i < model.size(); i++) {
+            if (model.get(i) && (i == 0 || !model.get(i - 1))) {
+                bounds.add(i);
+            }
+            if (model.get(i) && (i == model.size() - 1 || !model.get(i + 1))) {
+                bounds.add(i + 1);
+            }
+        }
+        int[] array = new int[bounds.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = bounds.get(i);
+        }
+        return array;
+    }
+}
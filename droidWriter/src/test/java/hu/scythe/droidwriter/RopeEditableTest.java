@@ -0,0 +1,359 @@
+package hu.scythe.droidwriter;
+
+import android.text.Editable;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RopeEditableTest {
+
+    private static final int[] FLAGS = {
+            Spanned.SPAN_INCLUSIVE_EXCLUSIVE, Spanned.SPAN_INCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, Spanned.SPAN_EXCLUSIVE_INCLUSIVE};
+
+    @Test
+    public void storesTextInChunks() {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 3 * RopeEditable.MAX_CHUNK_LENGTH; i++) {
+            expected.append((char) ('a' + i % 26));
+        }
+        RopeEditable text = new RopeEditable(expected);
+
+        assertEquals(expected.length(), text.length());
+        assertEquals(expected.toString(), text.toString());
+        assertEquals(expected.charAt(5000), text.charAt(5000));
+
+        char[] chars = new char[100];
+        text.getChars(2000, 2100, chars, 0);
+        assertEquals(expected.substring(2000, 2100), new String(chars));
+    }
+
+    @Test
+    public void movesSpansLikeSpannableStringBuilder() {
+        RopeEditable text = new RopeEditable("abcdef");
+        Object inclusive = new Object();
+        Object exclusive = new Object();
+        text.setSpan(inclusive, 2, 4, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        text.setSpan(exclusive, 2, 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        text.insert(2, "xx");
+        text.insert(6, "yy");
+        assertEquals(2, text.getSpanStart(inclusive));
+        assertEquals(8, text.getSpanEnd(inclusive));
+        assertEquals(4, text.getSpanStart(exclusive));
+        assertEquals(6, text.getSpanEnd(exclusive));
+
+        // an exclusive span whose text is deleted is removed
+        text.delete(3, 7);
+        assertEquals(-1, text.getSpanStart(exclusive));
+        assertEquals(2, text.getSpanStart(inclusive));
+        assertEquals(4, text.getSpanEnd(inclusive));
+    }
+
+    @Test
+    public void sortsSpansByPriorityAndInsertion() {
+        RopeEditable text = new RopeEditable("abcdef");
+        Object first = new Object();
+        Object second = new Object();
+        Object important = new Object();
+        text.setSpan(first, 0, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(second, 1, 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(important, 4, 6, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+                | (10 << Spanned.SPAN_PRIORITY_SHIFT));
+
+        assertArrayEquals(new Object[]{important, first, second}, text.getSpans(0, 6, Object.class));
+        // spans only touching a non-empty range are not in it
+        assertArrayEquals(new Object[]{first}, text.getSpans(2, 4, Object.class));
+        assertEquals(1, text.nextSpanTransition(0, 6, Object.class));
+        assertEquals(4, text.nextSpanTransition(3, 6, Object.class));
+    }
+
+    @Test
+    public void copiesSpansOfInsertedText() {
+        RopeEditable source = new RopeEditable("xyz");
+        Object span = new Object();
+        source.setSpan(span, 1, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        RopeEditable text = new RopeEditable("abc");
+        text.replace(1, 2, source, 0, 2);
+
+        assertEquals("axyc", text.toString());
+        assertEquals(2, text.getSpanStart(span));
+        assertEquals(3, text.getSpanEnd(span));
+    }
+
+    @Test
+    public void notifiesWatchers() {
+        RopeEditable text = new RopeEditable("abcdef");
+        final List<String> calls = new ArrayList<>();
+        Object span = new Object();
+        text.setSpan(span, 1, 2, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        text.setSpan(new Watcher(calls), 0, 6, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        calls.clear();
+
+        text.replace(1, 2, "xyz");
+        assertEquals(Arrays.asList("before 1 1 3", "on 1 1 3", "after", "changed 1 2 1 4"), calls);
+
+        calls.clear();
+        text.removeSpan(span);
+        assertEquals(Arrays.asList("removed 1 4"), calls);
+    }
+
+    @Test
+    public void matchesModelAfterRandomChanges() {
+        for (long seed = 0; seed < 20; seed++) {
+            checkRandomChanges(new Random(seed));
+        }
+    }
+
+    private static void checkRandomChanges(Random random) {
+        RopeEditable text = new RopeEditable();
+        Model model = new Model();
+
+        for (int step = 0; step < 300; step++) {
+            int length = model.text.length();
+            int start = random.nextInt(length + 1);
+            int end = start + random.nextInt(Math.min(length - start, 3000) + 1);
+            switch (random.nextInt(5)) {
+                case 0:
+                case 1: {
+                    // long insertions cross and create chunk boundaries
+                    String inserted = randomText(random, random.nextInt(4) == 0 ? 3000 : 20);
+                    text.replace(start, end, inserted);
+                    model.replace(start, end, inserted);
+                    break;
+                }
+                case 2: {
+                    text.delete(start, end);
+                    model.replace(start, end, "");
+                    break;
+                }
+                case 3: {
+                    Object span = model.spans.isEmpty() || random.nextBoolean()
+                            ? new Object() : model.spans.get(random.nextInt(model.spans.size())).span;
+                    int flags = FLAGS[random.nextInt(FLAGS.length)]
+                            | (random.nextInt(3) << Spanned.SPAN_PRIORITY_SHIFT);
+                    text.setSpan(span, start, end, flags);
+                    model.setSpan(span, start, end, flags);
+                    break;
+                }
+                default: {
+                    if (!model.spans.isEmpty()) {
+                        Object span = model.spans.get(random.nextInt(model.spans.size())).span;
+                        text.removeSpan(span);
+                        model.removeSpan(span);
+                    }
+                    break;
+                }
+            }
+            assertMatches(model, text, random);
+        }
+    }
+
+    private static void assertMatches(Model model, RopeEditable text, Random random) {
+        assertEquals(model.text.length(), text.length());
+        assertEquals(model.text.toString(), text.toString());
+        for (ModelSpan span : model.spans) {
+            assertEquals(span.start, text.getSpanStart(span.span));
+            assertEquals(span.end, text.getSpanEnd(span.span));
+            assertEquals(span.flags, text.getSpanFlags(span.span));
+        }
+
+        for (int i = 0; i < 5; i++) {
+            int length = model.text.length();
+            int start = random.nextInt(length + 1);
+            int end = start + random.nextInt(length - start + 1);
+            assertArrayEquals(model.getSpans(start, end), text.getSpans(start, end, Object.class));
+            assertEquals(model.nextSpanTransition(start, end), text.nextSpanTransition(start, end, Object.class));
+            if (start < length) {
+                assertEquals(model.text.charAt(start), text.charAt(start));
+            }
+        }
+    }
+
+    private static String randomText(Random random, int maxLength) {
+        int length = 1 + random.nextInt(maxLength);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = random.nextInt(10) == 0 ? '\n' : (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Text and spans following the rules of SpannableStringBuilder, without chunks
+     */
+    private static final class Model {
+        final StringBuilder text = new StringBuilder();
+        final ArrayList<ModelSpan> spans = new ArrayList<>();
+        int nextOrder;
+
+        void replace(int st, int en, String inserted) {
+            text.replace(st, en, inserted);
+            int after = inserted.length();
+            for (int i = spans.size() - 1; i >= 0; i--) {
+                ModelSpan span = spans.get(i);
+                int start = updatedPosition(span.start, st, en, after, (span.flags >> 4) & 0x0F);
+                int end = updatedPosition(span.end, st, en, after, span.flags & 0x0F);
+                boolean exclusive = (span.flags & Spanned.SPAN_POINT_MARK_MASK) == Spanned.SPAN_EXCLUSIVE_EXCLUSIVE;
+                if (start > end || (exclusive && start == end && en > st && span.start >= st && span.end <= en)) {
+                    spans.remove(i);
+                } else {
+                    span.start = start;
+                    span.end = end;
+                }
+            }
+        }
+
+        /**
+         * Marks (1) stay before text inserted at them, points (2) move after it
+         */
+        private static int updatedPosition(int position, int st, int en, int after, int boundary) {
+            if (position < st) {
+                return position;
+            }
+            if (position > en) {
+                return position + after - (en - st);
+            }
+            if (after == 0) {
+                return st;
+            }
+            if (boundary == 1) {
+                return position == en && en > st ? st + after : st;
+            }
+            return position > st || en == st ? st + after : st;
+        }
+
+        void setSpan(Object what, int start, int end, int flags) {
+            for (ModelSpan span : spans) {
+                if (span.span == what) {
+                    span.start = start;
+                    span.end = end;
+                    span.flags = flags;
+                    return;
+                }
+            }
+            spans.add(new ModelSpan(what, start, end, flags, nextOrder++));
+        }
+
+        void removeSpan(Object what) {
+            for (int i = 0; i < spans.size(); i++) {
+                if (spans.get(i).span == what) {
+                    spans.remove(i);
+                    return;
+                }
+            }
+        }
+
+        Object[] getSpans(int queryStart, int queryEnd) {
+            ArrayList<ModelSpan> found = new ArrayList<>();
+            for (ModelSpan span : spans) {
+                if (span.start > queryEnd || span.end < queryStart) {
+                    continue;
+                }
+                if (span.start != span.end && queryStart != queryEnd
+                        && (span.start == queryEnd || span.end == queryStart)) {
+                    continue;
+                }
+                found.add(span);
+            }
+            Collections.sort(found, new Comparator<ModelSpan>() {
+                @Override
+                public int compare(ModelSpan a, ModelSpan b) {
+                    int priorityA = a.flags & Spanned.SPAN_PRIORITY;
+                    int priorityB = b.flags & Spanned.SPAN_PRIORITY;
+                    if (priorityA != priorityB) {
+                        return priorityA > priorityB ? -1 : 1;
+                    }
+                    return a.order - b.order;
+                }
+            });
+            Object[] result = new Object[found.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = found.get(i).span;
+            }
+            return result;
+        }
+
+        int nextSpanTransition(int start, int limit) {
+            for (ModelSpan span : spans) {
+                if (span.start > start && span.start < limit) {
+                    limit = span.start;
+                }
+                if (span.end > start && span.end < limit) {
+                    limit = span.end;
+                }
+            }
+            return limit;
+        }
+    }
+
+    private static final class ModelSpan {
+        final Object span;
+        final int order;
+        int start;
+        int end;
+        int flags;
+
+        ModelSpan(Object span, int start, int end, int flags, int order) {
+            this.span = span;
+            this.start = start;
+            this.end = end;
+            this.flags = flags;
+            this.order = order;
+        }
+    }
+
+    private static final class Watcher implements TextWatcher, SpanWatcher {
+        private final List<String> calls;
+
+        Watcher(List<String> calls) {
+            this.calls = calls;
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            calls.add("before " + start + " " + count + " " + after);
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            calls.add("on " + start + " " + before + " " + count);
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            calls.add("after");
+        }
+
+        @Override
+        public void onSpanAdded(Spannable text, Object what, int start, int end) {
+            calls.add("added " + start + " " + end);
+        }
+
+        @Override
+        public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            calls.add("removed " + start + " " + end);
+        }
+
+        @Override
+        public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+            if (what != this) {
+                calls.add("changed " + ostart + " " + oend + " " + nstart + " " + nend);
+            }
+        }
+    }
+}
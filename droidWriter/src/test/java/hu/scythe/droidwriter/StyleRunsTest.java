@@ -0,0 +1,230 @@
+package hu.scythe.droidwriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StyleRunsTest {
+
+    private static final int B = StyleRuns.BOLD;
+    private static final int I = StyleRuns.ITALIC;
+    private static final int U = StyleRuns.UNDERLINE;
+
+    private StyleRuns runs;
+
+    @Before
+    public void setUp() {
+        runs = new StyleRuns();
+    }
+
+    @Test
+    public void insertSplitsRun() {
+        runs.insert(0, 10, B);
+        runs.insert(4, 2, I);
+
+        assertEquals(12, runs.length());
+        assertEquals(3, runs.runCount());
+        assertArrayEquals(new int[]{4, B, 2, I, 6, B}, runs.getRuns(0, 12));
+        assertEquals(B, runs.attributesAt(3));
+        assertEquals(I, runs.attributesAt(4));
+        assertEquals(B, runs.attributesAt(6));
+    }
+
+    @Test
+    public void insertMergesEqualNeighbours() {
+        runs.insert(0, 4, B);
+        runs.insert(4, 4, I);
+        runs.insert(4, 3, B);
+        runs.insert(0, 2, B);
+
+        assertEquals(2, runs.runCount());
+        assertArrayEquals(new int[]{9, B, 4, I}, runs.getRuns(0, 13));
+    }
+
+    @Test
+    public void deleteCoalescesRemainingRuns() {
+        runs.insert(0, 3, B);
+        runs.insert(3, 3, I);
+        runs.insert(6, 3, B);
+
+        runs.delete(2, 7);
+        assertEquals(1, runs.runCount());
+        assertArrayEquals(new int[]{4, B}, runs.getRuns(0, 4));
+
+        runs.delete(0, 4);
+        assertEquals(0, runs.length());
+        assertEquals(0, runs.runCount());
+    }
+
+    @Test
+    public void setAttributesMergesChangedRuns() {
+        runs.insert(0, 2, 0);
+        runs.insert(2, 2, B);
+        runs.insert(4, 2, 0);
+        runs.insert(6, 2, B | I);
+
+        runs.setAttributes(1, 7, B, true);
+        assertArrayEquals(new int[]{1, 0, 5, B, 2, B | I}, runs.getRuns(0, 8));
+        assertEquals(3, runs.runCount());
+
+        runs.setAttributes(0, 8, B, false);
+        assertArrayEquals(new int[]{6, 0, 2, I}, runs.getRuns(0, 8));
+        assertEquals(2, runs.runCount());
+    }
+
+    @Test
+    public void getRunsCutsRunsWithoutChangingThem() {
+        runs.insert(0, 10, U);
+        int version = runs.getVersion();
+
+        assertArrayEquals(new int[]{5, U}, runs.getRuns(3, 8));
+        assertArrayEquals(new int[0], runs.getRuns(3, 3));
+        // the runs cut for the query are merged again
+        assertEquals(1, runs.runCount());
+        assertEquals(version, runs.getVersion());
+    }
+
+    @Test
+    public void setRunsRestoresSavedRuns() {
+        runs.insert(0, 4, B);
+        runs.insert(4, 4, I);
+        int[] saved = runs.getRuns(2, 6);
+
+        runs.setAttributes(0, 8, B | I | U, true);
+        runs.setRuns(2, saved);
+
+        assertArrayEquals(new int[]{2, B | I | U, 2, B, 2, I, 2, B | I | U}, runs.getRuns(0, 8));
+        assertEquals(4, runs.runCount());
+    }
+
+    @Test
+    public void queriesAttributesOfRanges() {
+        runs.insert(0, 4, B);
+        runs.insert(4, 4, B | I);
+        runs.insert(8, 4, I);
+
+        assertEquals(B, runs.commonAttributes(0, 8));
+        assertEquals(I, runs.commonAttributes(4, 12));
+        assertEquals(0, runs.commonAttributes(0, 12));
+        assertEquals(StyleRuns.ALL, runs.commonAttributes(5, 5));
+        assertTrue(runs.hasAttribute(7, I));
+        assertFalse(runs.hasAttribute(3, I));
+
+        assertEquals(4, runs.firstWith(0, I));
+        assertEquals(6, runs.firstWith(6, I));
+        assertEquals(12, runs.firstWith(0, U));
+        assertEquals(8, runs.firstWithout(2, B));
+        assertEquals(12, runs.firstWithout(8, I));
+        assertEquals(3, runs.lastWithout(8, I));
+        assertEquals(7, runs.lastWithout(8, U));
+        assertEquals(-1, runs.lastWithout(4, B));
+    }
+
+    @Test
+    public void matchesModelAfterRandomChanges() {
+        Random random = new Random(42);
+        ArrayList<Integer> model = new ArrayList<>();
+
+        for (int step = 0; step < 5000; step++) {
+            int length = model.size();
+            int start = random.nextInt(length + 1);
+            int end = start + random.nextInt(length - start + 1);
+            int attributes = random.nextInt(StyleRuns.ALL + 1);
+            switch (random.nextInt(4)) {
+                case 0: {
+                    int count = 1 + random.nextInt(20);
+                    runs.insert(start, count, attributes);
+                    for (int i = 0; i < count; i++) {
+                        model.add(start, attributes);
+                    }
+                    break;
+                }
+                case 1:
+                    runs.delete(start, end);
+                    model.subList(start, end).clear();
+                    break;
+                case 2: {
+                    boolean set = random.nextBoolean();
+                    runs.setAttributes(start, end, attributes, set);
+                    for (int i = start; i < end; i++) {
+                        model.set(i, set ? model.get(i) | attributes : model.get(i) & ~attributes);
+                    }
+                    break;
+                }
+                default: {
+                    int[] saved = runs.getRuns(start, end);
+                    int to = random.nextInt(model.size() - (end - start) + 1);
+                    runs.setRuns(to, saved);
+                    ArrayList<Integer> copy = new ArrayList<>(model.subList(start, end));
+                    for (int i = 0; i < copy.size(); i++) {
+                        model.set(to + i, copy.get(i));
+                    }
+                    break;
+                }
+            }
+            assertMatches(model);
+            assertQueriesMatch(model, random);
+        }
+    }
+
+    private void assertQueriesMatch(ArrayList<Integer> model, Random random) {
+        int length = model.size();
+        int start = random.nextInt(length + 1);
+        int end = start + random.nextInt(length - start + 1);
+        int attribute = 1 << random.nextInt(3);
+
+        int common = StyleRuns.ALL;
+        for (int i = start; i < end; i++) {
+            common &= model.get(i);
+        }
+        assertEquals(common, runs.commonAttributes(start, end));
+
+        int firstWith = start;
+        while (firstWith < length && (model.get(firstWith) & attribute) == 0) {
+            firstWith++;
+        }
+        assertEquals(firstWith, runs.firstWith(start, attribute));
+
+        int firstWithout = start;
+        while (firstWithout < length && (model.get(firstWithout) & attribute) != 0) {
+            firstWithout++;
+        }
+        assertEquals(firstWithout, runs.firstWithout(start, attribute));
+
+        int lastWithout = end - 1;
+        while (lastWithout >= 0 && (model.get(lastWithout) & attribute) != 0) {
+            lastWithout--;
+        }
+        assertEquals(lastWithout, runs.lastWithout(end, attribute));
+    }
+
+    private void assertMatches(ArrayList<Integer> model) {
+        assertEquals(model.size(), runs.length());
+
+        int expectedRuns = 0;
+        for (int i = 0; i < model.size(); i++) {
+            if (i == 0 || !model.get(i).equals(model.get(i - 1))) {
+                expectedRuns++;
+            }
+        }
+        // neighbouring runs never have the same attributes
+        assertEquals(expectedRuns, runs.runCount());
+
+        int position = 0;
+        int[] all = runs.getRuns(0, model.size());
+        for (int i = 0; i < all.length; i += 2) {
+            for (int j = 0; j < all[i]; j++) {
+                assertEquals((int) model.get(position), all[i + 1]);
+                position++;
+            }
+        }
+        assertEquals(model.size(), position);
+    }
+}
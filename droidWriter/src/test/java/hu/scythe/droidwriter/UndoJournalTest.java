@@ -0,0 +1,265 @@
+package hu.scythe.droidwriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UndoJournalTest {
+
+    private static final int[] NO_RUNS = new int[0];
+
+    private UndoJournal journal;
+    private StringBuilder text;
+    private UndoJournal.Applier applier;
+
+    @Before
+    public void setUp() {
+        journal = new UndoJournal(1 << 20);
+        text = new StringBuilder();
+        applier = new UndoJournal.Applier() {
+            @Override
+            public UndoJournal.Entry apply(UndoJournal.Entry entry) {
+                int end = entry.start + entry.newLength;
+                if (end > text.length()) {
+                    return null;
+                }
+                String replaced = text.substring(entry.start, end);
+                text.replace(entry.start, end, entry.oldText.toString());
+                return new UndoJournal.Entry(entry.start, entry.oldText.length(), replaced, NO_RUNS);
+            }
+        };
+    }
+
+    @Test
+    public void coalescesTypingPerWord() {
+        type(0, "hello ");
+        type(6, "world");
+
+        assertEquals(2, undoAll());
+        assertEquals("", text.toString());
+    }
+
+    @Test
+    public void undoesWordByWord() {
+        type(0, "one two");
+
+        assertTrue(journal.undo(applier));
+        assertEquals("one ", text.toString());
+        assertTrue(journal.undo(applier));
+        assertEquals("", text.toString());
+        assertFalse(journal.undo(applier));
+    }
+
+    @Test
+    public void coalescesCorrectionsOfTheWordBeingTyped() {
+        type(0, "helo");
+        // the input method replaces the word being composed
+        replace(0, 4, "hello");
+        backspace(5);
+
+        assertEquals(1, undoAll());
+        assertEquals("", text.toString());
+    }
+
+    @Test
+    public void coalescesBackspacesAndDeletes() {
+        text.append("abcdefgh");
+        backspace(8);
+        backspace(7);
+        backspace(6);
+        delete(0);
+        delete(0);
+
+        assertEquals("cde", text.toString());
+        assertTrue(journal.undo(applier));
+        assertEquals("abcde", text.toString());
+        assertTrue(journal.undo(applier));
+        assertEquals("abcdefgh", text.toString());
+        assertFalse(journal.canUndo());
+    }
+
+    @Test
+    public void doesNotMergeDeletionBeforeTypedWord() {
+        text.append("xy");
+        type(2, "abc");
+        backspace(2);
+
+        assertTrue(journal.undo(applier));
+        assertEquals("xyabc", text.toString());
+        assertTrue(journal.undo(applier));
+        assertEquals("xy", text.toString());
+    }
+
+    @Test
+    public void keepsImagesAsStepsOfTheirOwn() {
+        type(0, "ab");
+        replace(2, 2, "\uFFFC");
+        type(3, "cd");
+
+        assertEquals(3, undoAll());
+    }
+
+    @Test
+    public void keepsPastedWordsAsStepsOfTheirOwn() {
+        type(0, "ab ");
+        replace(3, 3, "pasted");
+        type(9, "s");
+
+        assertTrue(journal.undo(applier));
+        assertEquals("ab pasted", text.toString());
+        assertTrue(journal.undo(applier));
+        assertEquals("ab ", text.toString());
+    }
+
+    @Test
+    public void acceptsOnlyTypedCharacters() {
+        String typed = "a1 \t,.-()'\u00E9";
+        assertTrue(UndoJournal.isTyped(typed, 0, typed.length()));
+        assertFalse(UndoJournal.isTyped("a\uFFFC", 0, 2));
+        assertTrue(UndoJournal.isTyped("a\uFFFC", 0, 1));
+    }
+
+    @Test
+    public void undoesAndRedoesGroupsAsOneStep() {
+        type(0, "abc");
+        journal.beginGroup();
+        replace(0, 1, "X");
+        journal.beginGroup();
+        replace(2, 3, "Z");
+        journal.endGroup();
+        journal.endGroup();
+
+        assertEquals("XbZ", text.toString());
+        assertTrue(journal.undo(applier));
+        assertEquals("abc", text.toString());
+        assertTrue(journal.redo(applier));
+        assertEquals("XbZ", text.toString());
+        assertFalse(journal.canRedo());
+    }
+
+    @Test
+    public void clearsRedoOnNewChange() {
+        type(0, "abc");
+        journal.undo(applier);
+        assertTrue(journal.canRedo());
+
+        type(0, "x");
+        assertFalse(journal.canRedo());
+        assertFalse(journal.redo(applier));
+    }
+
+    @Test
+    public void startsNewStepWhenTypingAfterUndo() {
+        type(0, "ab ");
+        type(3, "cd");
+        journal.undo(applier);
+        type(3, "ef");
+
+        assertEquals("ab ef", text.toString());
+        assertTrue(journal.undo(applier));
+        assertEquals("ab ", text.toString());
+    }
+
+    @Test
+    public void trimsOldestStepsOverBudget() {
+        text.append("0123456789");
+        // every entry holds the 10 replaced characters
+        int entrySize = estimatedSize(10);
+        journal.setBudget(2 * entrySize);
+
+        replace(0, 10, "abcdefghij");
+        replace(0, 10, "ABCDEFGHIJ");
+        replace(0, 10, "klmnopqrst");
+
+        assertEquals(2, undoAll());
+        assertEquals("abcdefghij", text.toString());
+
+        // undone steps are kept for redo within the same budget
+        assertTrue(journal.redo(applier));
+        assertTrue(journal.redo(applier));
+        assertFalse(journal.redo(applier));
+        assertEquals("klmnopqrst", text.toString());
+    }
+
+    @Test
+    public void trimsWholeGroups() {
+        text.append("0123456789");
+        journal.setBudget(3 * estimatedSize(10));
+
+        journal.beginGroup();
+        replace(0, 10, "abcdefghij");
+        replace(0, 10, "ABCDEFGHIJ");
+        journal.endGroup();
+        replace(0, 10, "klmnopqrst");
+        replace(0, 10, "KLMNOPQRST");
+
+        // dropping only the first entry of the group would fit the budget too
+        assertEquals(2, undoAll());
+        assertEquals("ABCDEFGHIJ", text.toString());
+    }
+
+    @Test
+    public void dropsHistoryWhenShrinkingBudget() {
+        type(0, "one two three");
+        journal.setBudget(0);
+
+        assertFalse(journal.canUndo());
+        assertFalse(journal.canRedo());
+    }
+
+    @Test
+    public void clearsHistoryNotMatchingText() {
+        type(0, "abc");
+        text.setLength(0);
+
+        assertFalse(journal.undo(applier));
+        assertFalse(journal.canUndo());
+        assertFalse(journal.canRedo());
+    }
+
+    private static int estimatedSize(int textLength) {
+        return new UndoJournal.Entry(0, 0, new String(new char[textLength]), NO_RUNS).size;
+    }
+
+    /**
+     * Types the characters of typed one by one, starting at start
+     */
+    private void type(int start, String typed) {
+        for (int i = 0; i < typed.length(); i++) {
+            replace(start + i, start + i, typed.substring(i, i + 1));
+        }
+    }
+
+    private void backspace(int position) {
+        replace(position - 1, position, "");
+    }
+
+    private void delete(int position) {
+        replace(position, position + 1, "");
+    }
+
+    /**
+     * Replaces [start, end) of the text and records it like the editor's text watcher
+     */
+    private void replace(int start, int end, String replacement) {
+        String removed = text.substring(start, end);
+        text.replace(start, end, replacement);
+        if (!journal.extendTyping(text, start, end - start, replacement.length())) {
+            journal.recordText(new UndoJournal.Entry(start, replacement.length(), removed, NO_RUNS), text);
+        }
+    }
+
+    /**
+     * @return the number of steps undone
+     */
+    private int undoAll() {
+        int steps = 0;
+        while (journal.undo(applier)) {
+            steps++;
+        }
+        return steps;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskCacheTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "images");
+    }
+
+    @Test
+    public void storesReplacesAndClearsEntries() throws IOException {
+        DiskCache cache = new DiskCache(directory, 1000);
+        cache.put("a", bytes(10, 1));
+        cache.put("b", bytes(20, 2));
+        cache.put("a", bytes(30, 3));
+
+        assertArrayEquals(bytes(30, 3), cache.get("a"));
+        assertArrayEquals(bytes(20, 2), cache.get("b"));
+        assertNull(cache.get("c"));
+        assertEquals(50, cache.size());
+
+        cache.clear();
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.size());
+        // only the journal is left
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void replaysJournalAfterReopen() throws IOException {
+        DiskCache cache = new DiskCache(directory, 100);
+        cache.put("a", bytes(30, 1));
+        cache.put("b", bytes(30, 2));
+        cache.put("c", bytes(30, 3));
+        cache.put("b", bytes(20, 4));
+        cache.get("a");
+        // files the journal doesn't know of, e.g. left by a crash
+        write(new File(directory, "unknown"), 5);
+        write(new File(directory, "entry.tmp"), 5);
+
+        cache = new DiskCache(directory, 100);
+        assertEquals(80, cache.size());
+        assertEquals(4, directory.listFiles().length);
+
+        // the order of use survived, c is the least recently used entry
+        cache.put("d", bytes(30, 5));
+        assertNull(cache.get("c"));
+        assertArrayEquals(bytes(30, 1), cache.get("a"));
+        assertArrayEquals(bytes(20, 4), cache.get("b"));
+        assertArrayEquals(bytes(30, 5), cache.get("d"));
+        assertEquals(80, cache.size());
+    }
+
+    @Test
+    public void trimsToMaxSize() throws IOException {
+        DiskCache cache = new DiskCache(directory, 100);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, bytes(30, i));
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(90, cache.size());
+        assertNull(cache.get("key6"));
+        assertArrayEquals(bytes(30, 7), cache.get("key7"));
+
+        // larger than the whole cache, nothing is evicted for it
+        cache.put("large", bytes(101, 0));
+        assertNull(cache.get("large"));
+        assertEquals(90, cache.size());
+
+        // a smaller cap trims the reopened cache
+        cache = new DiskCache(directory, 50);
+        assertEquals(30, cache.size());
+        assertArrayEquals(bytes(30, 7), cache.get("key7"));
+        assertEquals(2, directory.listFiles().length);
+    }
+
+    @Test
+    public void compactsJournal() throws IOException {
+        DiskCache cache = new DiskCache(directory, 1000);
+        for (int i = 0; i < 5000; i++) {
+            cache.put("key" + i % 3, bytes(10 + i % 7, i));
+            cache.get("key" + i % 2);
+        }
+
+        List<String> lines = readJournal();
+        assertTrue(lines.size() + " lines", lines.size() <= 2004);
+
+        cache = new DiskCache(directory, 1000);
+        assertArrayEquals(bytes(10 + 4998 % 7, 4998), cache.get("key0"));
+        assertArrayEquals(bytes(10 + 4999 % 7, 4999), cache.get("key1"));
+        assertArrayEquals(bytes(10 + 4997 % 7, 4997), cache.get("key2"));
+    }
+
+    @Test
+    public void readsWholeEntriesWhileTheyAreReplaced() throws Exception {
+        final DiskCache cache = new DiskCache(directory, 1000 * 1000);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < 300; i++) {
+                            String key = "key" + random.nextInt(3);
+                            if (random.nextBoolean()) {
+                                cache.put(key, bytes(1 + random.nextInt(20000), seed));
+                            } else {
+                                byte[] data = cache.get(key);
+                                // one of the versions written, never a mix of two
+                                if (data != null) {
+                                    assertArrayEquals(bytes(data.length, data[0]), data);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        long size = 0;
+        for (int i = 0; i < 3; i++) {
+            byte[] data = cache.get("key" + i);
+            size += data != null ? data.length : 0;
+        }
+        assertEquals(size, cache.size());
+    }
+
+    private static byte[] bytes(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static void write(File file, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes(length, 0));
+        } finally {
+            out.close();
+        }
+    }
+
+    private List<String> readJournal() throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(new File(directory, "journal")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
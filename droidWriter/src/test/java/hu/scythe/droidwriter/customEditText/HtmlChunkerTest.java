@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class HtmlChunkerTest {
+
+    @Test
+    public void splitsBeforeTopLevelBlocks() {
+        assertChunks(1, 1, "<p>one</p>", "<h1>two</h1>", "<div>three</div>");
+    }
+
+    @Test
+    public void keepsFirstAndFollowingChunkLengths() {
+        String html = "<p>a</p><p>b</p><p>c</p><p>d</p><p>e</p>";
+        // the first chunk is at least 16 characters long, the following ones at least 8
+        assertEquals(Arrays.asList("<p>a</p><p>b</p>", "<p>c</p>", "<p>d</p>", "<p>e</p>"),
+                HtmlChunker.split(html, 16, 8));
+        assertEquals(Arrays.asList("<p>a</p>", "<p>b</p><p>c</p>", "<p>d</p><p>e</p>"),
+                HtmlChunker.split(html, 1, 9));
+    }
+
+    @Test
+    public void neverCutsListsOrTables() {
+        assertChunks(1, 1,
+                "<ul><li>one<li><p>two</p></li></ul>",
+                "<table><tr><td><div>x</div><td>y</table>",
+                "<p>z");
+    }
+
+    @Test
+    public void doesNotCountVoidOrOptionalEndElements() {
+        // <p> and <li> need not be closed, <br> and <img> are never closed
+        assertChunks(1, 1, "<p>a<br>b<img src=x>", "<p>c<wbr/>", "<hr>", "<p>d");
+        // neither are the document wrappers
+        assertChunks(1, 1, "<html><body>", "<p>a", "<p>b</body></html>");
+    }
+
+    @Test
+    public void skipsCommentsScriptsAndStyles() {
+        assertChunks(1, 1,
+                "<!-- <div> -->",
+                "<div><!-- </div> --></div>",
+                "<div><script>document.write('<div>')</SCRIPT><style>p { }</style></div>",
+                "<p>e");
+    }
+
+    @Test
+    public void skipsQuotedAttributeValues() {
+        // the '>' in the value doesn't end the tag, so the <div> in it doesn't open an element
+        assertChunks(1, 1, "<div title=\"a><div>\">b</div>", "<p>c");
+        assertChunks(1, 1, "<div data-x='><div>'>d</div>", "<p>e");
+    }
+
+    @Test
+    public void keepsRestOfDocumentInOneChunkIfElementIsNotClosed() {
+        assertChunks(1, 1, "<p>a</p>", "<div><p>b</p><p>c</p>");
+        assertChunks(1, 1, "<p>a</p>", "<blockquote>b<p unclosed");
+    }
+
+    @Test
+    public void concatenatedChunksAreTheDocument() {
+        String html = "<h2>Title</h2><p>text <b>bold</b></p><ol><li>1</ol><pre><p></pre><p>end";
+        for (int length = 0; length <= html.length(); length++) {
+            StringBuilder joined = new StringBuilder();
+            for (String chunk : HtmlChunker.split(html, length, length)) {
+                joined.append(chunk);
+            }
+            assertEquals(html, joined.toString());
+        }
+        assertEquals(Arrays.asList(""), HtmlChunker.split("", 1, 1));
+    }
+
+    private static void assertChunks(int firstChunkLength, int chunkLength, String... chunks) {
+        StringBuilder html = new StringBuilder();
+        for (String chunk : chunks) {
+            html.append(chunk);
+        }
+        List<String> actual = HtmlChunker.split(html.toString(), firstChunkLength, chunkLength);
+        assertEquals(Arrays.asList(chunks), actual);
+    }
+}
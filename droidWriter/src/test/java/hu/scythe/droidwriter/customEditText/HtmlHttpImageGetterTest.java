@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HtmlHttpImageGetterTest {
+
+    @Test
+    public void samplesImagesDownToTheMaxWidth() {
+        assertEquals(1, HtmlHttpImageGetter.getSampleSize(800, 1080));
+        assertEquals(1, HtmlHttpImageGetter.getSampleSize(2159, 1080));
+        assertEquals(2, HtmlHttpImageGetter.getSampleSize(2160, 1080));
+        assertEquals(2, HtmlHttpImageGetter.getSampleSize(4000, 1080));
+        assertEquals(4, HtmlHttpImageGetter.getSampleSize(4320, 1080));
+        assertEquals(16, HtmlHttpImageGetter.getSampleSize(20000, 1000));
+        // no width to sample for
+        assertEquals(1, HtmlHttpImageGetter.getSampleSize(4000, 0));
+
+        for (int width = 1; width < 10000; width += 7) {
+            int sampleSize = HtmlHttpImageGetter.getSampleSize(width, 500);
+            assertTrue(width / sampleSize >= Math.min(width, 500));
+            assertTrue(sampleSize == 1 || width / sampleSize < 1000);
+        }
+    }
+
+    @Test
+    public void roundsDecodeWidthUpToQuartersOfTheScreen() {
+        // before layout
+        assertEquals(1080, HtmlHttpImageGetter.getDecodeWidth(0, 1080));
+        assertEquals(1080, HtmlHttpImageGetter.getDecodeWidth(1080, 1080));
+        assertEquals(1080, HtmlHttpImageGetter.getDecodeWidth(1032, 1080));
+        assertEquals(810, HtmlHttpImageGetter.getDecodeWidth(800, 1080));
+        assertEquals(270, HtmlHttpImageGetter.getDecodeWidth(270, 1080));
+        assertEquals(540, HtmlHttpImageGetter.getDecodeWidth(271, 1080));
+        // wider than the screen, e.g. scrolling horizontally
+        assertEquals(2160, HtmlHttpImageGetter.getDecodeWidth(2000, 1080));
+        assertEquals(1081, HtmlHttpImageGetter.getDecodeWidth(1081, 1081));
+    }
+
+    @Test
+    public void decodesAlikeBeforeAndAfterLayout() {
+        int[] screenWidths = {720, 1080, 1081, 1440};
+        for (int screenWidth : screenWidths) {
+            int beforeLayout = HtmlHttpImageGetter.getDecodeWidth(0, screenWidth);
+            for (int width = screenWidth * 3 / 4 + 1; width <= screenWidth; width++) {
+                int afterLayout = HtmlHttpImageGetter.getDecodeWidth(width, screenWidth);
+                assertEquals(beforeLayout, afterLayout);
+            }
+            for (int width = 1; width <= 2 * screenWidth; width++) {
+                assertTrue(HtmlHttpImageGetter.getDecodeWidth(width, screenWidth) >= width);
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.text.Editable;
+import android.text.style.StrikethroughSpan;
+import android.text.style.TypefaceSpan;
+import android.view.View;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the stack of open elements of {@link HtmlTagHandler} on an output which only supports
+ * what closing an element may use: its length, appending and deleting text and setting a span.
+ * Looking up the spans of the output, as the old marker spans did, fails the test.
+ */
+public class HtmlTagHandlerTest {
+
+    private HtmlTagHandler handler;
+    private Output output;
+
+    @Before
+    public void setUp() {
+        handler = new HtmlTagHandler(null);
+        output = new Output();
+    }
+
+    @Test
+    public void spansNestedElements() {
+        final int depth = 100;
+        for (int i = 0; i < depth; i++) {
+            open("code");
+            output.length++;
+        }
+        for (int i = 0; i < depth; i++) {
+            close("code");
+        }
+
+        assertEquals(depth, output.spans.size());
+        for (int i = 0; i < depth; i++) {
+            // the innermost element is closed first
+            Span span = output.spans.get(i);
+            assertTrue(span.what instanceof TypefaceSpan);
+            assertEquals(depth - 1 - i, span.start);
+            assertEquals(depth, span.end);
+        }
+    }
+
+    @Test
+    public void spansBadlyNestedElements() {
+        // <code>a<s>b</code>c</s>
+        open("code");
+        output.length++;
+        open("s");
+        output.length++;
+        close("code");
+        output.length++;
+        close("s");
+
+        assertEquals(2, output.spans.size());
+        assertTrue(output.spans.get(0).what instanceof TypefaceSpan);
+        assertEquals(0, output.spans.get(0).start);
+        assertEquals(2, output.spans.get(0).end);
+        assertTrue(output.spans.get(1).what instanceof StrikethroughSpan);
+        assertEquals(1, output.spans.get(1).start);
+        assertEquals(3, output.spans.get(1).end);
+    }
+
+    @Test
+    public void ignoresEmptyAndUnopenedElements() {
+        close("code");
+        open("strike");
+        close("strike");
+        output.length++;
+        close("s");
+
+        assertEquals(0, output.spans.size());
+    }
+
+    @Test
+    public void cutsTableHtmlOutOfSource() {
+        String table = "<table border=1><tr><td>x</td></tr></table>";
+        handler.overrideTags("<p>a</p>" + table + "<p>b</p>");
+        handler.setClickableTableSpan(new TableSpan());
+
+        open("table");
+        open("tr");
+        open("td");
+        text("x");
+        close("td");
+        close("tr");
+        close("table");
+
+        assertEquals(Arrays.asList(table), tableHtml());
+    }
+
+    @Test
+    public void buildsHtmlOfTablesClosedByTheParser() {
+        // the parser closes the outer table where the inner one starts
+        handler.overrideTags("<table><table><tr><td>a</td></tr></table></table><table><td>b</table>");
+        handler.setClickableTableSpan(new TableSpan());
+
+        open("table");
+        close("table");
+        open("table");
+        open("tr");
+        open("td");
+        text("a");
+        close("td");
+        close("tr");
+        close("table");
+        // same tags as the next table in the source, which is the one after this one
+        open("table");
+        open("tr");
+        open("td");
+        text("b");
+        close("td");
+        close("tr");
+        close("table");
+
+        assertEquals(Arrays.asList("<table></table>", "<table><tr><td>a</td></tr></table>",
+                "<table><tr><td>b</td></tr></table>"), tableHtml());
+    }
+
+    @Test
+    public void buildsHtmlOfUnclosedTables() {
+        handler.overrideTags("<table><tr><td>a<table><tr><td>b & c");
+        handler.setClickableTableSpan(new TableSpan());
+
+        open("table");
+        open("tr");
+        open("td");
+        text("a");
+        open("table");
+        open("tr");
+        open("td");
+        text("b & c");
+        // closed at the end of the document
+        close("td");
+        close("tr");
+        close("table");
+        close("td");
+        close("tr");
+        close("table");
+
+        assertEquals(Arrays.asList("<table><tr><td>a<table><tr><td>b &amp; c</td></tr></table></td></tr></table>"),
+                tableHtml());
+        // only the placeholder of the table is left
+        assertEquals("table placeholder", output.text.toString());
+        assertEquals(output.text.length(), output.length);
+    }
+
+    @Test
+    public void closingCostsConstantWork() {
+        long small = countCalls(1000);
+        long large = countCalls(16000);
+        // a scan of the output or of all open elements would grow faster than the elements
+        assertEquals(16 * small, large);
+    }
+
+    /**
+     * @return calls to the output for a list of count items, each with nested elements
+     */
+    private long countCalls(int count) {
+        handler = new HtmlTagHandler(null);
+        output = new Output();
+        for (int i = 0; i < count; i++) {
+            open("code");
+            open("strike");
+            output.length += 10;
+            close("strike");
+            close("code");
+        }
+        assertEquals(2 * count, output.spans.size());
+        return output.calls;
+    }
+
+    private void open(String tag) {
+        handler.handleTag(true, tag, output.editable, null);
+    }
+
+    private void close(String tag) {
+        handler.handleTag(false, tag, output.editable, null);
+    }
+
+    private void text(String text) {
+        output.editable.append(text);
+    }
+
+    /**
+     * @return HTML of the table spans in the output
+     */
+    private List<String> tableHtml() {
+        List<String> html = new ArrayList<>();
+        for (Span span : output.spans) {
+            if (span.what instanceof ClickableTableSpan) {
+                html.add(((ClickableTableSpan) span.what).getTableHtml());
+            }
+        }
+        return html;
+    }
+
+    private static final class TableSpan extends ClickableTableSpan {
+        @Override
+        public ClickableTableSpan newInstance() {
+            return new TableSpan();
+        }
+
+        @Override
+        public void onClick(View widget) {
+        }
+    }
+
+    private static final class Span {
+        final Object what;
+        final int start;
+        final int end;
+
+        Span(Object what, int start, int end) {
+            this.what = what;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final class Output implements InvocationHandler {
+        final Editable editable = (Editable) Proxy.newProxyInstance(Editable.class.getClassLoader(),
+                new Class<?>[]{Editable.class}, this);
+        final ArrayList<Span> spans = new ArrayList<>();
+        final StringBuilder text = new StringBuilder();
+        int length;
+        long calls;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            calls++;
+            switch (method.getName()) {
+                case "length":
+                    return length;
+                case "setSpan":
+                    spans.add(new Span(args[0], (Integer) args[1], (Integer) args[2]));
+                    return null;
+                case "append":
+                    text.append((CharSequence) args[0]);
+                    length += ((CharSequence) args[0]).length();
+                    return proxy;
+                case "delete":
+                    text.delete((Integer) args[0], (Integer) args[1]);
+                    length -= (Integer) args[1] - (Integer) args[0];
+                    return proxy;
+                case "charAt":
+                    return text.charAt((Integer) args[0]);
+                default:
+                    throw new AssertionError("unexpected call of " + method.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link HtmlTagRewriter} with the six {@link String#replace} calls it replaced in
+ * {@link HtmlTagHandler#overrideTags(String)}, on generated help articles of 200 and 500 KB.
+ * Prints the median time of both. Timings are not asserted, as they depend on the machine
+ * running the tests.
+ */
+public class HtmlTagRewriterBenchmarkTest {
+
+    private static final int[] DOCUMENT_LENGTHS = {200 * 1024, 500 * 1024};
+    private static final int WARM_UP_RUNS = 20;
+    private static final int RUNS = 20;
+
+    @Test
+    public void rewritesLikeReplaceCalls() {
+        HtmlTagRewriter rewriter = new HtmlTagRewriter();
+        for (int length : DOCUMENT_LENGTHS) {
+            String html = newArticle(length);
+            assertEquals(replaceTags(html), rewriter.rewrite(html));
+        }
+    }
+
+    @Test
+    public void comparesWithReplaceCalls() {
+        HtmlTagRewriter rewriter = new HtmlTagRewriter();
+        String[] documents = new String[DOCUMENT_LENGTHS.length];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = newArticle(DOCUMENT_LENGTHS[i]);
+        }
+        // compile both before measuring either, the first document is measured too early otherwise
+        int found = 0;
+        for (int run = 0; run < WARM_UP_RUNS; run++) {
+            for (String html : documents) {
+                found += replaceTags(html).length() + rewriter.rewrite(html).length();
+            }
+        }
+
+        for (String html : documents) {
+            long[] replaceTimes = new long[RUNS];
+            long[] rewriterTimes = new long[RUNS];
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                found += replaceTags(html).length();
+                long middle = System.nanoTime();
+                found += rewriter.rewrite(html).length();
+                replaceTimes[run] = middle - start;
+                rewriterTimes[run] = System.nanoTime() - middle;
+            }
+            System.out.println("HtmlTagRewriterBenchmarkTest: " + html.length() / 1024 + " KB, replace calls "
+                    + median(replaceTimes) / 1000 + " us, rewriter " + median(rewriterTimes) / 1000 + " us");
+        }
+        assertTrue(found > 0);
+    }
+
+    /**
+     * The rewriting done by overrideTags before HtmlTagRewriter
+     */
+    private static String replaceTags(String html) {
+        html = html.replace("<ul", "<" + HtmlTagHandler.UNORDERED_LIST);
+        html = html.replace("</ul>", "</" + HtmlTagHandler.UNORDERED_LIST + ">");
+        html = html.replace("<ol", "<" + HtmlTagHandler.ORDERED_LIST);
+        html = html.replace("</ol>", "</" + HtmlTagHandler.ORDERED_LIST + ">");
+        html = html.replace("<li", "<" + HtmlTagHandler.LIST_ITEM);
+        html = html.replace("</li>", "</" + HtmlTagHandler.LIST_ITEM + ">");
+        return html;
+    }
+
+    /**
+     * Sections of paragraphs, lists, a table and an image, in lower case and without tags the
+     * replace calls rewrite wrongly, so both rewrite them the same way
+     */
+    private static String newArticle(int length) {
+        StringBuilder html = new StringBuilder(length + 1024);
+        html.append("<html><head><title>Help</title></head><body>");
+        for (int section = 0; html.length() < length; section++) {
+            html.append("<h2>Section ").append(section).append("</h2>")
+                    .append("<p>To change the <b>settings</b> of a document, open the menu and choose ")
+                    .append("<a href=\"https://example.com/help/").append(section).append("\">Settings</a>. ")
+                    .append("The changes are saved when you leave the screen.</p>")
+                    .append("<ul><li>First step</li><li>Second step with <i>details</i>")
+                    .append("<ol start=\"2\"><li>Nested item</li><li>Another item</li></ol></li></ul>")
+                    .append("<table border=\"1\"><tr><th>Option</th><th>Default</th></tr>")
+                    .append("<tr><td>Font size</td><td>14</td></tr></table>")
+                    .append("<p><img src=\"images/step").append(section).append(".png\" width=\"320\" height=\"240\">")
+                    .append("Values like a &lt; b are escaped.</p>");
+        }
+        return html.append("</body></html>").toString();
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class HtmlTagRewriterTest {
+
+    private static final String UL = HtmlTagHandler.UNORDERED_LIST;
+    private static final String OL = HtmlTagHandler.ORDERED_LIST;
+    private static final String LI = HtmlTagHandler.LIST_ITEM;
+
+    private HtmlTagRewriter rewriter;
+    private HtmlSourceIndex index;
+
+    @Before
+    public void setUp() {
+        rewriter = new HtmlTagRewriter();
+        index = new HtmlSourceIndex();
+    }
+
+    @Test
+    public void renamesListTags() {
+        assertEquals("<" + UL + "><" + LI + ">a</" + LI + "></" + UL + ">"
+                        + "<" + OL + " start=\"2\"><" + LI + ">b</" + OL + ">",
+                rewriter.rewrite("<ul><li>a</li></ul><ol start=\"2\"><li>b</ol>"));
+    }
+
+    @Test
+    public void matchesTagNamesIgnoringCase() {
+        assertEquals("<" + UL + "><" + LI + "/></" + UL + ">", rewriter.rewrite("<UL><Li/></uL>"));
+    }
+
+    @Test
+    public void matchesWholeTagNames() {
+        String html = "<link rel=\"x\"><ulx>a</ulx><lima>b</lima><b>c</b>";
+        assertSame(html, rewriter.rewrite(html));
+    }
+
+    @Test
+    public void returnsInputWithoutAliasedTags() {
+        String html = "<p>a < b and b > c</p><br/>";
+        assertSame(html, rewriter.rewrite(html));
+        assertNull(rewriter.rewrite(null));
+    }
+
+    @Test
+    public void skipsComments() {
+        assertEquals("<!-- <ul><li> --><" + LI + ">", rewriter.rewrite("<!-- <ul><li> --><li>"));
+
+        String unclosed = "<!-- <ul>";
+        assertSame(unclosed, rewriter.rewrite(unclosed));
+    }
+
+    @Test
+    public void skipsScriptsAndStyles() {
+        assertEquals("<script>if (a <li) x = '<ul>';</SCRIPT><" + UL + ">",
+                rewriter.rewrite("<script>if (a <li) x = '<ul>';</SCRIPT><ul>"));
+        assertEquals("<style>li > ul { }</style><" + LI + ">",
+                rewriter.rewrite("<style>li > ul { }</style><li>"));
+        // a self-closing script has no content
+        assertEquals("<script/><" + LI + ">", rewriter.rewrite("<script/><li>"));
+    }
+
+    @Test
+    public void skipsQuotedAttributeValues() {
+        assertEquals("<a title=\"<li>\" href='>'><" + LI + ">",
+                rewriter.rewrite("<a title=\"<li>\" href='>'><li>"));
+        // a quote which is not an attribute value doesn't start one
+        assertEquals("<p class=x'y><" + LI + ">", rewriter.rewrite("<p class=x'y><li>"));
+    }
+
+    @Test
+    public void replacesAndRemovesAliases() {
+        rewriter.putAlias("LI", "item");
+        rewriter.putAlias("dl", "list");
+        assertEquals("<list><item>", rewriter.rewrite("<dl><li>"));
+
+        rewriter.removeAlias("dl");
+        assertEquals("<dl><item>", rewriter.rewrite("<dl><li>"));
+    }
+
+    @Test
+    public void signatureDependsOnAliases() {
+        HtmlTagRewriter other = new HtmlTagRewriter();
+        assertEquals(rewriter.getSignature(), other.getSignature());
+
+        other.putAlias("dl", "list");
+        assertFalse(rewriter.getSignature().equals(other.getSignature()));
+        other.removeAlias("dl");
+        assertEquals(rewriter.getSignature(), other.getSignature());
+    }
+
+    @Test
+    public void reusesBufferForNextDocument() {
+        assertEquals("<" + LI + ">first", rewriter.rewrite("<li>first"));
+        assertEquals("<" + UL + ">", rewriter.rewrite("<ul>"));
+        String html = "<p>plain</p>";
+        assertSame(html, rewriter.rewrite(html));
+    }
+
+    @Test
+    public void indexesRootTables() {
+        String first = "<table><tr><td><table><tr><td>x</td></tr></table></td></tr></TABLE>";
+        String second = "<table><tr><td>y";
+        String html = "<p>a</p>" + first + "<!-- <table> -->" + second;
+        rewriter.rewrite(html, index);
+
+        assertSame(html, index.getSource());
+        assertEquals(2, index.getTableCount());
+        assertEquals(html.indexOf(first), index.getTableStart(0));
+        assertEquals(html.indexOf(first) + first.length(), index.getTableEnd(0));
+        // an unclosed table ends with the document
+        assertEquals(html.indexOf(second), index.getTableStart(1));
+        assertEquals(html.length(), index.getTableEnd(1));
+
+        // the tables and cells of the first table, the parser may close the second one earlier
+        assertEquals(4, index.getTableElementCount(0));
+        assertEquals(-1, index.getTableElementCount(1));
+    }
+
+    @Test
+    public void marksTablesAfterImpliedTables() {
+        String first = "<table><tr><th>a<td>b</table>";
+        String second = "<table/>";
+        String third = "<table><tr><td>c</td></tr></table>";
+        // the parser puts the cell outside of a table into a table of its own
+        rewriter.rewrite(first + second + "<td>x</td>" + third, index);
+
+        assertEquals(3, index.getTableCount());
+        assertEquals(3, index.getTableElementCount(0));
+        // closed by its start tag
+        assertEquals(first.length() + second.length(), index.getTableEnd(1));
+        assertEquals(1, index.getTableElementCount(1));
+        assertEquals(-1, index.getTableElementCount(2));
+    }
+
+    @Test
+    public void indexesDeclaredImageSizes() {
+        rewriter.rewrite("<img src=\"a.png\" width=\"120\" height=80px>"
+                + "<IMG SRC='b.png?x=1&amp;y=2' width = 50%>"
+                + "<img src=c.png height=\"30\"/>"
+                + "<img src=\"d.png\">", index);
+
+        assertEquals(2, index.getImageCount());
+        assertEquals("a.png", index.getImageSource(0));
+        assertEquals(120, index.getImageWidth(0));
+        assertEquals(80, index.getImageHeight(0));
+        // relative sizes are not declared sizes
+        assertEquals("c.png", index.getImageSource(1));
+        assertEquals(0, index.getImageWidth(1));
+        assertEquals(30, index.getImageHeight(1));
+
+        rewriter.rewrite("<p>", index);
+        assertEquals(0, index.getImageCount());
+        assertEquals(0, index.getTableCount());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HtmlTagScannerTest {
+
+    @Test
+    public void findsStartAndEndTags() {
+        assertEquals(Arrays.asList("p", "B", "/B", "br/", "/p"), tags("<p>a <B>b</B> c < d<br/></p>"));
+    }
+
+    @Test
+    public void describesCurrentTag() {
+        String html = "text<IMG src=x />";
+        HtmlTagScanner tags = new HtmlTagScanner(html);
+
+        assertTrue(tags.next());
+        assertEquals(4, tags.tagStart);
+        assertEquals(html.length() - 1, tags.tagEnd);
+        assertFalse(tags.closing);
+        assertTrue(tags.isSelfClosing());
+        assertTrue(tags.isName("img"));
+        assertEquals("img", tags.findName(new String[]{"br", "img"}));
+        assertNull(tags.findName(new String[]{"im", "imgs"}));
+        assertFalse(tags.next());
+    }
+
+    @Test
+    public void skipsQuotedAttributeValues() {
+        assertEquals(Arrays.asList("a", "li"), tags("<a title=\"<b>\" href='>'><li>"));
+        // a quote which is not an attribute value doesn't start one
+        assertEquals(Arrays.asList("p", "li"), tags("<p class=x'y><li>"));
+    }
+
+    @Test
+    public void skipsCommentsScriptsAndStyles() {
+        assertEquals(Arrays.asList("script", "/SCRIPT", "style", "/style", "ul"),
+                tags("<!-- <p> --><script>if (a <li) x = '<ul>';</SCRIPT><style>p > a { }</style><ul>"));
+        // a self-closing script has no content
+        assertEquals(Arrays.asList("script/", "li"), tags("<script/><li>"));
+        // neither has an unclosed comment or script
+        assertEquals(Arrays.asList("p"), tags("<p><!-- <b>"));
+        assertEquals(Arrays.asList("script"), tags("<script><b>"));
+    }
+
+    @Test
+    public void endsWithUnclosedTag() {
+        HtmlTagScanner tags = new HtmlTagScanner("<p><b class=\"x>");
+
+        assertTrue(tags.next());
+        assertTrue(tags.next());
+        assertTrue(tags.isName("b"));
+        assertEquals(-1, tags.tagEnd);
+        assertFalse(tags.next());
+    }
+
+    /**
+     * @return the names of the tags of html, with a leading '/' for end tags and a trailing '/'
+     * for self-closing ones
+     */
+    private static List<String> tags(String html) {
+        List<String> names = new ArrayList<>();
+        HtmlTagScanner tags = new HtmlTagScanner(html);
+        while (tags.next()) {
+            names.add((tags.closing ? "/" : "") + html.substring(tags.nameStart, tags.nameEnd)
+                    + (tags.isSelfClosing() ? "/" : ""));
+        }
+        return names;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the loads of an {@link ImageLoader} one by one on a queue instead of threads, and serves
+ * the images from a URL handler recording the order they are downloaded in. The decoder makes
+ * nothing of the data, so every load ends with {@link ImageLoader.Callback#onImageFailed}.
+ */
+public class ImageLoaderTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<String> opened = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> notified = new ArrayList<>();
+    private final QueueExecutor executor = new QueueExecutor();
+
+    private final URLStreamHandler handler = new URLStreamHandler() {
+        @Override
+        protected URLConnection openConnection(URL url) {
+            opened.add(url.getPath());
+            return new URLConnection(url) {
+                @Override
+                public void connect() {
+                }
+
+                @Override
+                public InputStream getInputStream() {
+                    return new ByteArrayInputStream(new byte[]{1, 2, 3});
+                }
+            };
+        }
+    };
+
+    private final ImageLoader.Callback callback = new ImageLoader.Callback() {
+        @Override
+        public void onImageLoaded(@NonNull String url, @NonNull Bitmap bitmap) {
+            notified.add("loaded " + url);
+        }
+
+        @Override
+        public void onImageFailed(@NonNull String url) {
+            notified.add("failed " + url);
+        }
+    };
+
+    private ImageLoader loader;
+
+    @Before
+    public void setUp() {
+        loader = new ImageLoader(executor, 1, 1, null, DIRECT);
+    }
+
+    @Test
+    public void startsWaitingLoadsInPriorityOrder() throws IOException {
+        load("host", "/a", ImageLoader.PRIORITY_NORMAL);
+        load("host", "/b", ImageLoader.PRIORITY_LOW);
+        load("host", "/c", ImageLoader.PRIORITY_HIGH);
+        load("host", "/d", ImageLoader.PRIORITY_NORMAL);
+        load("host", "/e", ImageLoader.PRIORITY_LOW);
+        // a waiting load is moved up by a request of a higher priority, it came before c
+        load("host", "/b", ImageLoader.PRIORITY_HIGH);
+
+        executor.runAll();
+
+        assertEquals(Arrays.asList("/a", "/b", "/c", "/d", "/e"), opened);
+    }
+
+    @Test
+    public void limitsLoadsPerHost() throws IOException {
+        loader = new ImageLoader(executor, 4, 2, null, DIRECT);
+        load("one", "/a", ImageLoader.PRIORITY_NORMAL);
+        load("one", "/b", ImageLoader.PRIORITY_NORMAL);
+        load("one", "/c", ImageLoader.PRIORITY_HIGH);
+        load("two", "/d", ImageLoader.PRIORITY_LOW);
+        assertEquals(3, executor.tasks.size());
+
+        // c waits for a load of its host to end, though the low priority d has started
+        executor.runNext();
+        assertEquals(3, executor.tasks.size());
+        executor.runAll();
+
+        assertEquals(Arrays.asList("/a", "/b", "/d", "/c"), opened);
+    }
+
+    @Test
+    public void sharesLoadsOfTheSameImage() throws IOException {
+        load("host", "/a", ImageLoader.PRIORITY_NORMAL);
+        load("host", "/b", ImageLoader.PRIORITY_NORMAL);
+        load("host", "/b", ImageLoader.PRIORITY_NORMAL);
+        // another decoder makes something else of the data
+        loader.load(url("host", "/b"), new NullDecoder("other"), ImageLoader.PRIORITY_NORMAL, callback);
+        ImageLoader.Request cancelled = load("host", "/c", ImageLoader.PRIORITY_NORMAL);
+        load("host", "/c", ImageLoader.PRIORITY_NORMAL);
+        cancelled.cancel();
+
+        executor.runAll();
+
+        assertEquals(Arrays.asList("/a", "/b", "/b", "/c"), opened);
+        assertEquals(Arrays.asList("failed test://host/a", "failed test://host/b",
+                "failed test://host/b", "failed test://host/b", "failed test://host/c"), notified);
+    }
+
+    @Test
+    public void failsLoadsTheExecutorRejects() throws IOException {
+        load("host", "/a", ImageLoader.PRIORITY_NORMAL);
+        load("host", "/b", ImageLoader.PRIORITY_NORMAL);
+        load("host", "/b", ImageLoader.PRIORITY_NORMAL);
+        load("host", "/c", ImageLoader.PRIORITY_NORMAL);
+
+        // b and c are rejected when a ends
+        executor.rejecting = true;
+        executor.runNext();
+        assertEquals(Arrays.asList("failed test://host/a", "failed test://host/b",
+                "failed test://host/b", "failed test://host/c"), notified);
+
+        // their slots are free again, and a new request for b starts a new load
+        executor.rejecting = false;
+        load("host", "/b", ImageLoader.PRIORITY_NORMAL);
+        executor.runAll();
+        assertEquals(Arrays.asList("/a", "/b"), opened);
+    }
+
+    private ImageLoader.Request load(String host, String path, int priority) throws MalformedURLException {
+        return loader.load(url(host, path), new NullDecoder("null"), priority, callback);
+    }
+
+    private URL url(String host, String path) throws MalformedURLException {
+        return new URL(null, "test://" + host + path, handler);
+    }
+
+    private static final class NullDecoder implements ImageLoader.Decoder {
+        private final String key;
+
+        NullDecoder(String key) {
+            this.key = key;
+        }
+
+        @NonNull
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public Bitmap decode(@NonNull byte[] data) {
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the tasks until they are run by the test, or rejects them
+     */
+    private static final class QueueExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+        boolean rejecting;
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            if (rejecting) {
+                throw new RejectedExecutionException();
+            }
+            tasks.add(command);
+        }
+
+        void runNext() {
+            tasks.remove(0).run();
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package hu.scythe.droidwriter.customEditText;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Makes the requests of an {@link ImageRequestManager} with a loader running its loads one by
+ * one on a queue, one at a time. The attach state changes are notified by the test, the view
+ * itself isn't used by the manager. Every load fails, the decoder makes nothing of the data.
+ */
+public class ImageRequestManagerTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<String> opened = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> notified = new ArrayList<>();
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    private final ImageLoader loader = new ImageLoader(new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            tasks.add(command);
+        }
+    }, 1, 1, null, DIRECT);
+
+    private final URLStreamHandler handler = new URLStreamHandler() {
+        @Override
+        protected URLConnection openConnection(URL url) {
+            opened.add(url.getPath());
+            return new URLConnection(url) {
+                @Override
+                public void connect() {
+                }
+
+                @Override
+                public InputStream getInputStream() {
+                    return new ByteArrayInputStream(new byte[]{1, 2, 3});
+                }
+            };
+        }
+    };
+
+    private final ImageLoader.Decoder decoder = new ImageLoader.Decoder() {
+        @NonNull
+        @Override
+        public String getKey() {
+            return "null";
+        }
+
+        @Override
+        public Bitmap decode(@NonNull byte[] data) {
+            return null;
+        }
+    };
+
+    private final ImageLoader.Callback callback = new ImageLoader.Callback() {
+        @Override
+        public void onImageLoaded(@NonNull String url, @NonNull Bitmap bitmap) {
+            notified.add("loaded " + url);
+        }
+
+        @Override
+        public void onImageFailed(@NonNull String url) {
+            notified.add("failed " + url);
+        }
+    };
+
+    @Test
+    public void waitsForTheFirstAttach() throws MalformedURLException {
+        ImageRequestManager manager = new ImageRequestManager(true);
+        load(manager, "/a");
+        assertEquals(0, tasks.size());
+        assertEquals(0, manager.getActiveCount());
+
+        manager.onViewAttachedToWindow(null);
+        assertEquals(1, manager.getActiveCount());
+        runAll();
+
+        assertEquals(Collections.singletonList("/a"), opened);
+        assertEquals(Collections.singletonList("failed test://host/a"), notified);
+        assertEquals(0, manager.getActiveCount());
+    }
+
+    @Test
+    public void makesRequestsCancelledByDetachAgain() throws MalformedURLException {
+        ImageRequestManager manager = new ImageRequestManager(false);
+        load(manager, "/a");
+        load(manager, "/b");
+        assertEquals(2, manager.getActiveCount());
+
+        // a is running and stops before it downloads anything, b never starts
+        manager.onViewDetachedFromWindow(null);
+        load(manager, "/c");
+        runAll();
+        assertEquals(Collections.<String>emptyList(), opened);
+        assertEquals(Collections.<String>emptyList(), notified);
+        assertEquals(0, manager.getActiveCount());
+
+        manager.onViewAttachedToWindow(null);
+        runAll();
+        assertEquals(Arrays.asList("/a", "/b", "/c"), opened);
+        assertEquals(Arrays.asList("failed test://host/a", "failed test://host/b", "failed test://host/c"),
+                notified);
+    }
+
+    @Test
+    public void cancelsActiveAndSuspendedRequests() throws MalformedURLException {
+        ImageRequestManager manager = new ImageRequestManager(false);
+        load(manager, "/a");
+        manager.onViewDetachedFromWindow(null);
+        manager.onViewAttachedToWindow(null);
+        load(manager, "/b");
+        manager.cancelAll();
+        runAll();
+        assertEquals(0, manager.getActiveCount());
+
+        load(manager, "/c");
+        manager.onViewDetachedFromWindow(null);
+        manager.cancelAll();
+        manager.onViewAttachedToWindow(null);
+        runAll();
+
+        assertEquals(Collections.<String>emptyList(), opened);
+        assertEquals(Collections.<String>emptyList(), notified);
+    }
+
+    private void load(ImageRequestManager manager, String path) throws MalformedURLException {
+        manager.load(loader, new URL(null, "test://host" + path, handler), decoder,
+                ImageLoader.PRIORITY_NORMAL, callback);
+    }
+
+    private void runAll() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+}